@@ -0,0 +1,147 @@
+package com.huangchao.musicplayer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.provider.MediaStore;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * 多线程同时解码封面，结果必须和单线程解码的一致。
+ * 需要设备上有带封面的专辑，没有时跳过。
+ */
+@RunWith(AndroidJUnit4.class)
+public class ArtworkDecodeStressTest {
+    private static final int SIZE = 96;
+    // 每个专辑id重复的次数，让同一张封面被多个线程同时解码
+    private static final int REPEAT = 4;
+    private static final int THREADS = 4;
+
+    private Context context;
+    private long[] albumIds;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        albumIds = queryAlbumIds();
+        assumeTrue(albumIds.length > 0);
+    }
+
+    @Test
+    public void parallelDecodeMatchesSequential() throws Exception {
+        clearCaches();
+        BitmapPool pool = BitmapPool.getInstance(context);
+        Bitmap[] expected = new Bitmap[albumIds.length];
+        for (int i = 0; i < albumIds.length; i++) {
+            Bitmap b = acquire(albumIds[i]);
+            // 复制一份，release之后原来的Bitmap可能被池复用
+            expected[i] = b == null ? null : b.copy(b.getConfig(), false);
+            pool.release(b);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < 3; round++) {
+                clearCaches();
+                int[] index = new int[albumIds.length * REPEAT];
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = i % albumIds.length;
+                }
+                Random random = new Random(round);
+                for (int i = index.length - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int tmp = index[i];
+                    index[i] = index[j];
+                    index[j] = tmp;
+                }
+
+                ArrayList<Future<Bitmap>> futures = new ArrayList<Future<Bitmap>>(index.length);
+                for (int i : index) {
+                    final long albumId = albumIds[i];
+                    futures.add(executor.submit(new Callable<Bitmap>() {
+                        @Override
+                        public Bitmap call() {
+                            return acquire(albumId);
+                        }
+                    }));
+                }
+                // 先等所有解码结束再比较，比较时其他线程的解码不会再淘汰复用这些Bitmap
+                Bitmap[] actual = new Bitmap[index.length];
+                for (int i = 0; i < index.length; i++) {
+                    actual[i] = futures.get(i).get();
+                }
+                try {
+                    for (int i = 0; i < index.length; i++) {
+                        long albumId = albumIds[index[i]];
+                        Bitmap want = expected[index[i]];
+                        Bitmap got = actual[i];
+                        if (want == null) {
+                            assertNull("album " + albumId, got);
+                            continue;
+                        }
+                        assertNotNull("album " + albumId, got);
+                        assertFalse(got.isRecycled());
+                        assertTrue("album " + albumId + " decoded differently", want.sameAs(got));
+                    }
+                } finally {
+                    for (Bitmap b : actual) {
+                        pool.release(b);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 和ArtworkLoader相同的解码路径，返回的Bitmap已经acquire
+     */
+    private Bitmap acquire(long albumId) {
+        return MusicUtils.acquireArtwork(context, -1, albumId, null, SIZE, SIZE, false);
+    }
+
+    private void clearCaches() {
+        MusicUtils.clearAlbumArtCache(context);
+        DiskArtworkCache.getInstance(context).evictAll();
+    }
+
+    private long[] queryAlbumIds() {
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(
+                    MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                    new String[]{MediaStore.Audio.Albums._ID}, null, null, null);
+        } catch (SecurityException e) {
+            // 没有读取存储的权限
+            return new long[0];
+        }
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext() && i < ids.length; i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
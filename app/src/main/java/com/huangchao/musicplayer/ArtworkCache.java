@@ -0,0 +1,153 @@
+package com.huangchao.musicplayer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * 专辑封面的内存缓存，按字节数限制大小，容量为应用内存等级的1/8。
+ * 键由封面id和目标尺寸组成，同一张封面的不同尺寸分别缓存，
+ * 尺寸的含义由调用者决定。
+ * 被淘汰的Bitmap交给EvictionListener，可以用于后续解码的复用。
+ * 所有方法都是线程安全的。
+ */
+public class ArtworkCache {
+    // 缓存占用应用可用内存的比例
+    private static final int MEMORY_FRACTION = 8;
+    // 不限制尺寸的原图使用的尺寸值
+    public static final int SIZE_ORIGINAL = 0;
+
+    private static ArtworkCache sInstance;
+
+    /**
+     * Bitmap被淘汰或替换时回调，调用时Bitmap已经不在缓存中
+     */
+    public interface EvictionListener {
+        void onBitmapEvicted(Bitmap bitmap);
+    }
+
+    private final LruCache<Long, Bitmap> cache;
+    private volatile EvictionListener evictionListener;
+    // 放入时的锁，不能用LruCache自身：淘汰回调会在放入的过程中执行
+    private final Object putLock = new Object();
+
+    private ArtworkCache(int maxBytes) {
+        cache = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                EvictionListener listener = evictionListener;
+                if (listener != null && oldValue != newValue) {
+                    listener.onBitmapEvicted(oldValue);
+                }
+            }
+        };
+    }
+
+    public static synchronized ArtworkCache getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager am = (ActivityManager) context.getApplicationContext()
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+            int maxBytes = am.getMemoryClass() * 1024 * 1024 / MEMORY_FRACTION;
+            sInstance = new ArtworkCache(maxBytes);
+            // 淘汰的Bitmap回到池中供后续解码复用
+            sInstance.setEvictionListener(BitmapPool.getInstance(context));
+        }
+        return sInstance;
+    }
+
+    /**
+     * 封面id：专辑封面使用专辑id，没有专辑的歌曲使用 -1 - songId
+     */
+    public static long artId(long songId, long albumId) {
+        return albumId >= 0 ? albumId : -1 - songId;
+    }
+
+    /**
+     * 缓存的键：高32位为封面id，低32位为尺寸，size不能为负
+     */
+    static long key(long artId, int size) {
+        return (artId << 32) | (Math.max(0, size) & 0xffffffffL);
+    }
+
+    public Bitmap get(long artId, int size) {
+        return cache.get(key(artId, size));
+    }
+
+    public void put(long artId, int size, Bitmap bitmap) {
+        if (bitmap != null) {
+            synchronized (putLock) {
+                cache.put(key(artId, size), bitmap);
+            }
+        }
+    }
+
+    /**
+     * 没有缓存时放入bitmap，返回缓存中的Bitmap；
+     * 多个线程同时解码同一张封面时只保留第一个，避免后放入的替换掉正在使用的
+     */
+    public Bitmap putIfAbsent(long artId, int size, Bitmap bitmap) {
+        return putIfAbsent(artId, size, bitmap, null);
+    }
+
+    /**
+     * 同上，pool不为null时在放入的锁内acquire返回的Bitmap。
+     * 淘汰只发生在放入的过程中，其他线程的放入不能在acquire之前把它淘汰并复用
+     */
+    public Bitmap putIfAbsent(long artId, int size, Bitmap bitmap, BitmapPool pool) {
+        Long key = key(artId, size);
+        synchronized (putLock) {
+            Bitmap cached = cache.get(key);
+            if (cached == null) {
+                cache.put(key, bitmap);
+                cached = bitmap;
+            }
+            if (pool != null) {
+                pool.acquire(cached);
+            }
+            return cached;
+        }
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+    }
+
+    public void evictAll() {
+        cache.evictAll();
+    }
+
+    public int hitCount() {
+        return cache.hitCount();
+    }
+
+    public int missCount() {
+        return cache.missCount();
+    }
+
+    public int evictionCount() {
+        return cache.evictionCount();
+    }
+
+    /**
+     * 当前占用的字节数
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public int maxSize() {
+        return cache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return "ArtworkCache[size=" + size() + "/" + maxSize() + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+    }
+}
@@ -0,0 +1,240 @@
+package com.huangchao.musicplayer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步加载专辑封面。
+ * 解码在有界的线程池中进行，结果回到主线程设置给ImageView。
+ * 封面按ImageView的尺寸解码，centerCrop的ImageView只解码可见的区域。
+ * 请求以封面id和尺寸为键，命中ArtworkCache时直接设置，
+ * 同一张封面的并发请求只解码一次；
+ * 同一个ImageView发起新请求时，旧请求自动取消。
+ * 设置给ImageView的Bitmap在BitmapPool中acquire，换下时release，
+ * 保证正在显示的Bitmap被缓存淘汰后不会被复用。
+ * 所有公开方法都必须在主线程调用。
+ */
+public class ArtworkLoader {
+    // MusicUtils的解码路径是线程安全的，同一张封面由jobs去重，不会并发解码
+    private static final int DECODE_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ArtworkLoader sInstance;
+
+    private final Context context;
+    private final BitmapPool pool;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+    // 正在解码的任务，以封面id和尺寸为键
+    private final HashMap<Long, Job> jobs = new HashMap<Long, Job>();
+
+    private ArtworkLoader(Context context) {
+        this.context = context.getApplicationContext();
+        pool = BitmapPool.getInstance(context);
+        executor = new ThreadPoolExecutor(DECODE_THREADS, DECODE_THREADS,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ArtworkDecoder-" + (++count));
+                        thread.setPriority(Thread.NORM_PRIORITY - 1);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ArtworkLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ArtworkLoader(context);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 为view加载歌曲的封面，albumId小于0时从歌曲文件读取
+     */
+    public void load(ImageView view, long songId, long albumId) {
+        load(view, songId, albumId, null);
+    }
+
+    /**
+     * 同上，path为歌曲文件的路径，需要歌曲自己的封面时先读取文件标签中内嵌的封面
+     */
+    public void load(ImageView view, long songId, long albumId, String path) {
+        int width = view.getWidth();
+        int height = view.getHeight();
+        if (width <= 0 || height <= 0) {
+            // 还没有布局，按屏幕大小解码
+            DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+        }
+        boolean crop = view.getScaleType() == ImageView.ScaleType.CENTER_CROP;
+        long artId = ArtworkCache.artId(songId, albumId);
+        int size = MusicUtils.artworkSizeKey(width, height, crop);
+        long key = ArtworkCache.key(artId, size);
+        Request current = (Request) view.getTag(R.id.artwork_request);
+        Bitmap cached = pool.acquireCached(ArtworkCache.getInstance(context), artId, size);
+        if (cached != null) {
+            // 命中内存缓存，直接在主线程设置
+            if (current != null) {
+                current.cancel();
+            }
+            bind(view, cached);
+            return;
+        }
+        if (current != null) {
+            if (current.job.key == key) {
+                // 同一张封面已经在加载
+                return;
+            }
+            current.cancel();
+        }
+
+        Job job = jobs.get(key);
+        if (job == null) {
+            job = new Job(key, songId, albumId, path, width, height, crop);
+            jobs.put(key, job);
+            job.future = executor.submit(job);
+        }
+        Request request = new Request(view, job);
+        job.requests.add(request);
+        view.setTag(R.id.artwork_request, request);
+    }
+
+    /**
+     * 取消view上尚未完成的请求
+     */
+    public void cancel(ImageView view) {
+        Request current = (Request) view.getTag(R.id.artwork_request);
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * 取消view上的请求并释放它正在显示的封面，view不再使用时调用
+     */
+    public void unbind(ImageView view) {
+        cancel(view);
+        bind(view, null);
+    }
+
+    /**
+     * 把已经acquire的bitmap设置给view，并release之前设置的Bitmap
+     */
+    private void bind(ImageView view, Bitmap bitmap) {
+        Bitmap previous = (Bitmap) view.getTag(R.id.artwork_bitmap);
+        view.setImageBitmap(bitmap);
+        view.setTag(R.id.artwork_bitmap, bitmap);
+        pool.release(previous);
+    }
+
+    /**
+     * bitmap已经由解码线程acquire了一次，分给每个请求后释放这一次
+     */
+    private void deliver(Job job, Bitmap bitmap) {
+        if (jobs.get(job.key) == job) {
+            jobs.remove(job.key);
+        }
+        for (Request request : job.requests) {
+            request.view.setTag(R.id.artwork_request, null);
+            pool.acquire(bitmap);
+            bind(request.view, bitmap);
+        }
+        job.requests.clear();
+        pool.release(bitmap);
+    }
+
+    /**
+     * 一个ImageView对一张封面的请求
+     */
+    private class Request {
+        final ImageView view;
+        final Job job;
+
+        Request(ImageView view, Job job) {
+            this.view = view;
+            this.job = job;
+        }
+
+        void cancel() {
+            view.setTag(R.id.artwork_request, null);
+            job.requests.remove(this);
+            if (job.requests.isEmpty()) {
+                job.cancelled = true;
+                job.future.cancel(false);
+                if (jobs.get(job.key) == job) {
+                    jobs.remove(job.key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一张封面的解码任务，可以同时服务多个请求
+     */
+    private class Job implements Runnable {
+        final long key;
+        final long songId;
+        final long albumId;
+        final String path;
+        final int width;
+        final int height;
+        final boolean crop;
+        // 只在主线程访问
+        final ArrayList<Request> requests = new ArrayList<Request>(1);
+        volatile boolean cancelled;
+        Future<?> future;
+
+        Job(long key, long songId, long albumId, String path, int width, int height, boolean crop) {
+            this.key = key;
+            this.songId = songId;
+            this.albumId = albumId;
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.crop = crop;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            // 在缓存的锁内acquire，交给主线程之前不会被其他解码线程淘汰复用
+            Bitmap b = MusicUtils.acquireArtwork(context, songId, albumId, path,
+                    width, height, crop);
+            if (b == null && albumId >= 0 && !cancelled) {
+                // 专辑没有封面时再尝试歌曲文件中的封面
+                b = MusicUtils.acquireArtwork(context, songId, -1, path, width, height, crop);
+            }
+            final Bitmap bitmap = b;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!cancelled) {
+                        deliver(Job.this, bitmap);
+                    } else {
+                        pool.release(bitmap);
+                    }
+                }
+            });
+        }
+    }
+}
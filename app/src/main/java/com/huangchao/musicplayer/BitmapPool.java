@@ -0,0 +1,237 @@
+package com.huangchao.musicplayer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 可复用Bitmap的池，按分配的字节数分档。
+ * 解码时通过BitmapFactory.Options.inBitmap复用池中的Bitmap，
+ * 缩放时直接画到池中取出的Bitmap上，ArtworkCache淘汰的Bitmap回到池中。
+ * 正在显示的Bitmap通过acquire/release计数，计数不为0时不会进入池，
+ * 等到release后再回收。所有方法都是线程安全的。
+ */
+public class BitmapPool implements ArtworkCache.EvictionListener {
+    // 池占用应用可用内存的比例
+    private static final int MEMORY_FRACTION = 16;
+    // 复用的Bitmap最多是需要大小的几倍，避免小图占用大块内存
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private static BitmapPool sInstance;
+
+    private final int maxBytes;
+    private int size;
+    // 分配字节数 -> 该档位的Bitmap
+    private final TreeMap<Integer, ArrayList<Bitmap>> buckets = new TreeMap<Integer, ArrayList<Bitmap>>();
+    // 正在显示的Bitmap及其引用计数
+    private final IdentityHashMap<Bitmap, Integer> inUse = new IdentityHashMap<Bitmap, Integer>();
+    // 已经被缓存淘汰，等待release后进入池的Bitmap
+    private final IdentityHashMap<Bitmap, Boolean> pending = new IdentityHashMap<Bitmap, Boolean>();
+    private int hitCount;
+    private int missCount;
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized BitmapPool getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager am = (ActivityManager) context.getApplicationContext()
+                    .getSystemService(Context.ACTIVITY_SERVICE);
+            sInstance = new BitmapPool(am.getMemoryClass() * 1024 * 1024 / MEMORY_FRACTION);
+        }
+        return sInstance;
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return 2;
+        }
+        return 4;
+    }
+
+    /**
+     * 取出一个能容纳width x height的Bitmap并调整为需要的尺寸，没有时返回null
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width * height * bytesPerPixel(config));
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 取出一个至少有byteCount字节的Bitmap，不改变其尺寸，没有时返回null
+     */
+    private Bitmap take(int byteCount) {
+        Map.Entry<Integer, ArrayList<Bitmap>> entry = buckets.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() > byteCount * MAX_SIZE_MULTIPLE) {
+            missCount++;
+            return null;
+        }
+        ArrayList<Bitmap> bucket = entry.getValue();
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+        size -= entry.getKey();
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * 把不再使用的Bitmap放回池中，正在显示的Bitmap会等到release后再放回
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        if (inUse.containsKey(bitmap)) {
+            pending.put(bitmap, Boolean.TRUE);
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > maxBytes) {
+            return;
+        }
+        ArrayList<Bitmap> bucket = buckets.get(byteCount);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(2);
+            buckets.put(byteCount, bucket);
+        }
+        for (Bitmap pooled : bucket) {
+            if (pooled == bitmap) {
+                return;
+            }
+        }
+        bucket.add(bitmap);
+        size += byteCount;
+        trimToSize();
+    }
+
+    /**
+     * Bitmap开始显示，在release之前不会被复用
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        Integer count = inUse.get(bitmap);
+        inUse.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void release(Bitmap bitmap) {
+        Integer count = bitmap == null ? null : inUse.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            inUse.put(bitmap, count - 1);
+            return;
+        }
+        inUse.remove(bitmap);
+        if (pending.remove(bitmap) != null) {
+            put(bitmap);
+        }
+    }
+
+    /**
+     * 从缓存中读取并acquire，两步在池的锁内完成，
+     * 避免读取之后、acquire之前Bitmap被淘汰并复用
+     */
+    public synchronized Bitmap acquireCached(ArtworkCache cache, long artId, int size) {
+        Bitmap bitmap = cache.get(artId, size);
+        acquire(bitmap);
+        return bitmap;
+    }
+
+    @Override
+    public void onBitmapEvicted(Bitmap bitmap) {
+        put(bitmap);
+    }
+
+    /**
+     * 根据options中已经解码出的边界和inSampleSize，设置可复用的inBitmap
+     */
+    public void setInBitmap(BitmapFactory.Options options) {
+        setInBitmap(options, options.outWidth, options.outHeight);
+    }
+
+    /**
+     * 解码srcWidth x srcHeight的区域时使用，尺寸按inSampleSize缩小
+     */
+    public synchronized void setInBitmap(BitmapFactory.Options options, int srcWidth, int srcHeight) {
+        options.inMutable = true;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (srcWidth + sampleSize - 1) / sampleSize;
+        int height = (srcHeight + sampleSize - 1) / sampleSize;
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        options.inBitmap = take(width * height * bytesPerPixel(config));
+    }
+
+    /**
+     * 把src缩放为width x height，目标Bitmap尽量从池中取得，src由调用者决定是否放回
+     */
+    public Bitmap createScaledBitmap(Bitmap src, int width, int height) {
+        if (src.getWidth() == width && src.getHeight() == height) {
+            return src;
+        }
+        Bitmap.Config config = src.getConfig() != null ? src.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap dst = get(width, height, config);
+        if (dst == null) {
+            dst = Bitmap.createBitmap(width, height, config);
+        }
+        Canvas canvas = new Canvas(dst);
+        synchronized (scalePaint) {
+            canvas.drawBitmap(src, null, new Rect(0, 0, width, height), scalePaint);
+        }
+        return dst;
+    }
+
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        buckets.clear();
+        pending.clear();
+        size = 0;
+    }
+
+    /**
+     * 超出容量时先丢弃最大的Bitmap
+     */
+    private void trimToSize() {
+        while (size > maxBytes && !buckets.isEmpty()) {
+            Map.Entry<Integer, ArrayList<Bitmap>> largest = buckets.lastEntry();
+            ArrayList<Bitmap> bucket = largest.getValue();
+            bucket.remove(bucket.size() - 1);
+            if (bucket.isEmpty()) {
+                buckets.remove(largest.getKey());
+            }
+            size -= largest.getKey();
+        }
+    }
+}
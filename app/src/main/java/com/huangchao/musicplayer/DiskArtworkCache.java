@@ -0,0 +1,350 @@
+package com.huangchao.musicplayer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 专辑封面的磁盘缓存，保存已经缩小并重新编码的缩略图。
+ * 缩略图保持原图的宽高比，较长的一边不超过尺寸档位。
+ * 键为封面id、尺寸档位和形状，总大小超过上限时按最近最少使用淘汰。
+ * 每次写入、读取和删除都追加到journal文件，启动时重放journal恢复索引，
+ * 冗余记录过多时重写journal。读取记录只影响淘汰顺序，攒够一批才写入磁盘。
+ * 文件读写在调用者的线程中进行，只有索引和journal的更新需要加锁。
+ */
+public class DiskArtworkCache {
+    private static final String TAG = "DiskArtworkCache";
+    private static final String DIRECTORY = "artwork";
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final long MAX_BYTES = 16 * 1024 * 1024;
+    // 冗余记录超过这个数且超过条目数时重写journal
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+    private static final int JPEG_QUALITY = 90;
+    // 最小的尺寸档位
+    private static final int MIN_BUCKET = 64;
+    // 攒够这么多条读取记录才把journal写入磁盘
+    private static final int READ_FLUSH_BATCH = 64;
+
+    private static DiskArtworkCache sInstance;
+
+    private final File directory;
+    private final long maxBytes;
+    // 按访问顺序排列，值为文件大小
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long size;
+    private Writer journalWriter;
+    private int redundantOps;
+    // 还在journalWriter缓冲区中的读取记录数
+    private int unflushedReads;
+
+    DiskArtworkCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        open();
+    }
+
+    public static synchronized DiskArtworkCache getInstance(Context context) {
+        if (sInstance == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), DIRECTORY);
+            sInstance = new DiskArtworkCache(dir, MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    /**
+     * 尺寸档位：不小于size的2的幂，最小为MIN_BUCKET
+     */
+    public static int sizeBucket(int size) {
+        int bucket = MIN_BUCKET;
+        while (bucket < size) {
+            bucket <<= 1;
+        }
+        return bucket;
+    }
+
+    /**
+     * w x h的View使用的缩略图的键。尺寸档位由较长的一边决定；
+     * 裁剪的缩略图只适用于宽高比相同的View，键中带上约分后的宽高比
+     */
+    public static String key(long artId, int w, int h, boolean crop) {
+        String key = artId + "_" + sizeBucket(Math.max(w, h));
+        if (crop) {
+            int gcd = gcd(w, h);
+            key += "_" + w / gcd + "x" + h / gcd;
+        }
+        return key;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * 读取key的缩略图，不存在时返回null。pool不为null时复用池中的Bitmap解码
+     */
+    public Bitmap get(String key, BitmapPool pool) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+            appendJournal(READ, key);
+        }
+        String path = new File(directory, key).getPath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (pool != null) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            options.inJustDecodeBounds = false;
+            // JPEG没有透明通道，用565解码
+            if ("image/jpeg".equals(options.outMimeType)) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+            pool.setInBitmap(options);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            // 池中的Bitmap不能用于这张图
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        if (options.inBitmap != null && bitmap != options.inBitmap) {
+            pool.put(options.inBitmap);
+        }
+        if (bitmap == null) {
+            // 文件已损坏或已被删除
+            remove(key);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 写入缩略图，bitmap应该已经缩小到key的尺寸档位
+     */
+    public void put(String key, Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        File tmp = new File(directory, key + ".tmp" + Thread.currentThread().getId());
+        OutputStream out = null;
+        boolean written = false;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp), 16 * 1024);
+            Bitmap.CompressFormat format = bitmap.hasAlpha()
+                    ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG;
+            written = bitmap.compress(format, JPEG_QUALITY, out);
+        } catch (IOException e) {
+            Log.w(TAG, "put failed: " + key, e);
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                written = false;
+            }
+        }
+        if (!written) {
+            tmp.delete();
+            return;
+        }
+        synchronized (this) {
+            File file = new File(directory, key);
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            Long previous = entries.put(key, file.length());
+            if (previous != null) {
+                size -= previous;
+                redundantOps++;
+            }
+            size += file.length();
+            appendJournal(CLEAN, key + " " + file.length());
+            trimToSize();
+            compactJournalIfNeeded();
+        }
+    }
+
+    public synchronized void evictAll() {
+        for (String key : entries.keySet()) {
+            new File(directory, key).delete();
+        }
+        entries.clear();
+        size = 0;
+        rebuildJournal();
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    private synchronized void remove(String key) {
+        Long length = entries.remove(key);
+        if (length != null) {
+            size -= length;
+            new File(directory, key).delete();
+            appendJournal(REMOVE, key);
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            new File(directory, eldest.getKey()).delete();
+            appendJournal(REMOVE, eldest.getKey());
+        }
+    }
+
+    /**
+     * 重放journal恢复索引，删除journal中没有记录的文件
+     */
+    private synchronized void open() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "cannot create " + directory);
+        }
+        File journal = new File(directory, JOURNAL);
+        if (journal.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(journal));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    replay(line);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "journal is corrupt, clearing cache", e);
+                entries.clear();
+            } finally {
+                try {
+                    if (reader != null) {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        }
+        size = 0;
+        for (Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            if (new File(directory, entry.getKey()).length() != entry.getValue()) {
+                it.remove();
+            } else {
+                size += entry.getValue();
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.equals(JOURNAL) && !entries.containsKey(name)) {
+                    file.delete();
+                }
+            }
+        }
+        rebuildJournal();
+        trimToSize();
+    }
+
+    private void replay(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) {
+            return;
+        }
+        if (CLEAN.equals(parts[0]) && parts.length == 3) {
+            try {
+                entries.put(parts[1], Long.parseLong(parts[2]));
+            } catch (NumberFormatException e) {
+                entries.remove(parts[1]);
+            }
+        } else if (READ.equals(parts[0])) {
+            entries.get(parts[1]);
+        } else if (REMOVE.equals(parts[0])) {
+            entries.remove(parts[1]);
+        }
+    }
+
+    private void appendJournal(String op, String args) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(op + " " + args + "\n");
+            // 丢失的读取记录只会让淘汰顺序稍旧，写入和删除记录立即写入磁盘
+            if (!READ.equals(op) || ++unflushedReads >= READ_FLUSH_BATCH) {
+                journalWriter.flush();
+                unflushedReads = 0;
+            }
+            if (!CLEAN.equals(op)) {
+                redundantOps++;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "journal write failed", e);
+        }
+    }
+
+    private void compactJournalIfNeeded() {
+        if (redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOps >= entries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    /**
+     * 按当前的访问顺序重写journal
+     */
+    private void rebuildJournal() {
+        try {
+            if (journalWriter != null) {
+                journalWriter.close();
+            }
+            File tmp = new File(directory, JOURNAL_TMP);
+            Writer writer = new BufferedWriter(new FileWriter(tmp));
+            try {
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            File journal = new File(directory, JOURNAL);
+            if (!tmp.renameTo(journal)) {
+                throw new IOException("rename failed: " + journal);
+            }
+            journalWriter = new BufferedWriter(new FileWriter(journal, true));
+            redundantOps = 0;
+            unflushedReads = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "rebuild journal failed", e);
+            journalWriter = null;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.huangchao.musicplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.huangchao.musicplayer.data.AudioTags;
+import com.huangchao.musicplayer.data.EnrichedTrack;
+import com.huangchao.musicplayer.data.EnrichmentCheckpoint;
+import com.huangchao.musicplayer.data.MusicList;
+import com.huangchao.musicplayer.data.TagReader;
+import com.huangchao.musicplayer.data.TrackStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 从歌曲文件补全MusicList：读取标签、回放增益，以及由文件头计算的准确时长。
+ * 文件在ForkJoinPool上并行读取，线程数等于处理器核数，优先级为后台；
+ * 结果按批在主线程写回TrackStore，写回只修改属性，不改变歌曲的位置；
+ * 被修改的歌曲累积起来，最多每NOTIFY_DELAY_MS通知一次，列表、搜索和排序不必每批都更新。
+ * 歌曲按段交给线程池，播放或界面需要CPU时可以暂停：工作线程不等待，
+ * 当前这一段读完之后不再提交下一段，恢复时再从下一段继续。
+ * 每批结果先追加到检查点再交给主线程，中断之后重新开始时，
+ * 文件没有变化的歌曲直接使用检查点中的结果，不再读取文件。
+ * 所有方法都要在主线程调用。
+ */
+public class LibraryEnricher {
+    private static final String TAG = "LibraryEnricher";
+    private static final String CHECKPOINT_FILE = "enrichment.checkpoint";
+    // 暂停的原因，可以同时有多个，全部恢复后才继续
+    public static final int PAUSE_SCROLL = 1;
+    private static final int PAUSE_PLAYBACK = 2;
+    // 开始播放或切换歌曲后暂停的时间
+    private static final long PLAYBACK_PAUSE_MS = 2000;
+    // 一个叶子任务读取的文件数，小于这个数不再拆分
+    private static final int LEAF_SIZE = 16;
+    // 每批交给主线程的结果数
+    private static final int BATCH_SIZE = 256;
+    // 每个线程在一段中分到的叶子任务数，一段读完之后才检查是否暂停
+    private static final int LEAVES_PER_THREAD = 2;
+    // 两次通知修改之间的最短间隔
+    private static final long NOTIFY_DELAY_MS = 1000;
+
+    /**
+     * 补全结果回调，总是在主线程中执行
+     */
+    public interface Callback {
+        /**
+         * 歌曲的标题、艺术家、专辑或时长被修改，changedIds是上次通知以来被修改的歌曲，已经排序
+         */
+        void onTracksEnriched(long[] changedIds);
+    }
+
+    private static final ForkJoinPool.ForkJoinWorkerThreadFactory THREAD_FACTORY =
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    return new ForkJoinWorkerThread(pool) {
+                        @Override
+                        protected void onStart() {
+                            super.onStart();
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        }
+                    };
+                }
+            };
+
+    private final Context context;
+    private final TrackStore tracks;
+    private final Callback callback;
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            THREAD_FACTORY, null, false);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final int chunkSize = LEAF_SIZE * LEAVES_PER_THREAD * pool.getParallelism();
+    private final Object gate = new Object();
+    // 当前的暂停原因，以及因为暂停而停在两段之间的一遍补全，由gate保护
+    private int pausedReasons;
+    private Run parked;
+    private Run current;
+    private boolean pending;
+    // 写回了结果但还没有写入快照
+    private boolean snapshotDirty;
+    // 已经写回、还没有通知的歌曲id
+    private long[] changedIds = new long[BATCH_SIZE];
+    private int changedCount;
+
+    public LibraryEnricher(Context context, TrackStore tracks, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.tracks = tracks;
+        this.callback = callback;
+    }
+
+    /**
+     * 为tracks的当前内容补全属性。正在补全时，等这一遍结束后再补全一遍，
+     * 已经处理过的歌曲在检查点中，第二遍只读取新的文件
+     */
+    public void start() {
+        if (current != null) {
+            pending = true;
+            return;
+        }
+        pending = false;
+        int size = tracks.size();
+        if (size == 0) {
+            return;
+        }
+        String[] paths = new String[size];
+        for (int i = 0; i < size; i++) {
+            paths[i] = tracks.getmusicPath(i);
+        }
+        current = new Run(tracks.copyIds(), paths);
+        execute(current);
+    }
+
+    public void pause(int reason) {
+        synchronized (gate) {
+            pausedReasons |= reason;
+        }
+    }
+
+    public void resume(int reason) {
+        final Run run;
+        synchronized (gate) {
+            pausedReasons &= ~reason;
+            if (pausedReasons != 0 || parked == null) {
+                return;
+            }
+            run = parked;
+            parked = null;
+        }
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                enrichChunks(run);
+            }
+        });
+    }
+
+    /**
+     * 开始播放或切换歌曲时调用，准备播放器和解码封面的这段时间暂停补全
+     */
+    public void pauseForPlayback() {
+        pause(PAUSE_PLAYBACK);
+        mainHandler.removeCallbacks(resumePlayback);
+        mainHandler.postDelayed(resumePlayback, PLAYBACK_PAUSE_MS);
+    }
+
+    private final Runnable resumePlayback = new Runnable() {
+        @Override
+        public void run() {
+            resume(PAUSE_PLAYBACK);
+        }
+    };
+
+    /**
+     * 停止补全，之后不会再有回调。已经追加到检查点的结果下次启动时继续使用
+     */
+    public void shutdown() {
+        if (current != null) {
+            current.cancelled = true;
+            current = null;
+        }
+        Run run;
+        synchronized (gate) {
+            run = parked;
+            parked = null;
+        }
+        if (run != null && run.checkpoint != null) {
+            run.checkpoint.close();
+        }
+        pool.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void execute(final Run run) {
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                long[] sortedIds = run.ids.clone();
+                Arrays.sort(sortedIds);
+                try {
+                    run.checkpoint = EnrichmentCheckpoint.open(
+                            new File(context.getFilesDir(), CHECKPOINT_FILE), sortedIds);
+                } catch (IOException e) {
+                    // 没有检查点仍然可以补全，只是不能从中断处继续
+                    Log.w(TAG, "cannot open checkpoint", e);
+                }
+                enrichChunks(run);
+            }
+        });
+    }
+
+    /**
+     * 在工作线程一段一段地补全，每段开始之前检查暂停。
+     * 暂停时记下这一遍直接返回，不占用工作线程，由resume重新提交
+     */
+    private void enrichChunks(final Run run) {
+        boolean paused = false;
+        try {
+            while (run.next < run.ids.length && !run.cancelled) {
+                synchronized (gate) {
+                    if (pausedReasons != 0) {
+                        parked = run;
+                        paused = true;
+                    }
+                }
+                if (paused) {
+                    // 暂停期间不留着不满一批的结果
+                    run.flush();
+                    return;
+                }
+                int end = Math.min(run.next + chunkSize, run.ids.length);
+                new EnrichTask(run, run.next, end).invoke();
+                run.next = end;
+            }
+            run.flush();
+        } finally {
+            if (!paused && run.checkpoint != null) {
+                run.checkpoint.close();
+            }
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finish(run);
+            }
+        });
+    }
+
+    /**
+     * 在主线程把一批结果写回tracks。歌曲可能已经被扫描移除，按id重新查找位置
+     */
+    private void apply(Run run, ArrayList<EnrichedTrack> batch) {
+        if (run != current) {
+            return;
+        }
+        if (changedCount + batch.size() > changedIds.length) {
+            changedIds = Arrays.copyOf(changedIds,
+                    Math.max(changedCount + batch.size(), changedIds.length * 2));
+        }
+        int count = changedCount;
+        for (EnrichedTrack track : batch) {
+            int position = tracks.indexOfId(track.getId());
+            if (position < 0) {
+                continue;
+            }
+            // 标签中没有的属性保留MediaStore的值
+            String title = track.getTitle() != null ? track.getTitle() : tracks.getmusicName(position);
+            String artist = track.getArtist() != null ? track.getArtist() : tracks.getmusicArtist(position);
+            String album = track.getAlbum() != null ? track.getAlbum() : tracks.getMusicAlbum(position);
+            int duration = track.getDurationMs() > 0 ? track.getDurationMs() : tracks.getmusicDuration(position);
+            if (tracks.update(position, title, artist, album, duration)) {
+                changedIds[count++] = track.getId();
+                snapshotDirty = true;
+            }
+            if (Float.compare(tracks.getTrackGain(position), track.getTrackGain()) != 0
+                    || Float.compare(tracks.getAlbumGain(position), track.getAlbumGain()) != 0) {
+                tracks.setReplayGain(position, track.getTrackGain(), track.getAlbumGain());
+                snapshotDirty = true;
+            }
+        }
+        if (count > changedCount && changedCount == 0) {
+            mainHandler.postDelayed(notifyChanged, NOTIFY_DELAY_MS);
+        }
+        changedCount = count;
+    }
+
+    private final Runnable notifyChanged = new Runnable() {
+        @Override
+        public void run() {
+            dispatchChanged();
+        }
+    };
+
+    /**
+     * 把累积的修改一次通知给callback，同一首歌只通知一次
+     */
+    private void dispatchChanged() {
+        mainHandler.removeCallbacks(notifyChanged);
+        if (changedCount == 0) {
+            return;
+        }
+        long[] ids = Arrays.copyOf(changedIds, changedCount);
+        changedCount = 0;
+        Arrays.sort(ids);
+        int unique = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        callback.onTracksEnriched(unique == ids.length ? ids : Arrays.copyOf(ids, unique));
+    }
+
+    private void finish(Run run) {
+        if (run != current) {
+            return;
+        }
+        current = null;
+        dispatchChanged();
+        // 没有加载完的列表不写入快照，否则缺少的歌曲再也不会恢复
+        if (snapshotDirty && MusicList.isLoaded()) {
+            snapshotDirty = false;
+            final TrackStore copy = tracks.snapshot();
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    MusicList.saveSnapshot(context, copy);
+                }
+            });
+        }
+        if (pending) {
+            start();
+        }
+    }
+
+
+    /**
+     * 在工作线程读取第index首歌，文件不存在时跳过
+     */
+    private static void enrich(Run run, int index) {
+        File file = new File(run.paths[index]);
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return;
+        }
+        long fileLength = file.length();
+        long id = run.ids[index];
+        if (run.checkpoint != null) {
+            EnrichedTrack cached = run.checkpoint.get(id, lastModified, fileLength);
+            if (cached != null) {
+                run.add(cached, false);
+                return;
+            }
+        }
+        EnrichedTrack track = EnrichedTrack.from(id, lastModified, fileLength, readTags(file));
+        run.add(track, true);
+    }
+
+    /**
+     * 读取失败或文件已损坏时返回null。损坏的文件可能让TagReader抛出任何RuntimeException，
+     * 异常不能逃出工作线程，否则整个进程退出，每次启动都会在同一个文件上崩溃
+     */
+    private static AudioTags readTags(File file) {
+        try {
+            return TagReader.read(file);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read tags: " + file);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "malformed tags: " + file, e);
+        }
+        return null;
+    }
+
+    /**
+     * 一遍补全的状态。ids和paths是开始时的副本，工作线程不读取TrackStore
+     */
+    private final class Run {
+        final long[] ids;
+        final String[] paths;
+        volatile boolean cancelled;
+        EnrichmentCheckpoint checkpoint;
+        // 下一段的起点，只由正在执行enrichChunks的工作线程读写
+        int next;
+        // 以下由this保护：等待交给主线程的结果，以及其中需要追加到检查点的部分
+        private ArrayList<EnrichedTrack> batch = new ArrayList<EnrichedTrack>(BATCH_SIZE);
+        private ArrayList<EnrichedTrack> fresh = new ArrayList<EnrichedTrack>(BATCH_SIZE);
+
+        Run(long[] ids, String[] paths) {
+            this.ids = ids;
+            this.paths = paths;
+        }
+
+        void add(EnrichedTrack track, boolean isFresh) {
+            synchronized (this) {
+                batch.add(track);
+                if (isFresh) {
+                    fresh.add(track);
+                }
+                if (batch.size() < BATCH_SIZE) {
+                    return;
+                }
+            }
+            flush();
+        }
+
+        /**
+         * 把已有的结果追加到检查点，再交给主线程
+         */
+        void flush() {
+            final ArrayList<EnrichedTrack> results;
+            ArrayList<EnrichedTrack> appended;
+            synchronized (this) {
+                if (batch.isEmpty()) {
+                    return;
+                }
+                results = batch;
+                appended = fresh;
+                batch = new ArrayList<EnrichedTrack>(BATCH_SIZE);
+                fresh = new ArrayList<EnrichedTrack>(BATCH_SIZE);
+            }
+            if (checkpoint != null && !appended.isEmpty()) {
+                try {
+                    checkpoint.append(appended);
+                } catch (IOException e) {
+                    Log.w(TAG, "cannot append checkpoint", e);
+                }
+            }
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    apply(Run.this, results);
+                }
+            });
+        }
+    }
+
+    /**
+     * 把[start, end)区间对半拆分，直到不超过LEAF_SIZE首歌曲
+     */
+    private final class EnrichTask extends RecursiveAction {
+        private final Run run;
+        private final int start;
+        private final int end;
+
+        EnrichTask(Run run, int start, int end) {
+            this.run = run;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > LEAF_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new EnrichTask(run, start, middle), new EnrichTask(run, middle, end));
+                return;
+            }
+            for (int i = start; i < end && !run.cancelled; i++) {
+                enrich(run, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.huangchao.musicplayer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+
+import com.huangchao.musicplayer.data.LibrarySnapshot;
+import com.huangchao.musicplayer.data.MusicList;
+import com.huangchao.musicplayer.data.TrackStore;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在后台线程扫描MediaStore中的歌曲，分页把结果交给主线程。
+ * 列表为空时先从快照分页恢复，第一页解码完就交给主线程，不等整个快照读完。
+ * 首次扫描读取全部歌曲；之后只重新读取DATE_MODIFIED或_ID
+ * 比上次完成的扫描更新的行，并移除已经被删除的歌曲。
+ * MusicList只在主线程中修改。扫描结果有变化时在后台写入快照，
+ * 快照写入成功后才更新水位线，保证两者一致。
+ */
+public class LibraryScanner {
+    // 每一页交给主线程的歌曲数
+    private static final int PAGE_SIZE = 200;
+    // 上次完成扫描时的水位线
+    private static final String PREF_LAST_MODIFIED = "scan_last_modified";
+    private static final String PREF_MAX_ID = "scan_max_id";
+
+    static final String[] CURSOR_COLS = new String[]{
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.AudioColumns.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.AudioColumns.DURATION,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.ARTIST_ID,
+            MediaStore.Audio.Media.DATE_MODIFIED,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.TRACK
+    };
+    private static final int COL_ID = 0;
+    private static final int COL_TITLE = 1;
+    private static final int COL_ARTIST = 2;
+    private static final int COL_DURATION = 3;
+    private static final int COL_ALBUM = 4;
+    private static final int COL_PATH = 5;
+    private static final int COL_ALBUM_ID = 6;
+    private static final int COL_ARTIST_ID = 7;
+    private static final int COL_DATE_MODIFIED = 8;
+    private static final int COL_DATE_ADDED = 9;
+    private static final int COL_TRACK = 10;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 扫描结果回调，总是在主线程中执行
+     */
+    public interface Callback {
+        /**
+         * 一页新歌曲已经追加到MusicList末尾
+         */
+        void onScanPage(int start, int count);
+
+        /**
+         * 增量扫描修改了MusicList，或者丢弃了上次没有加载完的列表，
+         * changedIds为被删除、修改或新增的歌曲id，已经排序
+         */
+        void onLibraryChanged(long[] changedIds);
+
+        /**
+         * 扫描结束
+         */
+        void onScanFinished();
+    }
+
+    private final Context context;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean cancelled;
+    private boolean running;
+
+    public LibraryScanner(Context context, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.callback = callback;
+    }
+
+    /**
+     * 开始扫描，必须在主线程调用
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        cancelled = false;
+        TrackStore musicList = MusicList.getMusicList();
+        if (!MusicList.isLoaded() && !musicList.isEmpty()) {
+            // 上次加载快照或完整扫描被中途取消，水位线之前缺少的歌曲增量扫描不会补回，
+            // 丢弃这部分列表，重新加载
+            long[] dropped = musicList.copyIds();
+            Arrays.sort(dropped);
+            musicList.clear();
+            callback.onLibraryChanged(dropped);
+        }
+        final boolean incremental = !musicList.isEmpty();
+        // 在主线程取得已有歌曲的id，后台线程不直接读取MusicList
+        final long[] knownIds = incremental ? MusicList.getMusicIds() : null;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long[] ids = incremental ? knownIds : loadSnapshot();
+                if (cancelled) {
+                    return;
+                }
+                if (ids != null && !incremental) {
+                    postLoaded();
+                }
+                if (ids != null) {
+                    scanIncremental(ids);
+                } else {
+                    scanFull();
+                }
+            }
+        });
+    }
+
+    /**
+     * 取消扫描，之后不会再有回调
+     */
+    public void cancel() {
+        cancelled = true;
+        running = false;
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private Cursor queryTracks(String where) {
+        return MusicUtils.query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                CURSOR_COLS, where, null, MediaStore.Audio.AudioColumns.TITLE);
+    }
+
+    private static void readTrack(Cursor cursor, TrackStore tracks) {
+        String strArtist = cursor.getString(COL_ARTIST);
+        if (strArtist == null || strArtist.equals("<unknown>"))
+            strArtist = "无艺术家";
+        tracks.add(cursor.getLong(COL_ID), cursor.getString(COL_TITLE), strArtist,
+                cursor.getString(COL_ALBUM), cursor.getString(COL_PATH),
+                cursor.getInt(COL_DURATION), cursor.getLong(COL_ALBUM_ID),
+                cursor.getLong(COL_ARTIST_ID), cursor.getLong(COL_DATE_ADDED));
+        tracks.setTrackNumber(tracks.size() - 1, cursor.getInt(COL_TRACK));
+    }
+
+    /**
+     * 从快照分页恢复MusicList，返回快照中所有歌曲的id。
+     * 快照不存在、已损坏或为空时返回null，之后需要完整扫描
+     */
+    private long[] loadSnapshot() {
+        LibrarySnapshot.Reader reader = MusicList.openSnapshot(context);
+        if (reader == null || reader.getCount() == 0) {
+            return null;
+        }
+        long[] ids = new long[reader.getCount()];
+        int loaded = 0;
+        while (!cancelled && reader.hasNext()) {
+            TrackStore page = reader.readPage(PAGE_SIZE);
+            for (int i = 0; i < page.size(); i++) {
+                ids[loaded++] = page.getMusicId(i);
+            }
+            postPage(page);
+        }
+        return ids;
+    }
+
+    /**
+     * 首次扫描，按标题顺序分页追加到MusicList
+     */
+    private void scanFull() {
+        Cursor cursor = queryTracks(null);
+        long lastModified = 0;
+        long maxId = 0;
+        if (cursor != null) {
+            try {
+                TrackStore page = new TrackStore(PAGE_SIZE);
+                while (!cancelled && cursor.moveToNext()) {
+                    readTrack(cursor, page);
+                    lastModified = Math.max(lastModified, cursor.getLong(COL_DATE_MODIFIED));
+                    maxId = Math.max(maxId, cursor.getLong(COL_ID));
+                    if (page.size() == PAGE_SIZE) {
+                        postPage(page);
+                        page = new TrackStore(PAGE_SIZE);
+                    }
+                }
+                if (!page.isEmpty()) {
+                    postPage(page);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (cancelled) {
+            return;
+        }
+        // 整个列表都是重新建立的，需要写入快照
+        postFinished(true, lastModified, maxId);
+    }
+
+    /**
+     * 增量扫描：只读取所有行的_id判断删除，再读取水位线之后修改或新增的行
+     */
+    private void scanIncremental(long[] knownIds) {
+        long lastModified = MusicUtils.getLongPref(context, PREF_LAST_MODIFIED, 0);
+        long maxId = MusicUtils.getLongPref(context, PREF_MAX_ID, 0);
+
+        Cursor idCursor = MusicUtils.query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Media._ID}, null, null, null);
+        if (idCursor == null) {
+            postFinished(false, lastModified, maxId);
+            return;
+        }
+        long[] currentIds;
+        try {
+            currentIds = MusicUtils.getSongListForCursor(idCursor);
+        } finally {
+            idCursor.close();
+        }
+        Arrays.sort(currentIds);
+        // 已经不在MediaStore中的歌曲
+        long[] removed = new long[knownIds.length];
+        int removedCount = 0;
+        for (long id : knownIds) {
+            if (Arrays.binarySearch(currentIds, id) < 0) {
+                removed[removedCount++] = id;
+            }
+        }
+
+        final TrackStore updated = new TrackStore();
+        String where = MediaStore.Audio.Media.DATE_MODIFIED + ">" + lastModified
+                + " OR " + MediaStore.Audio.Media._ID + ">" + maxId;
+        Cursor cursor = queryTracks(where);
+        if (cursor != null) {
+            try {
+                while (!cancelled && cursor.moveToNext()) {
+                    readTrack(cursor, updated);
+                    lastModified = Math.max(lastModified, cursor.getLong(COL_DATE_MODIFIED));
+                    maxId = Math.max(maxId, cursor.getLong(COL_ID));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        if (cancelled) {
+            return;
+        }
+
+        // 需要从列表中移除的id：已删除的歌曲，以及将被重新插入的修改过的歌曲
+        final long[] drop = Arrays.copyOf(removed, removedCount + updated.size());
+        for (int i = 0; i < updated.size(); i++) {
+            drop[removedCount + i] = updated.getMusicId(i);
+        }
+        Arrays.sort(drop);
+        final boolean changed = drop.length > 0;
+        final long newLastModified = lastModified;
+        final long newMaxId = maxId;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+                if (changed) {
+                    applyChanges(drop, updated);
+                    callback.onLibraryChanged(drop);
+                }
+                finish(changed, newLastModified, newMaxId);
+            }
+        });
+    }
+
+    /**
+     * 在主线程中把增量结果合并进MusicList，保持标题顺序
+     */
+    private static void applyChanges(long[] drop, TrackStore updated) {
+        TrackStore musicList = MusicList.getMusicList();
+        musicList.removeIds(drop);
+        for (int i = 0; i < updated.size(); i++) {
+            musicList.insert(findInsertPosition(musicList, updated.getmusicName(i)), updated, i);
+        }
+    }
+
+    private static int findInsertPosition(TrackStore musicList, String title) {
+        int low = 0;
+        int high = musicList.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareTitle(musicList.getmusicName(mid), title) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int compareTitle(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : -1;
+        }
+        return b == null ? 1 : a.compareToIgnoreCase(b);
+    }
+
+    private void postPage(final TrackStore page) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled) {
+                    return;
+                }
+                TrackStore musicList = MusicList.getMusicList();
+                int start = musicList.size();
+                musicList.addAll(page);
+                callback.onScanPage(start, page.size());
+            }
+        });
+    }
+
+    /**
+     * 快照的最后一页加入列表之后，列表才是完整的
+     */
+    private void postLoaded() {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled) {
+                    MusicList.setLoaded(true);
+                }
+            }
+        });
+    }
+
+    private void postFinished(final boolean changed, final long lastModified, final long maxId) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finish(changed, lastModified, maxId);
+            }
+        });
+    }
+
+    private void finish(boolean changed, long lastModified, long maxId) {
+        if (cancelled) {
+            return;
+        }
+        running = false;
+        // 完整扫描的所有页都已经加入列表；增量扫描之前列表就是完整的
+        MusicList.setLoaded(true);
+        if (changed || lastModified != MusicUtils.getLongPref(context, PREF_LAST_MODIFIED, 0)
+                || maxId != MusicUtils.getLongPref(context, PREF_MAX_ID, 0)) {
+            saveSnapshot(lastModified, maxId);
+        }
+        callback.onScanFinished();
+    }
+
+    private void saveSnapshot(final long lastModified, final long maxId) {
+        final TrackStore copy = MusicList.getMusicList().snapshot();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (MusicList.saveSnapshot(context, copy)) {
+                    MusicUtils.setLongPref(context, PREF_LAST_MODIFIED, lastModified);
+                    MusicUtils.setLongPref(context, PREF_MAX_ID, maxId);
+                }
+            }
+        });
+    }
+}
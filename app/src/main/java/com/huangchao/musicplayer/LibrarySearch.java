@@ -0,0 +1,93 @@
+package com.huangchao.musicplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.huangchao.musicplayer.data.SearchIndex;
+import com.huangchao.musicplayer.data.TrackStore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 歌曲库的搜索。索引在后台线程建立和更新，查询直接在主线程执行。
+ * 索引按小块加入，查询最多等待一块的时间；每次更新完成后在主线程回调，
+ * 界面可以重新执行当前的查询，显示新加入的歌曲。
+ * 除search之外的方法都要在主线程调用，传入的歌曲在调用时取只读快照，
+ * 复制和查找都在后台线程进行。
+ */
+public class LibrarySearch {
+    // 每次持有索引锁时加入的歌曲数
+    private static final int CHUNK = 512;
+
+    private final SearchIndex index = new SearchIndex(new PinyinRomanizer());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable onUpdated;
+
+    /**
+     * onUpdated在每次索引更新完成后在主线程执行
+     */
+    public LibrarySearch(Runnable onUpdated) {
+        this.onUpdated = onUpdated;
+    }
+
+    /**
+     * 加入tracks中从start开始的count首歌曲
+     */
+    public void add(TrackStore tracks, final int start, final int count) {
+        final TrackStore snapshot = tracks.snapshot();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                addRange(snapshot, start, start + count);
+            }
+        });
+    }
+
+    /**
+     * 歌曲库增量修改之后调用，changedIds为被删除、修改或新增的歌曲id，已经排序。
+     * 这些歌曲先从索引移除，仍在tracks中的再重新加入
+     */
+    public void onTracksChanged(TrackStore tracks, final long[] changedIds) {
+        final TrackStore snapshot = tracks.snapshot();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                index.remove(changedIds);
+                for (long id : changedIds) {
+                    int position = snapshot.indexOfId(id);
+                    if (position >= 0) {
+                        index.add(id, snapshot.getmusicName(position),
+                                snapshot.getmusicArtist(position), snapshot.getMusicAlbum(position));
+                    }
+                }
+                mainHandler.post(onUpdated);
+            }
+        });
+    }
+
+    /**
+     * 按加入的顺序返回最多limit个匹配的歌曲id，可以在任何线程调用
+     */
+    public long[] search(String query, int limit) {
+        return index.search(query, limit);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 在后台线程分块加入tracks中[start, end)的歌曲，完成后通知主线程
+     */
+    private void addRange(TrackStore tracks, int start, int end) {
+        for (int i = start; i < end; i += CHUNK) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            index.add(tracks, i, Math.min(CHUNK, end - i));
+        }
+        mainHandler.post(onUpdated);
+    }
+}
@@ -0,0 +1,78 @@
+package com.huangchao.musicplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.huangchao.musicplayer.data.SortOrders;
+import com.huangchao.musicplayer.data.TrackStore;
+
+import java.text.Collator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在后台线程为歌曲列表计算SortOrders，完成后在主线程保存到TrackStore。
+ * 计算期间列表又被修改（包括只修改属性）时，结果已经过期，不保存，重新计算一次；
+ * 计算期间的多次请求合并为一次。所有方法都要在主线程调用。
+ */
+public class LibrarySorter {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final TrackStore tracks;
+    private final Runnable onUpdated;
+    private boolean running;
+    private boolean pending;
+
+    /**
+     * onUpdated在新的排序保存到tracks之后在主线程执行
+     */
+    public LibrarySorter(TrackStore tracks, Runnable onUpdated) {
+        this.tracks = tracks;
+        this.onUpdated = onUpdated;
+    }
+
+    /**
+     * 为tracks的当前内容重新计算排序
+     */
+    public void rebuild() {
+        if (running) {
+            pending = true;
+            return;
+        }
+        running = true;
+        pending = false;
+        final TrackStore copy = tracks.snapshot();
+        final int modCount = tracks.getModCount();
+        // update修改标题等排序键时不计入modCount，用version判断结果是否过期
+        final int version = tracks.getVersion();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Collator collator = Collator.getInstance();
+                // 不区分大小写
+                collator.setStrength(Collator.SECONDARY);
+                final SortOrders orders = SortOrders.build(copy, collator);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        running = false;
+                        if (tracks.getVersion() == version) {
+                            tracks.setSortOrders(orders, modCount);
+                            onUpdated.run();
+                        } else {
+                            pending = true;
+                        }
+                        if (pending) {
+                            rebuild();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        mainHandler.removeCallbacksAndMessages(null);
+    }
+}
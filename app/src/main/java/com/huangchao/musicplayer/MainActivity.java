@@ -1,93 +1,113 @@
 package com.huangchao.musicplayer;
 
 import android.Manifest;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.media.MediaPlayer;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
-import android.provider.MediaStore;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
+import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
-import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.SeekBar;
-import android.widget.SimpleAdapter;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.huangchao.musicplayer.data.Music;
+import com.huangchao.musicplayer.data.LibraryGroups;
 import com.huangchao.musicplayer.data.MusicList;
+import com.huangchao.musicplayer.data.SortOrders;
+import com.huangchao.musicplayer.data.TrackStore;
+import com.huangchao.musicplayer.model.PlaybackState;
 import com.huangchao.musicplayer.model.PropertyBean;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
 public class MainActivity extends AppCompatActivity {
-    //进度条控制常量
-    private static final int PROGRESS_INCREASE = 0;
-    private static final int PROGRESS_PAUSE = 1;
-    private static final int PROGRESS_RESET = 2;
     private static final int REQUEST_PERMISSION = 0;
-    String[] mCursorCols = new String[]{
-            "_id",             // index must match IDCOLIDX below
-            MediaStore.Audio.AudioColumns.TITLE,
-            MediaStore.Audio.Media.ARTIST,
-            MediaStore.Audio.AudioColumns.DURATION,
-            MediaStore.Audio.Media.ALBUM,
-            MediaStore.Audio.Media.DISPLAY_NAME,
-            MediaStore.Audio.Media.DATA,
-            MediaStore.Audio.Media.MIME_TYPE,
-            MediaStore.Audio.Media.ALBUM_ID,
-            MediaStore.Audio.Media.ARTIST_ID,
-            MediaStore.Audio.Media.IS_PODCAST, // index must match PODCASTCOLIDX below
-            MediaStore.Audio.Media.BOOKMARK    // index must match BOOKMARKCOLIDX below
-    };
+    // 搜索结果最多显示的歌曲数
+    private static final int SEARCH_LIMIT = 500;
     // 显示组件
     private ImageView imgView_Artwork;
     private ImageButton imgBtn_Previous;
     private ImageButton imgBtn_PlayOrPause;
     private ImageButton imgBtn_Stop;
     private ImageButton imgBtn_Next;
-    private ListView list;
+    private RecyclerView list;
     // 媒体播放类
     private MediaPlayer player = new MediaPlayer();
     //歌曲列表对象
-    private ArrayList<Music> musicArrayList;
+    private TrackStore musicArrayList;
     // 当前歌曲的序号，下标从0开始
     private int number = 0;
+    //是否随机播放
+    private boolean shuffle;
     //播放状态
     private int status;
-    //广播接收器
-    private StatusChangedReceiver receiver;
+    //与MusicService的连接，绑定成功后通过binder发送命令
+    private ServiceConnection connection;
+    private MusicService.PlaybackBinder playback;
+    //服务连接之前发出的命令，连接后按顺序执行
+    private final ArrayList<PendingCommand> pendingCommands = new ArrayList<PendingCommand>();
+    //播放状态的监听者
+    private StatusChangedListener statusListener;
     private LinearLayout root_Layout;
     private TextView text_Current;
     private TextView text_Duration;
     private SeekBar seekBar;
     private TextView tv_MusicAuthor;
     private TextView tv_MusicInfo;
-    private Handler seekBarHandler;
+    //后台扫描歌曲
+    private LibraryScanner scanner;
+    //列表适配器
+    private MusicListAdapter listAdapter;
+    //歌曲搜索，以及当前的查询，没有搜索时为null
+    private LibrarySearch search;
+    private String query;
+    //在后台计算列表的各种排序
+    private LibrarySorter sorter;
+    //从歌曲文件补全标签和时长
+    private LibraryEnricher enricher;
+    //当前的排序方式
+    private int sortKey = SortOrders.SORT_TITLE;
+    //专辑和艺术家分组，以及建立时歌曲列表的modCount
+    private LibraryGroups groups;
+    private int groupsModCount;
     //当前歌曲的持续时间和当前位置，作用于进度条
     private int duration;
     private int time;
+    //播放位置的锚点，进度条由它推算
+    private PlaybackState anchor;
+    //Activity是否可见，不可见时不刷新进度条
+    private boolean visible;
+    //用户正在拖动进度条
+    private boolean tracking;
+    //是否已经安排了下一帧刷新进度条
+    private boolean progressScheduled;
+    //进度文本当前显示的秒数
+    private int shownSecond = -1;
     private Menu menu;
+    //正在显示的添加到播放列表的进度对话框
+    private AlertDialog playlistProgress;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -128,14 +148,12 @@ public class MainActivity extends AppCompatActivity {
         registerListeners();
         initMusicList();
         initListView();
-        checkMusicfile();
         duration = 0;
         time = 0;
-        // 绑定广播接收器，可以接收广播
-        bindStatusChangedReceiver();
-        initSeekBarHandler();
-        startService(new Intent(this, MusicService.class));
         status = MusicService.COMMAND_STOP;
+        startService(new Intent(this, MusicService.class));
+        // 绑定服务，接收播放状态
+        bindPlaybackService();
 
     }
 
@@ -159,13 +177,28 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * 绑定广播接收器
+     * 绑定MusicService，连接后注册状态监听者
      */
-    private void bindStatusChangedReceiver() {
-        receiver = new StatusChangedReceiver();
-        IntentFilter filter = new IntentFilter(
-                MusicService.BROADCAST_MUSICSERVICE_UPDATE_STATUS);
-        registerReceiver(receiver, filter);
+    private void bindPlaybackService() {
+        statusListener = new StatusChangedListener();
+        connection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                playback = (MusicService.PlaybackBinder) service;
+                playback.registerListener(statusListener);
+                playback.setShuffle(shuffle);
+                for (PendingCommand pending : pendingCommands) {
+                    runCommand(pending.command, pending.number, pending.time);
+                }
+                pendingCommands.clear();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                playback = null;
+            }
+        };
+        bindService(new Intent(this, MusicService.class), connection, Context.BIND_AUTO_CREATE);
     }
 
     /**
@@ -177,7 +210,7 @@ public class MainActivity extends AppCompatActivity {
         imgBtn_PlayOrPause = (ImageButton) findViewById(R.id.imageButton2);
         imgBtn_Stop = (ImageButton) findViewById(R.id.imageButton3);
         imgBtn_Next = (ImageButton) findViewById(R.id.imageButton4);
-        list = (ListView) findViewById(R.id.listView1);
+        list = (RecyclerView) findViewById(R.id.recyclerView1);
         tv_MusicAuthor = (TextView) findViewById(R.id.listview_tv_artist_item);
         tv_MusicInfo = (TextView) findViewById(R.id.listview_tv_title_item);
         seekBar = (SeekBar) findViewById(R.id.seekBar1);
@@ -190,30 +223,23 @@ public class MainActivity extends AppCompatActivity {
      * 为显示组件注册监听器
      */
     private void registerListeners() {
-//        imgBtn_Random.setOnClickListener(new View.OnClickListener() {
-//            @Override
-//            public void onClick(View v) {
-//                int countMusic = MusicList.getMusicList().size();
-//                Random r = new Random();
-//                number = r.nextInt(countMusic);
-//            }
-//        });
         imgBtn_Previous.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
-                sendBroadcastOnCommand(MusicService.COMMAND_PREVIOUS);
+                sendCommand(MusicService.COMMAND_PREVIOUS);
             }
         });
         imgBtn_PlayOrPause.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
                 switch (status) {
                     case MusicService.STATUS_PLAYING:
-                        sendBroadcastOnCommand(MusicService.COMMAND_PAUSE);
+                        sendCommand(MusicService.COMMAND_PAUSE);
                         break;
                     case MusicService.STATUS_PAUSED:
-                        sendBroadcastOnCommand(MusicService.COMMAND_RESUME);
+                        sendCommand(MusicService.COMMAND_RESUME);
                         break;
                     case MusicService.COMMAND_STOP:
-                        sendBroadcastOnCommand(MusicService.COMMAND_PLAY);
+                        // 从保存的播放队列继续，没有队列时服务从列表第一首开始
+                        sendCommand(MusicService.COMMAND_RESUME);
                     default:
                         break;
                 }
@@ -221,46 +247,33 @@ public class MainActivity extends AppCompatActivity {
         });
         imgBtn_Stop.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
-                sendBroadcastOnCommand(MusicService.COMMAND_STOP);
+                sendCommand(MusicService.COMMAND_STOP);
             }
         });
         imgBtn_Next.setOnClickListener(new View.OnClickListener() {
             public void onClick(View view) {
-                sendBroadcastOnCommand(MusicService.COMMAND_NEXT);
-            }
-        });
-        list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            public void onItemClick(AdapterView<?> parent, View view,
-                                    int position, long id) {
-                number = position;
-                sendBroadcastOnCommand(MusicService.COMMAND_PLAY);
-                imgView_Artwork.setImageBitmap(MusicUtils.getArtwork(getApplicationContext(),
-                        musicArrayList.get(number).musicId,
-                        -1));
+                sendCommand(MusicService.COMMAND_NEXT);
             }
         });
         seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
+                tracking = false;
                 if (status != MusicService.STATUS_STOPPED) {
                     time = seekBar.getProgress();
                     //更新文本
                     text_Current.setText(formatTime(time));
-                    //发送广播给Musicservice,执行跳转
-                    sendBroadcastOnCommand(MusicService.COMMAND_SEEK_TO);
-                }
-                if (status == MusicService.STATUS_PLAYING) {
-                    //发送广播给MusicService，执行跳转
-                    sendBroadcastOnCommand(MusicService.COMMAND_SEEK_TO);
-                    //进度条恢复移动
-                    seekBarHandler.sendEmptyMessageDelayed(PROGRESS_INCREASE, 1000);
+                    //通知MusicService执行跳转，新的锚点发布后进度条恢复移动
+                    sendCommand(MusicService.COMMAND_SEEK_TO);
                 }
+                scheduleProgress();
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
                 //进度条暂停移动
-                seekBarHandler.sendEmptyMessage(PROGRESS_PAUSE);
+                tracking = true;
+                scheduleProgress();
             }
 
             @Override
@@ -270,72 +283,396 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * 初始化音乐列表对象
+     * 初始化音乐列表对象，在后台先从快照分页恢复列表，
+     * 再扫描MediaStore，分页加入列表或与快照比对
      */
     private void initMusicList() {
         musicArrayList = MusicList.getMusicList();
-        //避免重复添加音乐
+        search = new LibrarySearch(new Runnable() {
+            @Override
+            public void run() {
+                //索引更新后重新查询，显示新加入的歌曲
+                if (query != null) {
+                    filterList(query);
+                }
+            }
+        });
+        search.add(musicArrayList, 0, musicArrayList.size());
+        sorter = new LibrarySorter(musicArrayList, new Runnable() {
+            @Override
+            public void run() {
+                listAdapter.notifySortOrdersChanged();
+                //分组按新的排序重新建立
+                groups = null;
+            }
+        });
+        enricher = new LibraryEnricher(this, musicArrayList, new LibraryEnricher.Callback() {
+            @Override
+            public void onTracksEnriched(long[] changedIds) {
+                //位置不变，只重新绑定修改过的行，再按新的标题重新排序和建立索引
+                listAdapter.notifyTracksUpdated(changedIds);
+                search.onTracksChanged(musicArrayList, changedIds);
+                sorter.rebuild();
+            }
+        });
         if (musicArrayList.isEmpty()) {
-            Cursor mMusicCursor = this.getContentResolver().query(
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, mCursorCols, null, null,
-                    MediaStore.Audio.AudioColumns.TITLE);
-
-            //专辑
-            int indexAlbum = mMusicCursor.getColumnIndex(MediaStore.Audio.AudioColumns.ALBUM);
-            //标题
-            int indexTitle = mMusicCursor.getColumnIndex(MediaStore.Audio.AudioColumns.TITLE);
-            //艺术家ß
-            int indexArtist = mMusicCursor.getColumnIndex(MediaStore.Audio.AudioColumns.ARTIST);
-            //总时长
-            int indexTotalTime = mMusicCursor.getColumnIndex(MediaStore.Audio.AudioColumns.DURATION);
-            //路径
-            int indexPath = mMusicCursor.getColumnIndex(MediaStore.Audio.AudioColumns.DATA);
+            //扫描完成之前播放按钮不可用
+            setControlsEnabled(false);
+        } else {
+            sorter.rebuild();
+            checkMusicfile();
+        }
+        scanner = new LibraryScanner(this, new LibraryScanner.Callback() {
+            @Override
+            public void onScanPage(int start, int count) {
+                listAdapter.notifyTracksAppended(start, count);
+                search.add(musicArrayList, start, count);
+                setControlsEnabled(true);
+            }
 
-            int indexAlbumId = mMusicCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ALBUM_ID);
-            int indexArtistId = mMusicCursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST_ID);
+            @Override
+            public void onLibraryChanged(long[] changedIds) {
+                listAdapter.notifyTracksChanged(changedIds);
+                search.onTracksChanged(musicArrayList, changedIds);
+                sorter.rebuild();
+                //没有加载完的列表被丢弃后，重新加载完成之前播放按钮不可用
+                setControlsEnabled(!musicArrayList.isEmpty());
+            }
 
+            @Override
+            public void onScanFinished() {
+                //首次扫描分页加入的歌曲在扫描结束后一起排序
+                if (musicArrayList.getSortOrder(sortKey) == null) {
+                    sorter.rebuild();
+                }
+                checkMusicfile();
+                enricher.start();
+            }
+        });
+        scanner.start();
+    }
 
-            /**通过mMusicCursor游标遍历数据库，并将Music类对象加载带ArrayList中*/
-            for (mMusicCursor.moveToFirst(); !mMusicCursor.isAfterLast(); mMusicCursor
-                    .moveToNext()) {
-                String strTitle = mMusicCursor.getString(indexTitle);
-                String strArtist = mMusicCursor.getString(indexArtist);
-                String strTotoalTime = mMusicCursor.getString(indexTotalTime);
-                String strPath = mMusicCursor.getString(indexPath);
-                String strAlbum = mMusicCursor.getString(indexAlbum);
+    /**
+     * 设置适配器并初始化列表，列表项在滚动到时才绑定
+     */
+    private void initListView() {
+        listAdapter = new MusicListAdapter(musicArrayList, new MusicListAdapter.OnItemClickListener() {
+            public void onItemClick(int position) {
+                number = listAdapter.getRow(position);
+                sendCommand(MusicService.COMMAND_PLAY);
+                showArtwork(number);
+            }
 
-                if (strArtist.equals("<unknown>"))
-                    strArtist = "无艺术家";
-                Music music = new Music(strTitle, strArtist, strPath, strTotoalTime, strAlbum);
-                music.musicId = mMusicCursor.getLong(0);
-                music.musicAlbumId = mMusicCursor.getLong(indexAlbumId);
-                music.musicArtistId = mMusicCursor.getLong(indexArtistId);
-                musicArrayList.add(music);
+            public void onItemLongClick(int position) {
+                showQueueDialog(listAdapter.getRow(position));
+            }
+        });
+        list.setLayoutManager(new LinearLayoutManager(this));
+        list.setHasFixedSize(true);
+        list.setAdapter(listAdapter);
+        list.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                //滚动时暂停补全标签，让出CPU
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    enricher.resume(LibraryEnricher.PAUSE_SCROLL);
+                } else {
+                    enricher.pause(LibraryEnricher.PAUSE_SCROLL);
+                }
             }
+        });
+    }
+
+    /**
+     * 长按列表项，选择加入播放队列的方式。
+     * 专辑和艺术家的歌曲直接以id数组加入队列，不创建Music对象
+     */
+    private void showQueueDialog(final int position) {
+        new AlertDialog.Builder(this)
+                .setTitle(musicArrayList.getmusicName(position))
+                .setItems(R.array.queue_actions, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (playback == null && which < 5) {
+                            return;
+                        }
+                        long[] single = new long[]{musicArrayList.getMusicId(position)};
+                        switch (which) {
+                            case 0:
+                                playback.playNext(single);
+                                break;
+                            case 1:
+                                playback.addToQueue(single);
+                                break;
+                            case 2:
+                                queueGroup(SongIdLoader.SOURCE_ALBUM,
+                                        musicArrayList.getMusicAlbumId(position), false);
+                                break;
+                            case 3:
+                                queueGroup(SongIdLoader.SOURCE_ARTIST,
+                                        musicArrayList.getMusicArtistId(position), false);
+                                break;
+                            case 4:
+                                queueGroup(SongIdLoader.SOURCE_ARTIST,
+                                        musicArrayList.getMusicArtistId(position), true);
+                                break;
+                            case 5:
+                                choosePlaylist(single);
+                                break;
+                            case 6:
+                                choosePlaylist(musicArrayList.copyIds());
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                }).show();
+    }
+
+    /**
+     * 歌曲列表的专辑和艺术家分组，列表修改过时重新建立
+     */
+    private LibraryGroups getGroups() {
+        if (groups == null || groupsModCount != musicArrayList.getModCount()) {
+            groups = LibraryGroups.build(musicArrayList);
+            groupsModCount = musicArrayList.getModCount();
         }
+        return groups;
     }
 
     /**
-     * 设置适配器并初始化listView
+     * 把专辑或艺术家的歌曲加入播放队列，play为true时替换播放队列并开始播放。
+     * 歌曲直接取自内存中的分组，分组中没有时（例如扫描还没有完成）再从MediaStore读取
      */
-    private void initListView() {
-        List<Map<String, String>> list_map = new ArrayList<Map<String, String>>();
-        HashMap<String, String> map;
-        SimpleAdapter simpleAdapter;
-        String musicInfo;
-        for (Music music : musicArrayList) {
-            map = new HashMap<String, String>();
-            map.put("musicName", music.getmusicName());
-            musicInfo = music.getmusicArtist() + " - " + music.getMusicAlbum();
-            map.put("musicArtist", musicInfo);
-            list_map.add(map);
+    private void queueGroup(int source, long id, boolean play) {
+        LibraryGroups groups = getGroups();
+        boolean album = source == SongIdLoader.SOURCE_ALBUM;
+        int group = album ? groups.indexOfAlbum(id) : groups.indexOfArtist(id);
+        if (group < 0) {
+            loadSongs(source, id, play);
+            return;
         }
+        long[] ids = album ? groups.getAlbumTracks(group) : groups.getArtistTracks(group);
+        if (play) {
+            playback.playAll(ids, 0);
+        } else {
+            playback.addToQueue(ids);
+        }
+    }
 
-        String[] from = new String[]{"musicName", "musicArtist"};
-        int[] to = {R.id.listview_tv_title_item, R.id.listview_tv_artist_item};
+    /**
+     * 按专辑浏览，选择专辑后显示它的歌曲
+     */
+    private void browseAlbums() {
+        final LibraryGroups groups = getGroups();
+        CharSequence[] items = new CharSequence[groups.getAlbumCount()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = nameOrUnknown(groups.getAlbumName(i)) + " - "
+                    + nameOrUnknown(groups.getAlbumArtist(i))
+                    + "（" + groups.getAlbumTrackCount(i) + "首）";
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.browse_album)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        showTracks(nameOrUnknown(groups.getAlbumName(which)), groups.getAlbumTracks(which));
+                    }
+                }).show();
+    }
 
-        simpleAdapter = new SimpleAdapter(this, list_map, R.layout.listview, from, to);
-        list.setAdapter(simpleAdapter);
+    /**
+     * 按艺术家浏览，选择艺术家后显示全部歌曲或某张专辑
+     */
+    private void browseArtists() {
+        final LibraryGroups groups = getGroups();
+        CharSequence[] items = new CharSequence[groups.getArtistCount()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = nameOrUnknown(groups.getArtistName(i))
+                    + "（" + groups.getArtistTrackCount(i) + "首）";
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.browse_artist)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        showArtist(groups, which);
+                    }
+                }).show();
+    }
+
+    private void showArtist(final LibraryGroups groups, final int artist) {
+        final String name = nameOrUnknown(groups.getArtistName(artist));
+        final int[] albums = groups.getArtistAlbums(artist);
+        CharSequence[] items = new CharSequence[albums.length + 1];
+        items[0] = "全部歌曲（" + groups.getArtistTrackCount(artist) + "首）";
+        for (int i = 0; i < albums.length; i++) {
+            items[i + 1] = nameOrUnknown(groups.getAlbumName(albums[i]))
+                    + "（" + groups.getAlbumTrackCount(albums[i]) + "首）";
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(name)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which == 0) {
+                            showTracks(name, groups.getArtistTracks(artist));
+                        } else {
+                            int album = albums[which - 1];
+                            showTracks(nameOrUnknown(groups.getAlbumName(album)), groups.getAlbumTracks(album));
+                        }
+                    }
+                }).show();
+    }
+
+    /**
+     * 显示一组歌曲，点击歌曲时从它开始播放这一组，也可以全部播放或加入播放队列
+     */
+    private void showTracks(String title, final long[] ids) {
+        CharSequence[] items = new CharSequence[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            int position = musicArrayList.indexOfId(ids[i]);
+            items[i] = position >= 0 ? nameOrUnknown(musicArrayList.getmusicName(position)) : "";
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (playback != null) {
+                            playback.playAll(ids, which);
+                        }
+                    }
+                })
+                .setPositiveButton("全部播放", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (playback != null) {
+                            playback.playAll(ids, 0);
+                        }
+                    }
+                })
+                .setNegativeButton("加入播放队列", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (playback != null) {
+                            playback.addToQueue(ids);
+                        }
+                    }
+                }).show();
+    }
+
+    private static String nameOrUnknown(String name) {
+        return name != null ? name : "未知";
+    }
+
+    /**
+     * 分批读取专辑、艺术家或播放列表的歌曲并加入播放队列。
+     * play为true时用第一批替换播放队列并开始播放，其余的批次追加到队列末尾
+     */
+    private void loadSongs(int source, long id, final boolean play) {
+        SongIdLoader.load(this, source, id, new SongIdLoader.Callback() {
+            @Override
+            public void onBatch(long[] ids, boolean first) {
+                if (playback == null) {
+                    return;
+                }
+                if (play && first) {
+                    playback.playAll(ids, 0);
+                } else {
+                    playback.addToQueue(ids);
+                }
+            }
+
+            @Override
+            public void onFinished(int total) {
+                if (total == 0) {
+                    Toast.makeText(getApplicationContext(), "没有找到歌曲", Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    /**
+     * 选择要加入的播放列表，最后一项为新建播放列表
+     */
+    private void choosePlaylist(final long[] ids) {
+        // 在后台查询播放列表，结果回来时Activity可能已经销毁
+        PlaylistWriter.queryPlaylists(this, new PlaylistWriter.PlaylistsCallback() {
+            @Override
+            public void onPlaylists(final long[] playlistIds, String[] playlistNames) {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                String[] names = Arrays.copyOf(playlistNames, playlistNames.length + 1);
+                names[playlistNames.length] = "新建播放列表";
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle("添加到播放列表")
+                        .setItems(names, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                if (which < playlistIds.length) {
+                                    addToPlaylist(ids, playlistIds[which], null);
+                                } else {
+                                    askPlaylistName(ids);
+                                }
+                            }
+                        }).show();
+            }
+        });
+    }
+
+    private void askPlaylistName(final long[] ids) {
+        final EditText input = new EditText(this);
+        input.setSingleLine(true);
+        new AlertDialog.Builder(this)
+                .setTitle("新建播放列表")
+                .setView(input)
+                .setPositiveButton("确定", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        String name = input.getText().toString().trim();
+                        if (name.length() > 0) {
+                            addToPlaylist(ids, -1, name);
+                        }
+                    }
+                })
+                .setNegativeButton("取消", null)
+                .show();
+    }
+
+    /**
+     * 在后台分块写入播放列表，对话框显示进度
+     */
+    private void addToPlaylist(long[] ids, long playlistId, String newName) {
+        final ProgressBar bar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        int padding = (int) (24 * getResources().getDisplayMetrics().density);
+        bar.setPadding(padding, padding, padding, 0);
+        bar.setMax(ids.length);
+        final AlertDialog progress = new AlertDialog.Builder(this)
+                .setTitle("正在添加到播放列表")
+                .setView(bar)
+                .setCancelable(false)
+                .show();
+        playlistProgress = progress;
+        PlaylistWriter.add(this, ids, playlistId, newName, new PlaylistWriter.Callback() {
+            @Override
+            public void onProgress(int inserted, int total) {
+                bar.setProgress(inserted);
+            }
+
+            @Override
+            public void onFinished(int inserted) {
+                // Activity已经销毁时（例如旋转屏幕）对话框在onDestroy中关闭
+                if (!isDestroyed() && progress.isShowing()) {
+                    progress.dismiss();
+                }
+                if (playlistProgress == progress) {
+                    playlistProgress = null;
+                }
+                Toast.makeText(getApplicationContext(), inserted < 0 ? "无法创建播放列表"
+                        : "已添加" + inserted + "首歌曲到播放列表", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * 异步加载歌曲的专辑封面，快速切歌时旧的请求会被取消
+     */
+    private void showArtwork(int number) {
+        ArtworkLoader.getInstance(this).load(imgView_Artwork, musicArrayList.getMusicId(number),
+                musicArrayList.getMusicAlbumId(number), musicArrayList.getmusicPath(number));
     }
 
     /**
@@ -343,26 +680,27 @@ public class MainActivity extends AppCompatActivity {
      */
     private void checkMusicfile() {
         if (musicArrayList.isEmpty()) {
-            imgBtn_Next.setEnabled(false);
-            imgBtn_PlayOrPause.setEnabled(false);
-            imgBtn_Previous.setEnabled(false);
-            imgBtn_Stop.setEnabled(false);
+            setControlsEnabled(false);
             Toast.makeText(getApplicationContext(), "当前没有歌曲文件", Toast.LENGTH_SHORT).show();
         } else {
-            imgBtn_Next.setEnabled(true);
-            imgBtn_PlayOrPause.setEnabled(true);
-            imgBtn_Previous.setEnabled(true);
-            imgBtn_Stop.setEnabled(true);
+            setControlsEnabled(true);
         }
     }
 
+    private void setControlsEnabled(boolean enabled) {
+        imgBtn_Next.setEnabled(enabled);
+        imgBtn_PlayOrPause.setEnabled(enabled);
+        imgBtn_Previous.setEnabled(enabled);
+        imgBtn_Stop.setEnabled(enabled);
+    }
+
     /**
      * 读取音乐文件
      */
     private void load(int number) {
         try {
             player.reset();
-            player.setDataSource(MusicList.getMusicList().get(number).getmusicPath());
+            player.setDataSource(MusicList.getMusicList().getmusicPath(number));
             player.prepare();
         } catch (Exception e) {
             // TODO Auto-generated catch block
@@ -412,18 +750,6 @@ public class MainActivity extends AppCompatActivity {
         player.start();
     }
 
-    /**
-     * 随机播放
-     */
-    private void randomToNext() {
-        int countMusic = MusicList.getMusicList().size();
-        Random r = new Random();
-        number = r.nextInt(countMusic);
-        play(number);
-        load(number);
-        player.start();
-    }
-
     /**
      * 选择下一曲
      */
@@ -482,9 +808,57 @@ public class MainActivity extends AppCompatActivity {
      */
     public boolean onCreateOptionsMenu(Menu menu) {
         this.getMenuInflater().inflate(R.menu.main, menu);
+        initSearchView(menu.findItem(R.id.menu_search));
         return true;
     }
 
+    /**
+     * 搜索框，输入时直接查询索引并过滤列表，收起时显示全部歌曲
+     */
+    private void initSearchView(MenuItem item) {
+        SearchView searchView = (SearchView) item.getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String text) {
+                filterList(text);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String text) {
+                filterList(text);
+                return true;
+            }
+        });
+        item.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                filterList(null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 只显示匹配text的歌曲，text为空时显示全部歌曲
+     */
+    private void filterList(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            query = null;
+            if (listAdapter.isFiltered()) {
+                listAdapter.setFilter(null);
+            }
+            return;
+        }
+        query = text;
+        listAdapter.setFilter(search.search(text, SEARCH_LIMIT));
+    }
+
     /**
      * 处理菜单点击事件
      */
@@ -503,6 +877,28 @@ public class MainActivity extends AppCompatActivity {
                                     }
                                 }).show();
                 break;
+            case R.id.menu_album:
+                browseAlbums();
+                break;
+            case R.id.menu_artist:
+                browseArtists();
+                break;
+            case R.id.menu_sort:
+                new AlertDialog.Builder(this)
+                        .setTitle(R.string.sort)
+                        .setItems(R.array.sort_order, new DialogInterface.OnClickListener() {
+                            public void onClick(DialogInterface dialog, int which) {
+                                //各种排序已经预先计算好，切换时不重新查询
+                                sortKey = which;
+                                listAdapter.setSortKey(sortKey);
+                            }
+                        }).show();
+                break;
+            case R.id.menu_shuffle:
+                shuffle = !shuffle;
+                item.setChecked(shuffle);
+                sendCommand(MusicService.COMMAND_SHUFFLE);
+                break;
             case R.id.menu_about:
                 new AlertDialog.Builder(MainActivity.this)
                         .setTitle("GRacePlayer")
@@ -529,13 +925,52 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         // TODO Auto-generated method stub
         super.onResume();
-//        sendBroadcastOnCommand(MusicService.COMMAND_CHECK_IS_PLAYING);
+//        sendCommand(MusicService.COMMAND_CHECK_IS_PLAYING);
         PropertyBean propetry = new PropertyBean(MainActivity.this);
         String theme = propetry.getTheme();
         //设置activity的主题
         setTheme(theme);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        visible = true;
+        updateProgress();
+        scheduleProgress();
+    }
+
+    @Override
+    protected void onStop() {
+        //不可见时不刷新进度条
+        visible = false;
+        scheduleProgress();
+        super.onStop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (scanner != null) {
+            scanner.cancel();
+        }
+        search.shutdown();
+        sorter.shutdown();
+        enricher.shutdown();
+        ArtworkLoader.getInstance(this).unbind(imgView_Artwork);
+        if (playback != null) {
+            playback.unregisterListener(statusListener);
+            playback = null;
+        }
+        pendingCommands.clear();
+        if (playlistProgress != null) {
+            // 写入在后台继续，只是不再显示进度，避免窗口泄漏
+            playlistProgress.dismiss();
+            playlistProgress = null;
+        }
+        unbindService(connection);
+        super.onDestroy();
+    }
+
     private String formatTime(int msec) {
         int minute = msec / 1000 / 60;
         int second = msec / 1000 % 60;
@@ -555,119 +990,164 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * 发送命令，控制音乐播放。参数定义在MusicService类中
+     * 发送命令，控制音乐播放。参数定义在MusicService类中，
+     * 服务还没有连接时记下命令和当时的参数，连接后再执行
      */
-    private void sendBroadcastOnCommand(int command) {
+    private void sendCommand(int command) {
+        if (playback == null) {
+            pendingCommands.add(new PendingCommand(command, number, time));
+            return;
+        }
+        runCommand(command, number, time);
+    }
 
-        Intent intent = new Intent(MusicService.BROADCAST_MUSICSERVICE_CONTROL);
-        intent.putExtra("command", command);
-        //根据不同命令，封装不同的数据
+    private void runCommand(int command, int number, int time) {
         switch (command) {
             case MusicService.COMMAND_PLAY:
-                intent.putExtra("number", number);
+                enricher.pauseForPlayback();
+                //队列按列表显示的顺序排列
+                playback.play(number, musicArrayList.getSortOrder(sortKey));
                 break;
             case MusicService.COMMAND_SEEK_TO:
-                intent.putExtra("time", time);
+                playback.seekTo(time);
                 break;
             case MusicService.COMMAND_PREVIOUS:
-                number = number > 1 ? number - 1 : 0;
-                imgView_Artwork.setImageBitmap(MusicUtils.getArtwork(getApplicationContext(),
-                        musicArrayList.get(number).musicId,
-                        -1));
+                // 上一首、下一首由服务按播放队列决定，等状态回调再更新
+                enricher.pauseForPlayback();
+                playback.previous();
                 break;
             case MusicService.COMMAND_NEXT:
-                number = number == musicArrayList.size() - 1 ? number : number + 1;
-                imgView_Artwork.setImageBitmap(MusicUtils.getArtwork(getApplicationContext(),
-                        musicArrayList.get(number).musicId,
-                        -1));
+                enricher.pauseForPlayback();
+                playback.next();
+                break;
+            case MusicService.COMMAND_SHUFFLE:
+                playback.setShuffle(shuffle);
                 break;
             case MusicService.COMMAND_PAUSE:
+                playback.pause();
+                break;
             case MusicService.COMMAND_STOP:
+                playback.stop();
+                break;
             case MusicService.COMMAND_RESUME:
+                playback.resume();
+                break;
             default:
                 break;
         }
-        sendBroadcast(intent);
-    }
-
-    private void initSeekBarHandler() {
-        seekBarHandler = new Handler() {
-            public void handleMessage(Message msg) {
-                super.handleMessage(msg);
-                switch (msg.what) {
-                    case PROGRESS_INCREASE:
-                        if (seekBar.getProgress() < duration) {
-                            //进度条前进一秒
-                            seekBar.setProgress(time);
-                            seekBar.incrementProgressBy(1000);
-                            seekBarHandler.sendEmptyMessageDelayed(PROGRESS_INCREASE, 1000);
-                            //修改显示当前进度的文本
-                            text_Current.setText(formatTime(time));
-                            time += 1000;
-                        }
-                        break;
-                    case PROGRESS_PAUSE:
-                        seekBarHandler.removeMessages(PROGRESS_INCREASE);
-                        break;
-                    case PROGRESS_RESET:
-                        //重置进度条画面
-                        seekBarHandler.removeMessages(PROGRESS_INCREASE);
-                        seekBar.setProgress(0);
-                        text_Current.setText("00:00");
-                        break;
-                }
-            }
-        };
     }
 
     /**
-     * 内部类，用于播放器状态更新的接收广播
+     * 可见、没有拖动并且正在播放时，每一帧由锚点推算位置刷新进度条，
+     * 否则不安排任何回调
      */
-    class StatusChangedReceiver extends BroadcastReceiver {
+    private void scheduleProgress() {
+        boolean running = visible && !tracking && anchor != null && anchor.getSpeed() != 0;
+        if (running && !progressScheduled) {
+            progressScheduled = true;
+            Choreographer.getInstance().postFrameCallback(progressFrame);
+        } else if (!running && progressScheduled) {
+            progressScheduled = false;
+            Choreographer.getInstance().removeFrameCallback(progressFrame);
+        }
+    }
 
+    private final Choreographer.FrameCallback progressFrame = new Choreographer.FrameCallback() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String musicName = intent.getStringExtra("musicName");
-            String musicArtist = intent.getStringExtra("musicArtist");
+        public void doFrame(long frameTimeNanos) {
+            progressScheduled = false;
+            updateProgress();
+            scheduleProgress();
+        }
+    };
+
+    /**
+     * 按锚点推算当前位置并刷新进度条和文本
+     */
+    private void updateProgress() {
+        if (anchor == null || tracking) {
+            return;
+        }
+        time = anchor.getPositionAt(SystemClock.elapsedRealtime());
+        // 进度条移动不到一个像素时不需要重绘
+        int step = Math.max(1, duration / Math.max(1, seekBar.getWidth()));
+        seekBar.setProgress(time - time % step);
+        // 文本只在秒数变化时更新
+        int second = time / 1000;
+        if (second != shownSecond) {
+            shownSecond = second;
+            text_Current.setText(formatTime(time));
+        }
+    }
+
+    /**
+     * 重置进度条画面
+     */
+    private void resetProgress() {
+        anchor = null;
+        scheduleProgress();
+        seekBar.setProgress(0);
+        shownSecond = -1;
+        text_Current.setText("00:00");
+    }
+
+    /**
+     * 内部类，接收MusicService的播放状态变化
+     */
+    class StatusChangedListener implements MusicService.OnStateChangedListener {
 
+        @Override
+        public void onStateChanged(PlaybackState state, int changed) {
             //获取播放器状态
-            status = intent.getIntExtra("status", -1);
+            status = state.getStatus();
             switch (status) {
                 case MusicService.STATUS_PLAYING:
-                    seekBarHandler.removeMessages(PROGRESS_INCREASE);
-                    time = intent.getIntExtra("time", 0);
-                    duration = intent.getIntExtra("duration", 0);
-                    number = intent.getIntExtra("number", number);
-                    list.setSelection(number);
-                    seekBar.setProgress(time);
-                    seekBar.setMax(duration);
-                    seekBarHandler.sendEmptyMessageDelayed(PROGRESS_INCREASE, 1000L);
-                    text_Duration.setText(formatTime(duration));
-                    imgBtn_PlayOrPause.setBackgroundResource(R.drawable.pause);
-                    //设置textview文字，提示已经播放的歌曲
-                    MainActivity.this.setTitle("正在播放:" + musicName + " - " + musicArtist);
-                    break;
                 case MusicService.STATUS_PAUSED:
-                    seekBarHandler.sendEmptyMessage(PROGRESS_PAUSE);
-                    imgBtn_PlayOrPause.setBackgroundResource(R.drawable.play);
-                    // MainActivity.this.textView.setText(musicArtist + " - " + musicName);
+                    // state中的序号是播放队列中的位置，列表中的位置按歌曲id查找
+                    int position = musicArrayList.indexOfId(state.getTrackId());
+                    if ((changed & PlaybackState.FIELD_TRACK) != 0 && position >= 0) {
+                        if (position != number) {
+                            // 服务切换到了队列中的其他歌曲
+                            number = position;
+                            showArtwork(number);
+                        }
+                        //列表按排序或过滤结果显示，滚动到这首歌在列表中的位置
+                        int listPosition = listAdapter.getPosition(number);
+                        if (listPosition >= 0) {
+                            list.scrollToPosition(listPosition);
+                        }
+                        //设置textview文字，提示已经播放的歌曲
+                        MainActivity.this.setTitle("正在播放:" + musicArrayList.getmusicName(number)
+                                + " - " + musicArrayList.getmusicArtist(number));
+                    }
+                    if ((changed & PlaybackState.FIELD_DURATION) != 0) {
+                        duration = state.getDuration();
+                        seekBar.setMax(duration);
+                        text_Duration.setText(formatTime(duration));
+                    }
+                    if ((changed & (PlaybackState.FIELD_POSITION | PlaybackState.FIELD_STATUS)) != 0) {
+                        // 新的锚点，暂停时速度为0，进度条停止移动
+                        anchor = state;
+                        updateProgress();
+                        scheduleProgress();
+                    }
+                    if ((changed & PlaybackState.FIELD_STATUS) != 0) {
+                        imgBtn_PlayOrPause.setBackgroundResource(status == MusicService.STATUS_PLAYING
+                                ? R.drawable.pause : R.drawable.play);
+                    }
                     break;
                 case MusicService.STATUS_STOPPED:
                     time = 0;
                     duration = 0;
-                    text_Current.setText(formatTime(time));
                     text_Duration.setText(formatTime(duration));
-                    seekBarHandler.sendEmptyMessage(PROGRESS_RESET);
+                    resetProgress();
                     MainActivity.this.setTitle("");
                     imgBtn_PlayOrPause.setBackgroundResource(R.drawable.play);
                     break;
                 case MusicService.STATUS_COMPLETED:
-                    number = intent.getIntExtra("number", 0);
-                    if (number == MusicList.getMusicList().size() - 1)
-                        sendBroadcastOnCommand(MusicService.STATUS_STOPPED);
-                    else
-                        sendBroadcastOnCommand(MusicService.COMMAND_NEXT);
-                    seekBarHandler.sendEmptyMessage(PROGRESS_RESET);
+                    // 服务会自动播放下一首，只有播放完队列最后一首时才会收到
+                    sendCommand(MusicService.COMMAND_STOP);
+                    resetProgress();
                     MainActivity.this.setTitle("");
                     imgBtn_PlayOrPause.setBackgroundResource(R.drawable.play);
                     break;
@@ -676,4 +1156,19 @@ public class MainActivity extends AppCompatActivity {
             }
         }
     }
+
+    /**
+     * 服务连接之前发出的命令，以及发出时的歌曲序号和进度
+     */
+    private static class PendingCommand {
+        final int command;
+        final int number;
+        final int time;
+
+        PendingCommand(int command, int number, int time) {
+            this.command = command;
+            this.number = number;
+            this.time = time;
+        }
+    }
 }
@@ -0,0 +1,287 @@
+package com.huangchao.musicplayer;
+
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.huangchao.musicplayer.data.SortOrders;
+import com.huangchao.musicplayer.data.TrackStore;
+
+import java.util.Arrays;
+
+/**
+ * 歌曲列表适配器，只为可见的行从TrackStore中读取数据，
+ * 副标题在绑定时才拼接。
+ * 适配器保存已经通知给RecyclerView的歌曲id，
+ * 歌曲库变化时用DiffUtil计算增量更新。
+ * 列表按TrackStore中预先计算的排序显示，排序还没有计算好时按原来的顺序；
+ * 设置过滤后只显示过滤结果中的歌曲。列表位置通过getRow转换为TrackStore中的位置。
+ */
+public class MusicListAdapter extends RecyclerView.Adapter<MusicListAdapter.ViewHolder> {
+
+    public interface OnItemClickListener {
+        void onItemClick(int position);
+
+        void onItemLongClick(int position);
+    }
+
+    private final TrackStore tracks;
+    private final OnItemClickListener listener;
+    // 已经通知给RecyclerView的歌曲id
+    private long[] shownIds;
+    private int shownCount;
+    // 排序方式，SortOrders中的常量
+    private int sortKey = SortOrders.SORT_TITLE;
+    // 过滤结果的歌曲id
+    private long[] filterIds;
+    // 列表位置对应的TrackStore位置，按原来的顺序显示全部歌曲时为null
+    private int[] rows;
+    // rows的逆：TrackStore位置对应的列表位置，不显示的为-1，第一次查找时建立
+    private int[] positions;
+    // 按排序筛选过滤结果时标记的位置
+    private boolean[] marks;
+
+    public MusicListAdapter(TrackStore tracks, OnItemClickListener listener) {
+        this.tracks = tracks;
+        this.listener = listener;
+        shownIds = tracks.copyIds();
+        shownCount = shownIds.length;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.listview, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        position = getRow(position);
+        holder.title.setText(tracks.getmusicName(position));
+        StringBuilder subtitle = holder.subtitle;
+        subtitle.setLength(0);
+        subtitle.append(tracks.getmusicArtist(position))
+                .append(" - ")
+                .append(tracks.getMusicAlbum(position));
+        holder.artist.setText(subtitle);
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows != null ? rows.length : shownCount;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return tracks.getMusicId(getRow(position));
+    }
+
+    /**
+     * 列表中的位置对应的TrackStore位置
+     */
+    public int getRow(int position) {
+        return rows != null ? rows[position] : position;
+    }
+
+    /**
+     * TrackStore中的位置在列表中的位置，是getRow的逆。这首歌没有显示时返回-1
+     */
+    public int getPosition(int row) {
+        if (rows == null) {
+            return row >= 0 && row < shownCount ? row : -1;
+        }
+        if (positions == null) {
+            positions = new int[tracks.size()];
+            Arrays.fill(positions, -1);
+            for (int i = 0; i < rows.length; i++) {
+                // 歌曲库已经变小、还没有通知到适配器时跳过越界的位置
+                if (rows[i] < positions.length) {
+                    positions[rows[i]] = i;
+                }
+            }
+        }
+        return row >= 0 && row < positions.length ? positions[row] : -1;
+    }
+
+    /**
+     * 切换排序方式，不过滤时只是换一个排列数组
+     */
+    public void setSortKey(int key) {
+        sortKey = key;
+        updateRows();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * TrackStore中保存了新计算的排序
+     */
+    public void notifySortOrdersChanged() {
+        updateRows();
+        notifyDataSetChanged();
+    }
+
+    /**
+     * 只显示ids中的歌曲，ids为null时显示全部歌曲
+     */
+    public void setFilter(long[] ids) {
+        filterIds = ids;
+        updateRows();
+        notifyDataSetChanged();
+    }
+
+    public boolean isFiltered() {
+        return filterIds != null;
+    }
+
+    /**
+     * 按排序和过滤结果计算显示的位置。过滤结果中已经不在歌曲库中的歌曲去掉，
+     * 有排序时沿排序遍历一次，取出标记过的位置
+     */
+    private void updateRows() {
+        positions = null;
+        int[] order = tracks.getSortOrder(sortKey);
+        if (filterIds == null) {
+            rows = order;
+            return;
+        }
+        int[] found = new int[filterIds.length];
+        int count = 0;
+        for (long id : filterIds) {
+            int row = tracks.indexOfId(id);
+            if (row >= 0) {
+                found[count++] = row;
+            }
+        }
+        if (order != null) {
+            if (marks == null || marks.length < tracks.size()) {
+                marks = new boolean[tracks.size()];
+            }
+            for (int i = 0; i < count; i++) {
+                marks[found[i]] = true;
+            }
+            int sorted = 0;
+            for (int row : order) {
+                if (marks[row]) {
+                    marks[row] = false;
+                    found[sorted++] = row;
+                }
+            }
+        }
+        rows = count == found.length ? found : Arrays.copyOf(found, count);
+    }
+
+    /**
+     * changedIds（已经排序）中歌曲的属性被修改但位置没有变化，只重新绑定这些行，
+     * 连续的行合并为一次通知。排序由notifySortOrdersChanged更新
+     */
+    public void notifyTracksUpdated(long[] changedIds) {
+        int count = getItemCount();
+        int start = -1;
+        for (int position = 0; position <= count; position++) {
+            boolean changed = position < count
+                    && Arrays.binarySearch(changedIds, getItemId(position)) >= 0;
+            if (changed && start < 0) {
+                start = position;
+            } else if (!changed && start >= 0) {
+                notifyItemRangeChanged(start, position - start);
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * TrackStore末尾追加了count首歌曲
+     */
+    public void notifyTracksAppended(int start, int count) {
+        if (shownCount + count > shownIds.length) {
+            shownIds = Arrays.copyOf(shownIds, Math.max(shownCount + count, shownIds.length * 2));
+        }
+        for (int i = start; i < start + count; i++) {
+            shownIds[shownCount++] = tracks.getMusicId(i);
+        }
+        // 过滤或排序时新歌曲等重新查询或排序之后再显示，已有的位置不变
+        if (rows == null) {
+            notifyItemRangeInserted(start, count);
+        }
+    }
+
+    /**
+     * TrackStore被修改后调用，changedIds为内容可能变化的歌曲id，必须已经排序
+     */
+    public void notifyTracksChanged(final long[] changedIds) {
+        if (rows != null) {
+            // 排序已经过期，先按原来的顺序显示，新的排序计算好之后再切换
+            shownIds = tracks.copyIds();
+            shownCount = shownIds.length;
+            updateRows();
+            notifyDataSetChanged();
+            return;
+        }
+        final long[] oldIds = shownIds;
+        final int oldCount = shownCount;
+        final long[] newIds = tracks.copyIds();
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldCount;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newIds.length;
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldIds[oldPosition] == newIds[newPosition];
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return Arrays.binarySearch(changedIds, newIds[newPosition]) < 0;
+            }
+        }, false);
+        shownIds = newIds;
+        shownCount = newIds.length;
+        result.dispatchUpdatesTo(this);
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, View.OnLongClickListener {
+        final TextView title;
+        final TextView artist;
+        // 每一行复用自己的StringBuilder拼接副标题
+        final StringBuilder subtitle = new StringBuilder();
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            title = itemView.findViewById(R.id.listview_tv_title_item);
+            artist = itemView.findViewById(R.id.listview_tv_artist_item);
+            itemView.setOnClickListener(this);
+            itemView.setOnLongClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && listener != null) {
+                listener.onItemClick(position);
+            }
+        }
+
+        @Override
+        public boolean onLongClick(View view) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION || listener == null) {
+                return false;
+            }
+            listener.onItemLongClick(position);
+            return true;
+        }
+    }
+}
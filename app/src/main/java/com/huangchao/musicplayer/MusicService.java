@@ -1,18 +1,33 @@
 package com.huangchao.musicplayer;
 
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
+import android.util.Log;
+import android.view.Choreographer;
 import android.widget.Toast;
 
 import com.huangchao.musicplayer.data.MusicList;
+import com.huangchao.musicplayer.data.PlayQueue;
+import com.huangchao.musicplayer.data.PlayQueueStore;
+import com.huangchao.musicplayer.data.TrackStore;
+import com.huangchao.musicplayer.model.PlaybackState;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MusicService extends Service {
 
@@ -26,6 +41,12 @@ public class MusicService extends Service {
     public static final int COMMAND_NEXT = 5;
     public static final int COMMAND_CHECK_IS_PLAYING = 6;
     public static final int COMMAND_SEEK_TO = 7;
+    public static final int COMMAND_SHUFFLE = 8;
+    public static final int COMMAND_PLAY_NEXT = 9;
+    public static final int COMMAND_ENQUEUE = 10;
+    public static final int COMMAND_MOVE = 11;
+    public static final int COMMAND_REMOVE = 12;
+    public static final int COMMAND_PLAY_ALL = 13;
 
     // 播放器状态̬
     public static final int STATUS_PLAYING = 0;
@@ -33,46 +54,131 @@ public class MusicService extends Service {
     public static final int STATUS_STOPPED = 2;
     public static final int STATUS_COMPLETED = 3;
 
-    // 广播标志
-    public static final String BROADCAST_MUSICSERVICE_CONTROL = "MusicService.ACTION_CONTROL";
-    public static final String BROADCAST_MUSICSERVICE_UPDATE_STATUS = "MusicService.ACTION_UPDATE";
+    private static final String TAG = "MusicService";
+    private static final String QUEUE_FILE = "playqueue";
+    // 播放队列推迟写入的时间，期间的多次修改合并为一次写入
+    private static final long QUEUE_FLUSH_DELAY_MS = 1000;
+
+    // 只在服务内部使用的命令：更新歌曲列表的副本、来电、通话结束
+    private static final int COMMAND_LIBRARY = 100;
+    private static final int COMMAND_CALL_RINGING = 101;
+    private static final int COMMAND_CALL_IDLE = 102;
+
+    // 当前播放器player的状态
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_PREPARED = 2;
+    private static final int STATE_STARTED = 3;
+    private static final int STATE_PAUSED = 4;
+    private static final int STATE_ERROR = 5;
 
-    //歌曲序号，从0开始
+    // 所有MediaPlayer调用都在播放线程上执行，慢的准备和跳转不会卡住界面。
+    // 下面到phone为止的字段只在播放线程读写
+    private HandlerThread playbackThread;
+    private Handler playbackHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // 主线程提交、播放线程执行的命令队列
+    private PlaybackCommandQueue commands;
+    // 播放线程使用的歌曲列表副本，主线程的列表变化后通过COMMAND_LIBRARY更新，
+    // 用来按id查找歌曲的路径和时长
+    private TrackStore tracks = new TrackStore();
+    // 播放队列，保存歌曲id，修改时由queueStore增量写入文件
+    private PlayQueue queue = new PlayQueue();
+    private PlayQueueStore queueStore;
+    // 队列是从歌曲列表点播时整体生成的，歌曲列表变化时队列跟着变化
+    private boolean queueFollowsLibrary;
+    //当前歌曲在队列中的位置，从0开始
     private int number = 0;
     private int status;
-    // 媒体播放类
-    private MediaPlayer player = new MediaPlayer();
-
-    // 广播接收器
-    private CommandReceiver receiver;
+    private int state = STATE_IDLE;
+    // player中加载的歌曲序号和id，number是最后要求播放的歌曲，准备期间两者可能不同
+    private int loadedNumber = -1;
+    private long loadedId = -1;
+    // 准备期间收到的命令：准备完成后是否开始播放，以及要跳转到的位置
+    private boolean pendingStart;
+    private int pendingSeek = -1;
+    // 媒体播放类，当前播放的歌曲。在播放线程上创建，回调也在播放线程
+    private MediaPlayer player;
+    // 在后台准备下一首的播放器，准备好后用setNextMediaPlayer接在player后面，
+    // 当前歌曲播放完时无缝切换，两个播放器交替使用
+    private MediaPlayer nextPlayer;
+    // nextPlayer中的歌曲序号和id，没有时为-1
+    private int nextNumber = -1;
+    private long nextId = -1;
+    private boolean nextPrepared;
+    // 随机播放时上一首、下一首按shuffleOrder的顺序
+    private boolean shuffle;
+    private final ShuffleOrder shuffleOrder = new ShuffleOrder();
     private boolean phone = false;
 
+    // 最近一次交给播放线程的歌曲列表及其版本，只在主线程读写
+    private TrackStore syncedLibrary;
+    private int syncedVersion;
+
+    // 绑定服务的组件通过binder发送命令
+    private final PlaybackBinder binder = new PlaybackBinder();
+    // 状态变化的监听者
+    private final ArrayList<OnStateChangedListener> listeners = new ArrayList<OnStateChangedListener>();
+    // 最近一次发布的状态快照，只在主线程读写
+    private PlaybackState published = new PlaybackState(0, STATUS_STOPPED, -1, -1, 0, 0, 0, 0);
+    // 播放线程最近采集的状态，等待主线程在下一帧发布
+    private volatile PlaybackState latest = published;
+    // 是否已经安排在下一帧发布
+    private final AtomicBoolean publishScheduled = new AtomicBoolean();
+    private TelephonyManager telephonyManager;
+    private final MyPhoneListener phoneListener = new MyPhoneListener();
+
     @Override
     public void onCreate() {
         super.onCreate();
-        // 绑定广播接收器，可以接收广播
-        bindCommandReceiver();
         status = MusicService.STATUS_STOPPED;
+        playbackThread = new HandlerThread("Playback");
+        playbackThread.start();
+        playbackHandler = new Handler(playbackThread.getLooper());
+        // 跳转和列表快照都只需要最后一条，两者互不影响，可以交换顺序
+        commands = new PlaybackCommandQueue(PlaybackCommandQueue.DEFAULT_CAPACITY,
+                new int[]{COMMAND_SEEK_TO, COMMAND_LIBRARY},
+                new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        playbackHandler.post(command);
+                    }
+                }, commandCallback);
+        // 在播放线程上创建播放器，它们的回调才会在播放线程上执行
+        playbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                player = new MediaPlayer();
+                nextPlayer = new MediaPlayer();
+                initPlayer(player);
+                initPlayer(nextPlayer);
+                // 恢复上次的播放队列和位置
+                // 替换队列后的重写和当前位置推迟写入，先开始播放
+                queueStore = new PlayQueueStore(new File(getFilesDir(), QUEUE_FILE),
+                        new Executor() {
+                            @Override
+                            public void execute(Runnable command) {
+                                playbackHandler.postDelayed(command, QUEUE_FLUSH_DELAY_MS);
+                            }
+                        });
+                queue = queueStore.load();
+                number = Math.max(0, Math.min(queueStore.getPosition(), queue.size() - 1));
+            }
+        });
 
         // 来电音乐暂停
-        TelephonyManager telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
-        telephonyManager.listen(new MyPhoneListener(), PhoneStateListener.LISTEN_CALL_STATE);
+        telephonyManager = (TelephonyManager) getSystemService(Context.TELEPHONY_SERVICE);
+        telephonyManager.listen(phoneListener, PhoneStateListener.LISTEN_CALL_STATE);
     }
 
     private final class MyPhoneListener extends PhoneStateListener {
         public void onCallStateChanged(int state, String incomingNumber) {
             switch (state) {
                 case TelephonyManager.CALL_STATE_RINGING:
-                    if (status == MusicService.STATUS_PLAYING) {
-                        pause();
-                        phone = true;
-                    }
+                    submit(COMMAND_CALL_RINGING, 0);
                     break;
                 case TelephonyManager.CALL_STATE_IDLE:
-                    if (phone == true) {
-                        resume();
-                        phone = false;
-                    }
+                    submit(COMMAND_CALL_IDLE, 0);
                     break;
             }
         }
@@ -80,9 +186,27 @@ public class MusicService extends Service {
 
     @Override
     public void onDestroy() {
-        if (player != null) {
-            player.release();
-        }
+        telephonyManager.listen(phoneListener, PhoneStateListener.LISTEN_NONE);
+        commands.close();
+        // 等队列中已经开始的命令执行完，再在播放线程上释放播放器
+        playbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (player != null) {
+                    player.release();
+                }
+                if (nextPlayer != null) {
+                    nextPlayer.release();
+                }
+                if (queueStore != null) {
+                    queueStore.close();
+                }
+            }
+        });
+        playbackThread.quitSafely();
+        listeners.clear();
+        mainHandler.removeCallbacksAndMessages(null);
+        Choreographer.getInstance().removeFrameCallback(publishCallback);
         /*if (status ==MusicService.STATUS_STOPPED){
             stopService(new Intent(this,MusicService.class));
         }*/
@@ -91,103 +215,746 @@ public class MusicService extends Service {
 
     @Override
     public IBinder onBind(Intent arg0) {
-        // TODO Auto-generated method stub
-        return null;
+        return binder;
+    }
+
+    private void submit(int what, int arg) {
+        submit(what, arg, null);
     }
 
     /**
-     * 绑定广播接收器
+     * 从主线程提交命令。歌曲列表在上次提交之后有变化时，先把新的只读快照交给播放线程；
+     * 快照放不进队列时命令也丢弃，不能让播放线程按旧的列表执行
      */
-    private void bindCommandReceiver() {
-        receiver = new CommandReceiver();
-        IntentFilter filter = new IntentFilter(BROADCAST_MUSICSERVICE_CONTROL);
-        registerReceiver(receiver, filter);
+    private void submit(int what, int arg, Object obj) {
+        TrackStore library = MusicList.getMusicList();
+        if (library != syncedLibrary || library.getVersion() != syncedVersion) {
+            if (!commands.offer(COMMAND_LIBRARY, 0, library.snapshot())) {
+                Log.w(TAG, "command " + what + " dropped, library not synced, " + commands);
+                return;
+            }
+            syncedLibrary = library;
+            syncedVersion = library.getVersion();
+        }
+        if (!commands.offer(what, arg, obj)) {
+            Log.w(TAG, "command " + what + " dropped, " + commands);
+        }
     }
 
     /**
-     * 内部类，接收广播命令，并执行操作
+     * 在播放线程上执行队列中的命令
      */
-    class CommandReceiver extends BroadcastReceiver {
-
-        public void onReceive(Context context, Intent intent) {
-            //获取命令
-            int command = intent.getIntExtra("command", COMMAND_UNKNOWN);
-            //执行命令
-            switch (command) {
-                case COMMAND_SEEK_TO:
-                    seekTo(intent.getIntExtra("time", 0));
+    private final PlaybackCommandQueue.Callback commandCallback = new PlaybackCommandQueue.Callback() {
+        @Override
+        public void onCommand(int what, int arg, Object obj) {
+            switch (what) {
+                case COMMAND_LIBRARY:
+                    setTracks((TrackStore) obj);
                     break;
                 case COMMAND_PLAY:
-                    number = intent.getIntExtra("number", 0);
-                    play(number);
+                    playFromLibrary(arg, (int[]) obj);
                     break;
-                case COMMAND_PREVIOUS:
-                    moveNumberToPrevious();
+                case COMMAND_PLAY_ALL:
+                    playAll((long[]) obj, arg);
                     break;
-                case COMMAND_NEXT:
-                    moveNumberToNext();
+                case COMMAND_PLAY_NEXT:
+                    // 队列为空时插入到开头
+                    insertTracks(queue.isEmpty() ? 0 : number + 1, (long[]) obj, true);
+                    break;
+                case COMMAND_ENQUEUE:
+                    insertTracks(queue.size(), (long[]) obj, false);
+                    break;
+                case COMMAND_MOVE:
+                    moveTrack(arg, (Integer) obj);
+                    break;
+                case COMMAND_REMOVE:
+                    removeTracks(arg, 1);
                     break;
                 case COMMAND_PAUSE:
                     pause();
                     break;
+                case COMMAND_RESUME:
+                    resume();
+                    break;
                 case COMMAND_STOP:
                     stop();
                     break;
-                case COMMAND_RESUME:
-                    resume();
+                case COMMAND_NEXT:
+                    moveNumberToNext();
+                    break;
+                case COMMAND_PREVIOUS:
+                    moveNumberToPrevious();
+                    break;
+                case COMMAND_SEEK_TO:
+                    seekTo(arg);
+                    break;
+                case COMMAND_SHUFFLE:
+                    setShuffle(arg != 0);
                     break;
-                case COMMAND_CHECK_IS_PLAYING:
-                    if (player != null && player.isPlaying()) {
-                        sendBroadcastOnStatusChanged(MusicService.STATUS_PLAYING);
+                case COMMAND_CALL_RINGING:
+                    if (status == MusicService.STATUS_PLAYING) {
+                        pause();
+                        phone = true;
+                    }
+                    break;
+                case COMMAND_CALL_IDLE:
+                    if (phone == true) {
+                        resume();
+                        phone = false;
                     }
                     break;
-                case COMMAND_UNKNOWN:
                 default:
                     break;
             }
         }
+    };
+
+    /**
+     * 在主线程显示提示
+     */
+    private void showToast(final String text) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(MusicService.this, text, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * 状态有变化，在播放线程上采集新的快照，由主线程在下一帧发布。
+     * 同一帧内的多次变化（例如跳转之后恢复播放）合并为一次发布
+     */
+    private void schedulePublish() {
+        latest = captureState();
+        if (!publishScheduled.getAndSet(true)) {
+            mainHandler.post(postPublishFrame);
+        }
     }
 
+    private final Runnable postPublishFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(publishCallback);
+        }
+    };
+
+    private final Choreographer.FrameCallback publishCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // 先清除标志，之后采集的状态会再安排一帧
+            publishScheduled.set(false);
+            publishState();
+        }
+    };
+
     /**
-     * 发送广播，提醒状态改变了
+     * 与上次发布的快照比较，有字段变化时才通知监听者
      */
-    private void sendBroadcastOnStatusChanged(int status) {
-        Intent intent = new Intent(BROADCAST_MUSICSERVICE_UPDATE_STATUS);
-        intent.putExtra("status", status);
-        if (status != STATUS_STOPPED) {
-            intent.putExtra("time", player.getCurrentPosition());
-            intent.putExtra("duration", player.getDuration());
-            intent.putExtra("number", number);
-            intent.putExtra("musicName", MusicList.getMusicList().get(number).getmusicName());
-            intent.putExtra("musicArtist", MusicList.getMusicList().get(number).getmusicArtist());
+    private void publishState() {
+        PlaybackState next = latest;
+        int changed = next.diff(published);
+        if (changed == 0) {
+            return;
+        }
+        published = next.withVersion(published.getVersion() + 1);
+        // 复制一份，回调中可以注销监听者
+        OnStateChangedListener[] targets =
+                listeners.toArray(new OnStateChangedListener[listeners.size()]);
+        for (OnStateChangedListener listener : targets) {
+            listener.onStateChanged(published, changed);
         }
-        sendBroadcast(intent);
     }
 
     /**
-     * 读取音乐文件
+     * 在播放线程读取当前的播放状态，正在播放时以现在为锚点，版本号在发布时分配
+     */
+    private PlaybackState captureState() {
+        long now = SystemClock.elapsedRealtime();
+        if (status == STATUS_STOPPED || number >= queue.size()) {
+            return new PlaybackState(0, status, -1, -1, 0, now, 0, 0);
+        }
+        int time;
+        int duration;
+        if (state == STATE_PREPARED || state == STATE_STARTED || state == STATE_PAUSED) {
+            time = player.getCurrentPosition();
+            duration = player.getDuration();
+        } else {
+            // 准备完成之前不能读取播放器的进度，时长先用歌曲库中的
+            time = Math.max(0, pendingSeek);
+            int index = tracks.indexOfId(queue.get(number));
+            duration = index >= 0 ? tracks.getmusicDuration(index) : 0;
+        }
+        // 只有真正在播放时位置才会前进，准备期间和暂停时速度为0
+        float speed = state == STATE_STARTED ? 1f : 0f;
+        return new PlaybackState(0, status, number, queue.get(number), time, now,
+                speed, duration);
+    }
+
+    /**
+     * 播放状态的监听者，在主线程回调。
+     * changedFields为与上一次回调相比变化了的字段，PlaybackState.FIELD_*的组合
+     */
+    public interface OnStateChangedListener {
+        void onStateChanged(PlaybackState state, int changedFields);
+    }
+
+    /**
+     * 同一进程内使用的Binder，不经过广播。
+     * 所有方法都必须在主线程调用，播放命令进入队列后立即返回
+     */
+    public class PlaybackBinder extends Binder {
+
+        /**
+         * 播放歌曲列表中的第position首，队列替换为整个歌曲列表。
+         * order是列表显示的排序（TrackStore.getSortOrder的结果），
+         * 队列按这个顺序排列；为null时按歌曲列表本身的顺序
+         */
+        public void play(int position, int[] order) {
+            submit(COMMAND_PLAY, position, order);
+        }
+
+        /**
+         * 队列替换为ids并播放其中的第position首，例如播放整张专辑。
+         * 提交之后调用者不能再修改ids，下同
+         */
+        public void playAll(long[] ids, int position) {
+            submit(COMMAND_PLAY_ALL, position, ids);
+        }
+
+        /**
+         * 插入到当前歌曲之后，随机播放时也在当前歌曲之后依次播放
+         */
+        public void playNext(long[] ids) {
+            submit(COMMAND_PLAY_NEXT, 0, ids);
+        }
+
+        /**
+         * 追加到队列末尾，例如MusicUtils.getSongListForAlbum的结果
+         */
+        public void addToQueue(long[] ids) {
+            submit(COMMAND_ENQUEUE, 0, ids);
+        }
+
+        public void moveQueueItem(int from, int to) {
+            submit(COMMAND_MOVE, from, to);
+        }
+
+        public void removeQueueItem(int position) {
+            submit(COMMAND_REMOVE, position);
+        }
+
+        public void pause() {
+            submit(COMMAND_PAUSE, 0);
+        }
+
+        public void resume() {
+            submit(COMMAND_RESUME, 0);
+        }
+
+        public void stop() {
+            submit(COMMAND_STOP, 0);
+        }
+
+        public void next() {
+            submit(COMMAND_NEXT, 0);
+        }
+
+        public void previous() {
+            submit(COMMAND_PREVIOUS, 0);
+        }
+
+        /**
+         * 连续的跳转在队列中合并，只执行最后一次
+         */
+        public void seekTo(int time) {
+            submit(COMMAND_SEEK_TO, time);
+        }
+
+        /**
+         * 打开或关闭随机播放，打开时从当前歌曲开始新的一轮
+         */
+        public void setShuffle(boolean enabled) {
+            submit(COMMAND_SHUFFLE, enabled ? 1 : 0);
+        }
+
+        /**
+         * 注册监听者，并立即回调一次最近发布的快照，所有字段都算作变化
+         */
+        public void registerListener(OnStateChangedListener listener) {
+            if (!listeners.contains(listener)) {
+                listeners.add(listener);
+            }
+            listener.onStateChanged(published, PlaybackState.FIELD_ALL);
+        }
+
+        public PlaybackState getState() {
+            return published;
+        }
+
+        public void unregisterListener(OnStateChangedListener listener) {
+            listeners.remove(listener);
+        }
+
+        /**
+         * 命令队列的深度和等待时间统计
+         */
+        public String getCommandStats() {
+            return commands.toString();
+        }
+    }
+
+    /**
+     * 为播放器注册监听器，两个播放器交替使用，监听器中需要判断是哪一个
+     */
+    private void initPlayer(MediaPlayer mp) {
+        mp.setOnCompletionListener(completionListener);
+        mp.setOnPreparedListener(preparedListener);
+        mp.setOnErrorListener(errorListener);
+    }
+
+    /**
+     * 异步读取音乐文件，准备完成后在onPrepared中继续
      */
     private void load(int number) {
+        clearNext();
+        player.reset();
+        state = STATE_IDLE;
+        loadedNumber = number;
+        loadedId = queue.get(number);
+        String path = pathOf(number);
+        if (path == null) {
+            // 队列中的歌曲已经不在歌曲列表中
+            onPlaybackError();
+            return;
+        }
         try {
-            player.reset();
-            player.setDataSource(MusicList.getMusicList().get(number).getmusicPath());
-            player.prepare();
+            player.setDataSource(path);
+            player.prepareAsync();
+            state = STATE_PREPARING;
+        } catch (Exception e) {
+            Log.w(TAG, "cannot load track " + number, e);
+            onPlaybackError();
+        }
+    }
+
+    /**
+     * player中是否是这首歌曲，歌曲列表在加载之后变化时不算
+     */
+    private boolean isLoaded(int number) {
+        return state != STATE_IDLE && state != STATE_ERROR
+                && loadedNumber == number && number < queue.size()
+                && queue.get(number) == loadedId;
+    }
+
+    /**
+     * 当前歌曲之后要播放的歌曲，没有时返回-1
+     */
+    private int followingNumber() {
+        if (shuffle) {
+            return shuffleOrder.peekNext();
+        }
+        return number + 1 < queue.size() ? number + 1 : -1;
+    }
+
+    /**
+     * 队列中position处歌曲的路径，歌曲不在歌曲列表中时返回null
+     */
+    private String pathOf(int position) {
+        int index = tracks.indexOfId(queue.get(position));
+        return index >= 0 ? tracks.getmusicPath(index) : null;
+    }
+
+    private void setShuffle(boolean enabled) {
+        if (shuffle == enabled) {
+            return;
+        }
+        shuffle = enabled;
+        shuffleOrder.reset(enabled ? queue.size() : 0, status == STATUS_STOPPED ? -1 : number);
+        if (state == STATE_PREPARED || state == STATE_STARTED || state == STATE_PAUSED) {
+            // 衔接的下一首已经改变
+            prepareNext();
+        }
+    }
+
+    /**
+     * 更换歌曲列表的副本。队列跟随歌曲列表时，只在末尾增加了歌曲的列表追加到队列，
+     * 其他变化重新生成队列，当前歌曲已经不在列表中时停止播放
+     */
+    private void setTracks(TrackStore library) {
+        tracks = library;
+        if (!queueFollowsLibrary || sameAsLibrary(null)) {
+            return;
+        }
+        int count = queue.size();
+        boolean appended = library.size() >= count;
+        for (int i = 0; appended && i < count; i++) {
+            appended = library.getMusicId(i) == queue.get(i);
+        }
+        if (appended) {
+            long[] ids = library.copyIds();
+            insertTracks(count, Arrays.copyOfRange(ids, count, ids.length), false);
+            queueFollowsLibrary = true;
+            return;
+        }
+        long currentId = number < count ? queue.get(number) : -1;
+        int current = library.indexOfId(currentId);
+        if (current < 0 && status != STATUS_STOPPED) {
+            stop();
+        }
+        replaceQueue(library.copyIds(), Math.max(current, 0));
+        queueFollowsLibrary = true;
+    }
+
+    /**
+     * 队列与按order排列的歌曲列表是否相同，order为null时按歌曲列表本身的顺序
+     */
+    private boolean sameAsLibrary(int[] order) {
+        if (queue.size() != tracks.size()) {
+            return false;
+        }
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i) != tracks.getMusicId(order == null ? i : order[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 用ids替换队列，当前位置改为position。
+     * 播放器中的歌曲按id判断是否还有效，同一首歌在同一位置时不需要重新加载
+     */
+    private void replaceQueue(long[] ids, int position) {
+        queue.setAll(ids);
+        number = Math.max(0, Math.min(position, ids.length - 1));
+        if (shuffle) {
+            shuffleOrder.reset(queue.size(), status == STATUS_STOPPED ? -1 : number);
+        }
+        queueStore.setPosition(number);
+        if (state == STATE_PREPARED || state == STATE_STARTED || state == STATE_PAUSED) {
+            prepareNext();
+        }
+        schedulePublish();
+    }
+
+    /**
+     * 播放歌曲列表中的第row首，队列不是按order排列的整个歌曲列表时先替换。
+     * 只有按歌曲列表本身的顺序时队列才跟随列表变化，
+     * 按显示的排序生成的队列与playAll一样固定下来
+     */
+    private void playFromLibrary(int row, int[] order) {
+        if (row >= tracks.size()) {
+            return;
+        }
+        if (order != null && order.length != tracks.size()) {
+            // 排序与播放线程的列表副本不一致，按列表本身的顺序播放
+            order = null;
+        }
+        int position = order == null ? row : positionInOrder(order, row);
+        if (order == null ? !queueFollowsLibrary || !sameAsLibrary(null) : !sameAsLibrary(order)) {
+            replaceQueue(libraryIds(order), position);
+        }
+        queueFollowsLibrary = order == null;
+        playAt(position);
+    }
+
+    private static int positionInOrder(int[] order, int row) {
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] == row) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 按order排列的歌曲列表的id
+     */
+    private long[] libraryIds(int[] order) {
+        if (order == null) {
+            return tracks.copyIds();
+        }
+        long[] ids = new long[order.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = tracks.getMusicId(order[i]);
+        }
+        return ids;
+    }
+
+    private void playAll(long[] ids, int position) {
+        queueFollowsLibrary = false;
+        replaceQueue(ids, position);
+        if (position < queue.size()) {
+            playAt(position);
+        } else {
+            stop();
+        }
+    }
+
+    /**
+     * 用户直接选择了队列中的一首
+     */
+    private void playAt(int position) {
+        if (shuffle) {
+            shuffleOrder.jumpTo(position);
+        }
+        play(position);
+    }
+
+    /**
+     * 在队列的position处插入ids，next为true时随机播放也紧接着当前歌曲播放
+     */
+    private void insertTracks(int position, long[] ids, boolean next) {
+        if (ids.length == 0) {
+            return;
+        }
+        queueFollowsLibrary = false;
+        queue.insert(position, ids);
+        if (shuffle) {
+            if (next) {
+                shuffleOrder.insertAfterCurrent(position, ids.length);
+            } else {
+                shuffleOrder.insert(position, ids.length);
+            }
+        }
+        number = PlayQueue.positionAfterInsert(number, position, ids.length);
+        loadedNumber = PlayQueue.positionAfterInsert(loadedNumber, position, ids.length);
+        if (nextNumber >= 0) {
+            nextNumber = PlayQueue.positionAfterInsert(nextNumber, position, ids.length);
+        }
+        onQueueChanged();
+    }
+
+    /**
+     * 移除队列中[position, position + count)的歌曲。
+     * 当前歌曲被移除时，正在播放则接着播放移除之后排在这个位置的歌曲
+     */
+    private void removeTracks(int position, int count) {
+        if (position < 0 || count <= 0 || position + count > queue.size()) {
+            return;
+        }
+        queueFollowsLibrary = false;
+        boolean removesCurrent = number >= position && number < position + count;
+        boolean wasPlaying = status == STATUS_PLAYING;
+        if (removesCurrent) {
+            stop();
+        }
+        queue.remove(position, count);
+        if (shuffle) {
+            for (int i = 0; i < count; i++) {
+                shuffleOrder.remove(position);
+            }
+        }
+        loadedNumber = PlayQueue.positionAfterRemove(loadedNumber, position, count);
+        if (nextNumber >= 0) {
+            nextNumber = PlayQueue.positionAfterRemove(nextNumber, position, count);
+            if (nextNumber < 0) {
+                clearNext();
+            }
+        }
+        if (!removesCurrent) {
+            number = PlayQueue.positionAfterRemove(number, position, count);
+            onQueueChanged();
+            return;
+        }
+        number = Math.max(0, Math.min(position, queue.size() - 1));
+        queueStore.setPosition(number);
+        if (wasPlaying && !queue.isEmpty()) {
+            playAt(number);
+        } else {
+            schedulePublish();
+        }
+    }
+
+    private void moveTrack(int from, int to) {
+        if (from < 0 || from >= queue.size() || to < 0 || to >= queue.size()) {
+            return;
+        }
+        queueFollowsLibrary = false;
+        queue.move(from, to);
+        if (shuffle) {
+            shuffleOrder.move(from, to);
+        }
+        number = PlayQueue.positionAfterMove(number, from, to);
+        loadedNumber = PlayQueue.positionAfterMove(loadedNumber, from, to);
+        if (nextNumber >= 0) {
+            nextNumber = PlayQueue.positionAfterMove(nextNumber, from, to);
+        }
+        onQueueChanged();
+    }
+
+    /**
+     * 队列插入、移除或移动之后，当前歌曲的位置和下一首可能变化
+     */
+    private void onQueueChanged() {
+        queueStore.setPosition(number);
+        if (state == STATE_PREPARED || state == STATE_STARTED || state == STATE_PAUSED) {
+            prepareNext();
+        }
+        schedulePublish();
+    }
+
+    /**
+     * 当前歌曲准备完成，执行准备期间收到的跳转和播放/暂停命令
+     */
+    private void onTrackReady() {
+        if (pendingSeek >= 0) {
+            player.seekTo(pendingSeek);
+            pendingSeek = -1;
+        }
+        if (pendingStart) {
+            if (!player.isPlaying()) {
+                player.start();
+            }
+            state = STATE_STARTED;
+            status = MusicService.STATUS_PLAYING;
+        } else {
+            status = MusicService.STATUS_PAUSED;
+        }
+        schedulePublish();
+        prepareNext();
+    }
+
+    /**
+     * 当前歌曲无法播放
+     */
+    private void onPlaybackError() {
+        state = STATE_ERROR;
+        clearNext();
+        status = MusicService.STATUS_STOPPED;
+        showToast("无法播放这首歌曲");
+        schedulePublish();
+    }
+
+    /**
+     * 在nextPlayer中异步准备当前歌曲的下一首，已经在准备时不重复准备
+     */
+    private void prepareNext() {
+        int following = followingNumber();
+        if (following < 0) {
+            clearNext();
+            return;
+        }
+        long followingId = queue.get(following);
+        if (following == nextNumber && followingId == nextId) {
+            return;
+        }
+        clearNext();
+        try {
+            String path = pathOf(following);
+            if (path == null) {
+                throw new IllegalStateException("track not in library: " + followingId);
+            }
+            nextPlayer.setDataSource(path);
+            nextNumber = following;
+            nextId = followingId;
+            nextPlayer.prepareAsync();
         } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            Log.w(TAG, "cannot prepare next track " + following, e);
+            clearNext();
         }
-        //注册监听器
-        player.setOnCompletionListener(completionListener);
     }
 
+    /**
+     * 取消下一首的衔接并重置nextPlayer
+     */
+    private void clearNext() {
+        if (nextPrepared) {
+            try {
+                player.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+                // 当前播放器已经停止
+            }
+        }
+        nextPlayer.reset();
+        nextNumber = -1;
+        nextId = -1;
+        nextPrepared = false;
+    }
+
+    /**
+     * number正好是nextPlayer中的歌曲时交换两个播放器，省去一次准备。
+     * nextPlayer可能已经准备好、正在准备，或者已经由MediaPlayer衔接开始播放
+     */
+    private boolean adoptNext(int number) {
+        if (number != nextNumber || number >= queue.size()
+                || queue.get(number) != nextId) {
+            return false;
+        }
+        MediaPlayer previous = player;
+        player = nextPlayer;
+        nextPlayer = previous;
+        // 停止原来的歌曲，同时解除它与新player的衔接
+        nextPlayer.reset();
+        state = nextPrepared ? STATE_PREPARED : STATE_PREPARING;
+        loadedNumber = nextNumber;
+        loadedId = nextId;
+        nextNumber = -1;
+        nextId = -1;
+        nextPrepared = false;
+        return true;
+    }
+
+    private final MediaPlayer.OnPreparedListener preparedListener = new MediaPlayer.OnPreparedListener() {
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            if (mp == player) {
+                if (state != STATE_PREPARING) {
+                    return;
+                }
+                if (!isLoaded(number)) {
+                    // 准备期间又切换了歌曲，这次准备作废，只加载最后选择的一首
+                    load(number);
+                    return;
+                }
+                state = STATE_PREPARED;
+                onTrackReady();
+            } else if (mp == nextPlayer && nextNumber >= 0) {
+                nextPrepared = true;
+                if (state == STATE_PREPARED || state == STATE_STARTED || state == STATE_PAUSED) {
+                    // 当前歌曲播放完时由MediaPlayer直接开始nextPlayer，中间没有停顿
+                    player.setNextMediaPlayer(nextPlayer);
+                }
+            }
+        }
+    };
+
+    private final MediaPlayer.OnErrorListener errorListener = new MediaPlayer.OnErrorListener() {
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.w(TAG, "MediaPlayer error " + what + ", " + extra);
+            if (mp == nextPlayer) {
+                // 下一首准备失败，到时候再按普通方式加载
+                clearNext();
+            } else if (state == STATE_PREPARING && !isLoaded(number)) {
+                // 出错的是已经作废的准备
+                load(number);
+            } else {
+                onPlaybackError();
+            }
+            // 已经处理，不再回调onCompletion
+            return true;
+        }
+    };
+
     //播放结束监听器
     OnCompletionListener completionListener = new OnCompletionListener() {
         @Override
-        public void onCompletion(MediaPlayer player) {
-            if (player.isLooping()) {
+        public void onCompletion(MediaPlayer mp) {
+            if (mp != player || state != STATE_STARTED) {
+                return;
+            }
+            if (mp.isLooping()) {
                 replay();
+            } else if (followingNumber() >= 0) {
+                // 下一首已经衔接时nextPlayer已经开始播放，play只交换播放器
+                play(shuffle ? shuffleOrder.next() : number + 1);
             } else {
-                sendBroadcastOnStatusChanged(MusicService.STATUS_COMPLETED);
+                // 播放完成后可以重新start，和暂停一样处理
+                state = STATE_PAUSED;
+                status = MusicService.STATUS_COMPLETED;
+                schedulePublish();
             }
         }
     };
@@ -196,12 +963,20 @@ public class MusicService extends Service {
      * 选择下一首
      */
     private void moveNumberToNext() {
+        if (shuffle) {
+            int following = shuffleOrder.next();
+            if (following < 0) {
+                showToast("随机播放已经播完所有歌曲");
+            } else {
+                play(following);
+            }
+            return;
+        }
         // 判断是否到达列表底端
-        if ((number) == MusicList.getMusicList().size() - 1) {
-            Toast.makeText(MusicService.this, "已达到列表底端", Toast.LENGTH_SHORT).show();
+        if ((number) == queue.size() - 1) {
+            showToast("已达到列表底端");
         } else {
-            ++number;
-            play(number);
+            play(number + 1);
         }
     }
 
@@ -209,38 +984,65 @@ public class MusicService extends Service {
      * 选择上一首
      */
     private void moveNumberToPrevious() {
+        if (shuffle) {
+            int previous = shuffleOrder.previous();
+            if (previous < 0) {
+                showToast("已达到随机播放的第一首");
+            } else {
+                play(previous);
+            }
+            return;
+        }
         // 判断是否到达列表顶端
         if (number == 0) {
-            Toast.makeText(MusicService.this, "已达到列表顶端", Toast.LENGTH_SHORT).show();
+            showToast("已达到列表顶端");
         } else {
-            --number;
-            play(number);
+            play(number - 1);
         }
     }
 
     /**
-     * 播放音乐
+     * 播放音乐。正在准备其他歌曲时不打断它，只记下要播放的歌曲，
+     * 所以快速连续切歌只会多准备一次
      */
     private void play(int number) {
-        // ֹֹͣͣ停止当前播放
-        if (player != null && player.isPlaying()) {
-            player.stop();
+        boolean restart = isLoaded(number) && state != STATE_PREPARING;
+        this.number = number;
+        queueStore.setPosition(number);
+        pendingStart = true;
+        // 重新选择正在播放的歌曲时从头播放
+        pendingSeek = restart ? 0 : -1;
+        if (state == STATE_PREPARING) {
+            // 等待onPrepared，过期的准备在那里被替换
+            status = MusicService.STATUS_PLAYING;
+            schedulePublish();
+            return;
+        }
+        if (!restart && !adoptNext(number)) {
+            load(number);
+        }
+        if (state == STATE_PREPARING) {
+            status = MusicService.STATUS_PLAYING;
+            schedulePublish();
+        } else if (state != STATE_ERROR) {
+            onTrackReady();
         }
-        load(number);
-        player.start();
-        status = MusicService.STATUS_PLAYING;
-        sendBroadcastOnStatusChanged(MusicService.STATUS_PLAYING);
     }
 
     /**
-     * 暂停音乐
+     * 暂停音乐，准备期间收到时准备完成后不开始播放
      */
     private void pause() {
-        if (player.isPlaying()) {
+        if (state == STATE_STARTED) {
             player.pause();
-            status = MusicService.STATUS_PAUSED;
-            sendBroadcastOnStatusChanged(MusicService.STATUS_PAUSED);
+            state = STATE_PAUSED;
+        } else if (state == STATE_PREPARING) {
+            pendingStart = false;
+        } else {
+            return;
         }
+        status = MusicService.STATUS_PAUSED;
+        schedulePublish();
     }
 
     /**
@@ -248,19 +1050,41 @@ public class MusicService extends Service {
      */
     private void stop() {
         if (status != MusicService.STATUS_STOPPED) {
-            player.stop();
+            clearNext();
+            player.reset();
+            state = STATE_IDLE;
             status = MusicService.STATUS_STOPPED;
-            sendBroadcastOnStatusChanged(MusicService.STATUS_STOPPED);
+            schedulePublish();
         }
     }
 
     /**
-     * 恢复播放（暂停之后）
+     * 恢复播放（暂停之后），停止之后重新加载当前歌曲
      */
     private void resume() {
-        player.start();
-        status = MusicService.STATUS_PLAYING;
-        sendBroadcastOnStatusChanged(MusicService.STATUS_PLAYING);
+        switch (state) {
+            case STATE_PREPARED:
+            case STATE_PAUSED:
+                pendingStart = true;
+                onTrackReady();
+                break;
+            case STATE_PREPARING:
+                pendingStart = true;
+                status = MusicService.STATUS_PLAYING;
+                schedulePublish();
+                break;
+            case STATE_IDLE:
+            case STATE_ERROR:
+                if (number < queue.size()) {
+                    play(number);
+                } else {
+                    // 还没有播放队列，从歌曲列表的第一首开始
+                    playFromLibrary(0, null);
+                }
+                break;
+            default:
+                break;
+        }
     }
 
     /**
@@ -269,10 +1093,20 @@ public class MusicService extends Service {
     private void replay() {
         player.start();
         status = MusicService.STATUS_PLAYING;
-        sendBroadcastOnStatusChanged(MusicService.STATUS_PLAYING);
+        schedulePublish();
     }
 
+    /**
+     * 跳转，准备期间收到时准备完成后再跳转
+     */
     private void seekTo(int time) {
-        player.seekTo(time);
+        if (state == STATE_PREPARED || state == STATE_STARTED || state == STATE_PAUSED) {
+            player.seekTo(time);
+        } else if (state == STATE_PREPARING) {
+            pendingSeek = time;
+        } else {
+            return;
+        }
+        schedulePublish();
     }
 }
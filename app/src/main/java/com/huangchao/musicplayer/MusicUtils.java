@@ -27,66 +27,58 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.ColorFilter;
-import android.graphics.PixelFormat;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.util.LruCache;
 
+import com.huangchao.musicplayer.data.AudioTags;
+import com.huangchao.musicplayer.data.TagReader;
+
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class MusicUtils {
     private static final String TAG = "MusicUtils";
-    //cache the artwork to avoid the bitmap is released when the quick view the songs in play panel
-    private final static int MAX_ARTWORK_CACHE_SIZE = 40;
     private final static long[] sEmptyList = new long[0];
-    private static final BitmapFactory.Options sBitmapOptionsCache = new BitmapFactory.Options();
-    private static final BitmapFactory.Options sBitmapOptions = new BitmapFactory.Options();
     private static final Uri sArtworkUri = Uri
             .parse("content://media/external/audio/albumart");
-    private static final LruCache<Long, Drawable> sArtCache = new LruCache<Long, Drawable>(20);
     // get album art for specified file
     private static final String sExternalMediaUri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI.toString();
-    // decoding and caching 20 bitmaps to overcome Out of memory exception.
-    public static LruCache<String, Bitmap[]> mArtCache =
-            new LruCache<String, Bitmap[]>(20);
-    public static LruCache<String, Bitmap> mFolderCache = new LruCache<String, Bitmap>(
-            20);
-    public static LruCache<String, Bitmap[]> mAlbumArtCache =
-            new LruCache<String, Bitmap[]>(20);
     public static HashMap<Integer, Cursor> cur = new HashMap<Integer, Cursor>();
     public static boolean mIsScreenOff = false;
-    static Bitmap mAlbumArtsArray[];
-    static Bitmap mAlbumArtWorkCacheArray[] = new Bitmap[MAX_ARTWORK_CACHE_SIZE];
-    private static int counter = 0;
     private static ContentValues[] sContentValuesCache = null;
+    // Guards sContentValuesCache, which is filled in place for every chunk
+    private static final Object sContentValuesLock = new Object();
+    // Rows per bulkInsert() when adding to a playlist. Keeps each binder
+    // transaction far below the 1MB limit however many ids are added.
+    private static final int PLAYLIST_INSERT_CHUNK = 1000;
     /////////////////////////////////////////////////////////////////////////////////////////
     private static int sArtId = -2;
-    private static Bitmap sCachedBitAlbum = null;
-    private static Bitmap sCachedBitSong = null;
-    private static long sLastSong = -1;
-    private static long sLastAlbum = -1;
     private static int sArtCacheId = -1;
 
-    static {
-        // for the cache,
+    // Every decode gets its own Options: inJustDecodeBounds, inSampleSize and
+    // inBitmap are written during a decode, so a shared instance is not safe
+    // once artwork is decoded on more than one thread.
+    private static BitmapFactory.Options newArtworkOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
         // 565 is faster to decode and display
         // and we don't want to dither here because the image will be scaled
         // down later
-        sBitmapOptionsCache.inPreferredConfig = Bitmap.Config.RGB_565;
-        sBitmapOptionsCache.inDither = false;
-
-        sBitmapOptions.inPreferredConfig = Bitmap.Config.RGB_565;
-        sBitmapOptions.inDither = false;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inDither = false;
+        return options;
     }
 
     public static <K, V> V getFromLruCache(K key, LruCache<K, V> lruCache) {
@@ -105,42 +97,126 @@ public class MusicUtils {
         return lruCache.put(key, value);
     }
 
-    private static void addDateToCache(String artistName,
-                                       Bitmap[] mAlbumArtsArray2) {
-        MusicUtils.putIntoLruCache(artistName, mAlbumArtsArray2, mArtCache);
+    public static long[] getSongListForCursor(Cursor cursor) {
+        if (cursor == null) {
+            return sEmptyList;
+        }
+        // Don't ask for getCount() up front: it makes the cursor fill windows
+        // over the whole result before the first id can be read. Grow instead.
+        SongIdReader reader = new SongIdReader(cursor);
+        long[] list = new long[SongIdReader.BATCH_SIZE];
+        int len = 0;
+        int n;
+        while ((n = reader.read(list, len, Math.min(SongIdReader.BATCH_SIZE, list.length - len))) > 0) {
+            len += n;
+            if (len == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+        }
+        return len == 0 ? sEmptyList : Arrays.copyOf(list, len);
     }
 
-    public static void addArtworkToCache(Bitmap bitmap) {
-        if (counter == MAX_ARTWORK_CACHE_SIZE) {
-            counter = 0;
+    /**
+     * Streams the audio ids of a cursor in batches, so a caller can start
+     * using the first ids while the cursor is still filling later windows.
+     * The cursor should project only the id column. The reader does not
+     * close the cursor unless close() is called.
+     */
+    public static class SongIdReader {
+        // ids per batch; a window of bare ids holds many more, but this keeps
+        // the first batch quick to deliver
+        public static final int BATCH_SIZE = 1024;
+
+        private final Cursor mCursor;
+        private final int mColumn;
+        private boolean mDone;
+
+        public SongIdReader(Cursor cursor) {
+            mCursor = cursor;
+            int colidx;
+            try {
+                colidx = cursor.getColumnIndexOrThrow(MediaStore.Audio.Playlists.Members.AUDIO_ID);
+            } catch (IllegalArgumentException ex) {
+                colidx = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            }
+            mColumn = colidx;
+        }
+
+        /**
+         * Reads up to len ids into buffer starting at offset.
+         *
+         * @return the number of ids read, 0 once the cursor is exhausted
+         */
+        public int read(long[] buffer, int offset, int len) {
+            int n = 0;
+            while (!mDone && n < len) {
+                if (!mCursor.moveToNext()) {
+                    mDone = true;
+                    break;
+                }
+                buffer[offset + n++] = mCursor.getLong(mColumn);
+            }
+            return n;
         }
-        mAlbumArtWorkCacheArray[counter++] = bitmap;
-    }
 
-    public static long[] getSongListForCursor(Cursor cursor) {
-        if (cursor == null) {
-            return sEmptyList;
+        /**
+         * @return the next batch of at most BATCH_SIZE ids, or null at the end
+         */
+        public long[] nextBatch() {
+            long[] batch = new long[BATCH_SIZE];
+            int n = read(batch, 0, BATCH_SIZE);
+            if (n == 0) {
+                return null;
+            }
+            return n == BATCH_SIZE ? batch : Arrays.copyOf(batch, n);
         }
-        int len = cursor.getCount();
-        long[] list = new long[len];
-        cursor.moveToFirst();
-        int colidx = -1;
-        try {
-            colidx = cursor.getColumnIndexOrThrow(MediaStore.Audio.Playlists.Members.AUDIO_ID);
-        } catch (IllegalArgumentException ex) {
-            colidx = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+
+        public void close() {
+            mCursor.close();
         }
-        for (int i = 0; i < len; i++) {
-            list[i] = cursor.getLong(colidx);
-            cursor.moveToNext();
+    }
+
+    /**
+     * Opens a streaming reader over the songs of an artist, in album and track
+     * order, or returns null if the query failed. The caller must close it.
+     */
+    public static SongIdReader openSongListForArtist(Context context, long id) {
+        Cursor cursor = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Media._ID}, artistWhere(id), null,
+                MediaStore.Audio.Media.ALBUM_KEY + "," + MediaStore.Audio.Media.TRACK);
+        return cursor != null ? new SongIdReader(cursor) : null;
+    }
+
+    public static SongIdReader openSongListForAlbum(Context context, long id) {
+        Cursor cursor = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Media._ID}, albumWhere(id), null,
+                MediaStore.Audio.Media.TRACK);
+        return cursor != null ? new SongIdReader(cursor) : null;
+    }
+
+    public static SongIdReader openSongListForPlaylist(Context context, long plid) {
+        if (plid == -1) {
+            return null;
         }
-        return list;
+        Cursor cursor = query(context, MediaStore.Audio.Playlists.Members.getContentUri("external", plid),
+                new String[]{MediaStore.Audio.Playlists.Members.AUDIO_ID}, null, null,
+                MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
+        return cursor != null ? new SongIdReader(cursor) : null;
+    }
+
+    private static String artistWhere(long id) {
+        return MediaStore.Audio.Media.ARTIST_ID + "=" + id + " AND " +
+                MediaStore.Audio.Media.IS_MUSIC + "=1";
+    }
+
+    private static String albumWhere(long id) {
+        return MediaStore.Audio.Media.ALBUM_ID + "=" + id + " AND " +
+                MediaStore.Audio.Media.IS_MUSIC + "=1";
     }
 
     public static long[] getSongListForArtist(Context context, long id) {
         final String[] ccols = new String[]{MediaStore.Audio.Media._ID};
-        String where = MediaStore.Audio.Media.ARTIST_ID + "=" + id + " AND " +
-                MediaStore.Audio.Media.IS_MUSIC + "=1";
+        String where = artistWhere(id);
         Cursor cursor = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
                 ccols, where, null,
                 MediaStore.Audio.Media.ALBUM_KEY + "," + MediaStore.Audio.Media.TRACK);
@@ -155,8 +231,7 @@ public class MusicUtils {
 
     public static long[] getSongListForAlbum(Context context, long id) {
         final String[] ccols = new String[]{MediaStore.Audio.Media._ID};
-        String where = MediaStore.Audio.Media.ALBUM_ID + "=" + id + " AND " +
-                MediaStore.Audio.Media.IS_MUSIC + "=1";
+        String where = albumWhere(id);
         Cursor cursor = query(context, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
                 ccols, where, null, MediaStore.Audio.Media.TRACK);
 
@@ -189,15 +264,21 @@ public class MusicUtils {
      * @param offset Where in the 'ids' array we start reading
      * @param len    How many items to copy during this pass
      * @param base   The play order offset to use for this pass
+     * @return the filled window, exactly 'len' items long. The ContentValues in it
+     * are reused by the next pass, so it must be consumed before calling again.
      */
-    private static void makeInsertItems(long[] ids, int offset, int len, int base) {
+    private static ContentValues[] makeInsertItems(long[] ids, int offset, int len, int base) {
         // adjust 'len' if would extend beyond the end of the source array
         if (offset + len > ids.length) {
             len = ids.length - offset;
         }
-        // allocate the ContentValues array, or reallocate if it is the wrong size
-        if (sContentValuesCache == null || sContentValuesCache.length != len) {
-            sContentValuesCache = new ContentValues[len];
+        // grow the ContentValues array if needed; a shorter last pass keeps it
+        if (sContentValuesCache == null || sContentValuesCache.length < len) {
+            ContentValues[] grown = new ContentValues[len];
+            if (sContentValuesCache != null) {
+                System.arraycopy(sContentValuesCache, 0, grown, 0, sContentValuesCache.length);
+            }
+            sContentValuesCache = grown;
         }
         // fill in the ContentValues array with the right values for this pass
         for (int i = 0; i < len; i++) {
@@ -208,6 +289,76 @@ public class MusicUtils {
             sContentValuesCache[i].put(MediaStore.Audio.Playlists.Members.PLAY_ORDER, base + offset + i);
             sContentValuesCache[i].put(MediaStore.Audio.Playlists.Members.AUDIO_ID, ids[offset + i]);
         }
+        if (len == sContentValuesCache.length) {
+            return sContentValuesCache;
+        }
+        // bulkInsert() takes the whole array, so hand out a window over the
+        // same ContentValues instead of allocating new ones
+        return Arrays.copyOf(sContentValuesCache, len);
+    }
+
+    /**
+     * Progress of addToPlaylist(), called on the thread doing the insert
+     */
+    public interface PlaylistProgressListener {
+        void onProgress(int inserted, int total);
+    }
+
+    /**
+     * Creates an empty playlist and returns its id, or -1 on failure.
+     * Does provider I/O; do not call it on the main thread.
+     */
+    public static long createPlaylist(Context context, String name) {
+        ContentValues values = new ContentValues(1);
+        values.put(MediaStore.Audio.Playlists.NAME, name);
+        Uri uri = context.getContentResolver().insert(
+                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, values);
+        return uri != null ? ContentUris.parseId(uri) : -1;
+    }
+
+    /**
+     * Appends ids to a playlist with one bulkInsert() per PLAYLIST_INSERT_CHUNK
+     * rows, reporting progress after each chunk. Does provider I/O; do not call
+     * it on the main thread.
+     *
+     * @return the number of rows inserted
+     */
+    public static int addToPlaylist(Context context, long[] ids, long playlistid,
+                                    PlaylistProgressListener listener) {
+        if (ids == null) {
+            // this shouldn't happen (the menuitems shouldn't be visible
+            // unless the selected item represents something playable
+            Log.e(TAG, "ListSelection null");
+            return 0;
+        }
+        int size = ids.length;
+        ContentResolver resolver = context.getContentResolver();
+        // need to determine the number of items currently in the playlist,
+        // so the play_order field can be maintained.
+        String[] cols = new String[]{"count(*)"};
+        Uri uri = MediaStore.Audio.Playlists.Members.getContentUri("external", playlistid);
+        int base = 0;
+        Cursor cur = query(context, uri, cols, null, null, null);
+        if (cur != null) {
+            try {
+                if (cur.moveToFirst()) {
+                    base = cur.getInt(0);
+                }
+            } finally {
+                cur.close();
+            }
+        }
+        int numinserted = 0;
+        synchronized (sContentValuesLock) {
+            for (int i = 0; i < size; i += PLAYLIST_INSERT_CHUNK) {
+                ContentValues[] items = makeInsertItems(ids, i, PLAYLIST_INSERT_CHUNK, base);
+                numinserted += resolver.bulkInsert(uri, items);
+                if (listener != null) {
+                    listener.onProgress(Math.min(i + PLAYLIST_INSERT_CHUNK, size), size);
+                }
+            }
+        }
+        return numinserted;
     }
 
     public static Cursor query(Context context, Uri uri, String[] projection,
@@ -244,187 +395,150 @@ public class MusicUtils {
         }
     }*/
 
-    public static void clearAlbumArtCache() {
-        synchronized (sArtCache) {
-            sArtCache.evictAll();
-        }
+    public static void clearAlbumArtCache(Context context) {
+        ArtworkCache.getInstance(context).evictAll();
     }
 
-    public static Drawable getsArtCachedDrawable(Context context, long artIndex) {
-        synchronized (sArtCache) {
-            return sArtCache.get(artIndex);
-        }
-    }
-
-    public static Drawable getCachedArtwork(Context context, long artIndex,
-                                            BitmapDrawable defaultArtwork) {
-        Drawable d = null;
-        synchronized (sArtCache) {
-            d = sArtCache.get(artIndex);
+    // Put a freshly decoded bitmap into the memory cache and acquire it while
+    // the cache is still locked. When another thread cached the same artwork
+    // first, that copy wins and ours goes to the pool, so callers never hold a
+    // bitmap the cache has already replaced.
+    private static Bitmap keepCached(Context context, long artId, int size, Bitmap b) {
+        if (b == null) {
+            return null;
         }
-        if (d == null) {
-            d = defaultArtwork;
-            final Bitmap icon = defaultArtwork.getBitmap();
-            int w = icon.getWidth();
-            int h = icon.getHeight();
-            Bitmap b = MusicUtils.getArtworkQuick(context, artIndex, w, h);
-            if (b != null) {
-                d = new FastBitmapDrawable(b);
-                synchronized (sArtCache) {
-                    // the cache may have changed since we checked
-                    Drawable value = sArtCache.get(artIndex);
-                    if (value == null) {
-                        sArtCache.put(artIndex, d);
-                    } else {
-                        d = value;
-                    }
-                }
-            }
+        BitmapPool pool = BitmapPool.getInstance(context);
+        Bitmap cached = ArtworkCache.getInstance(context).putIfAbsent(artId, size, b, pool);
+        if (cached != b) {
+            pool.put(b);
         }
-        return d;
+        return cached;
     }
 
-    // Get album art for specified album. This method will not try to
-    // fall back to getting artwork directly from the file, nor will
-    // it attempt to repair the database.
-    public static Bitmap getArtworkQuick(Context context, long album_id, int w,
-                                         int h) {
-        // NOTE: There is in fact a 1 pixel border on the right side in the ImageView
-        // used to display this drawable. Take it into account now, so we don't have to
-        // scale later.
-        w -= 1;
-        ContentResolver res = context.getContentResolver();
-        Uri uri = ContentUris.withAppendedId(sArtworkUri, album_id);
-        if (uri != null) {
-            ParcelFileDescriptor fd = null;
-            try {
-                fd = res.openFileDescriptor(uri, "r");
-                int sampleSize = 1;
-
-                if (fd != null) {
-                    // Compute the closest power-of-two scale factor
-                    // and pass that to sBitmapOptionsCache.inSampleSize, which
-                    // will result in faster decoding and better quality
-                    sBitmapOptionsCache.inJustDecodeBounds = true;
-                    BitmapFactory.decodeFileDescriptor(fd.getFileDescriptor(),
-                            null, sBitmapOptionsCache);
-                    int nextWidth = sBitmapOptionsCache.outWidth >> 1;
-                    int nextHeight = sBitmapOptionsCache.outHeight >> 1;
-                    while (nextWidth > w && nextHeight > h) {
-                        sampleSize <<= 1;
-                        nextWidth >>= 1;
-                        nextHeight >>= 1;
-                    }
-
-                    sBitmapOptionsCache.inSampleSize = sampleSize;
-                    sBitmapOptionsCache.inJustDecodeBounds = false;
-                    Bitmap b = BitmapFactory.decodeFileDescriptor(
-                            fd.getFileDescriptor(), null, sBitmapOptionsCache);
-
-                    if (b != null) {
-                        // finally rescale to exactly the size we need
-                        if (sBitmapOptionsCache.outWidth != w
-                                || sBitmapOptionsCache.outHeight != h) {
-                            Bitmap tmp = Bitmap.createScaledBitmap(b, w, h,
-                                    true);
-                            // Bitmap.createScaledBitmap() can return the same
-                            // bitmap
-                            b = tmp;
-                        }
-                    }
+    /**
+     * Get album art sized for a w x h view. You should not pass in the album id
+     * for the "unknown" album here (use -1 instead). The image is subsampled so
+     * that it is no more than twice the size it is shown at; with crop it is
+     * decoded for a center-crop view, and only the visible region is read when
+     * the format allows. w or h <= 0 decodes the full-size image. When the art
+     * has to come from the song itself and path is not null, the picture
+     * embedded in the file's tags is decoded first.
+     * <p>
+     * Cached bitmaps are recycled through inBitmap once they are evicted, so
+     * this is the only way to get one: the bitmap is acquired in the
+     * BitmapPool under the cache's lock, before another thread can evict and
+     * reuse it, and the caller must release it when it is no longer shown.
+     * Returns null when there is no album art.
+     */
+    public static Bitmap acquireArtwork(Context context, long song_id, long album_id,
+                                        String path, int w, int h, boolean crop) {
+        if (context == null) {
+            Log.d(TAG, "acquireArtwork failed because context is null");
+            return null;
+        }
 
-                    return b;
-                }
-            } catch (FileNotFoundException e) {
-            } finally {
-                try {
-                    if (fd != null)
-                        fd.close();
-                } catch (IOException e) {
-                }
-            }
+        ArtworkCache cache = ArtworkCache.getInstance(context);
+        long artId = ArtworkCache.artId(song_id, album_id);
+        int size = artworkSizeKey(w, h, crop);
+        Bitmap bm = BitmapPool.getInstance(context).acquireCached(cache, artId, size);
+        if (bm == null) {
+            // the default artwork is never cached under the album's key
+            bm = keepCached(context, artId, size,
+                    decodeArtwork(context, song_id, album_id, path, w, h, crop));
         }
-        return null;
+        return bm;
     }
 
     /**
-     * Get album art for specified album. You should not pass in the album id
-     * for the "unknown" album here (use -1 instead)
-     * This method always returns the default album art icon when no album art is found.
+     * The ArtworkCache size for an artwork decoded for a w x h view;
+     * ArtworkCache.SIZE_ORIGINAL for the full-size image.
      */
-    public static Bitmap getArtwork(Context context, long song_id, long album_id) {
-        return getArtwork(context, song_id, album_id, false);
+    static int artworkSizeKey(int w, int h, boolean crop) {
+        if (w <= 0 || h <= 0) {
+            return ArtworkCache.SIZE_ORIGINAL;
+        }
+        return (crop ? 1 << 30 : 0) | Math.min(w, 0x7fff) << 15 | Math.min(h, 0x7fff);
     }
 
-    /**
-     * Get album art for specified album. You should not pass in the album id
-     * for the "unknown" album here (use -1 instead)
-     */
-    public static Bitmap getArtwork(Context context, long song_id,
-                                    long album_id, boolean allowdefault) {
-        if (context == null) {
-            Log.d(TAG, "getArtwork failed because context is null");
+    // A memory miss for a sized view first tries the thumbnail on disk, and
+    // only decodes the source when that is missing too. What is decoded is
+    // shrunk to the disk bucket, keeping its aspect ratio, and written back.
+    private static Bitmap decodeArtwork(Context context, long song_id, long album_id,
+                                        String path, int w, int h, boolean crop) {
+        if (w <= 0 || h <= 0) {
+            return decodeArtworkSource(context, song_id, album_id, path, w, h, crop);
+        }
+        BitmapPool pool = BitmapPool.getInstance(context);
+        DiskArtworkCache disk = DiskArtworkCache.getInstance(context);
+        String key = DiskArtworkCache.key(ArtworkCache.artId(song_id, album_id), w, h, crop);
+        Bitmap bm = disk.get(key, pool);
+        if (bm == null) {
+            bm = scaleToBucket(pool,
+                    decodeArtworkSource(context, song_id, album_id, path, w, h, crop),
+                    DiskArtworkCache.sizeBucket(Math.max(w, h)));
+            disk.put(key, bm);
+        }
+        return bm;
+    }
+
+    // Shrink b so that its longer side is no more than bucket, keeping its
+    // aspect ratio. b goes back to the pool when a smaller copy is made.
+    private static Bitmap scaleToBucket(BitmapPool pool, Bitmap b, int bucket) {
+        if (b == null) {
             return null;
         }
+        int longer = Math.max(b.getWidth(), b.getHeight());
+        if (longer <= bucket) {
+            return b;
+        }
+        int scaledW = Math.max(1, (int) ((long) b.getWidth() * bucket / longer));
+        int scaledH = Math.max(1, (int) ((long) b.getHeight() * bucket / longer));
+        Bitmap scaled = pool.createScaledBitmap(b, scaledW, scaledH);
+        if (scaled != b) {
+            pool.put(b);
+        }
+        return scaled;
+    }
 
+    private static Bitmap decodeArtworkSource(Context context, long song_id, long album_id,
+                                              String path, int w, int h, boolean crop) {
         if (album_id < 0) {
             // This is something that is not in the database, so get the album
-            // art directly from the file.
-            Bitmap bm = null;
-            if (song_id >= 0) {
-                bm = getArtworkFromFile(context, song_id, -1);
-                if (bm != null) {
-                    addArtworkToCache(bm);
-                    return bm;
-                }
+            // art directly from the file: its own tags first, then the
+            // provider's albumart path.
+            Bitmap bm = getArtworkFromTags(context, path, w, h, crop);
+            if (bm == null && song_id >= 0) {
+                bm = getArtworkFromFile(context, song_id, -1, w, h, crop);
             }
-            if (allowdefault) {
-                bm = getDefaultArtwork(context);
-                Log.d(TAG, "getArtwork: getDefaultArtwork: " + song_id + ", bm: " + bm);
-                if (bm != null && song_id >= 0) {
-                    addArtworkToCache(bm);
-                }
-                return bm;
-            }
-            return null;
+            return bm;
         }
 
         ContentResolver res = context.getContentResolver();
         Uri uri = ContentUris.withAppendedId(sArtworkUri, album_id);
         if (uri != null) {
-            InputStream in = null;
+            ParcelFileDescriptor fd = null;
             try {
-                in = res.openInputStream(uri);
-                Bitmap b = BitmapFactory.decodeStream(in, null, sBitmapOptions);
-                if (b != null && song_id >= 0) {
-                    addArtworkToCache(b);
+                fd = res.openFileDescriptor(uri, "r");
+                if (fd == null) {
+                    return null;
                 }
-                return b;
+                return decodeSized(context, fdSource(fd.getFileDescriptor()), newArtworkOptions(),
+                        w, h, crop);
             } catch (FileNotFoundException ex) {
                 // The album art thumbnail does not actually exist. Maybe the
                 // user deleted it, or
                 // maybe it never existed to begin with.
-                Bitmap bm = getArtworkFromFile(context, song_id, album_id);
-                if (bm != null) {
-                    if (bm.getConfig() == null) {
-                        bm = bm.copy(Bitmap.Config.RGB_565, false);
-                        if (bm == null && allowdefault) {
-                            return getDefaultArtwork(context);
-                        }
-                    }
-                } else if (allowdefault) {
-                    bm = getDefaultArtwork(context);
-                }
-                if (bm != null && song_id >= 0) {
-                    addArtworkToCache(bm);
+                Bitmap bm = getArtworkFromFile(context, song_id, album_id, w, h, crop);
+                if (bm != null && bm.getConfig() == null) {
+                    bm = bm.copy(Bitmap.Config.RGB_565, false);
                 }
                 return bm;
             } catch (OutOfMemoryError ex) {
                 return null;
             } finally {
                 try {
-                    if (in != null) {
-                        in.close();
+                    if (fd != null) {
+                        fd.close();
                     }
                 } catch (IOException ex) {
                 }
@@ -434,10 +548,158 @@ public class MusicUtils {
         return null;
     }
 
-    private static Bitmap getArtworkFromFile(Context context, long songid, long albumid) {
+    /**
+     * Where encoded artwork is read from: a file descriptor, or a picture
+     * embedded in an audio file and read straight from the mapped bytes.
+     * Every call starts again at the beginning of the image.
+     */
+    private interface ImageSource {
+        Bitmap decode(BitmapFactory.Options options);
+
+        BitmapRegionDecoder newRegionDecoder() throws IOException;
+    }
+
+    private static ImageSource fdSource(final FileDescriptor fd) {
+        return new ImageSource() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            }
+
+            @Override
+            public BitmapRegionDecoder newRegionDecoder() throws IOException {
+                return BitmapRegionDecoder.newInstance(fd, false);
+            }
+        };
+    }
+
+    private static ImageSource bufferSource(final ByteBuffer buffer) {
+        return new ImageSource() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeStream(new ByteBufferInputStream(buffer), null, options);
+            }
+
+            @Override
+            public BitmapRegionDecoder newRegionDecoder() throws IOException {
+                return BitmapRegionDecoder.newInstance(new ByteBufferInputStream(buffer), false);
+            }
+        };
+    }
+
+    /**
+     * Decode the bounds, then the image subsampled for a w x h view (the full
+     * image when w or h <= 0).
+     */
+    private static Bitmap decodeSized(Context context, ImageSource source,
+                                      BitmapFactory.Options options, int w, int h, boolean crop) {
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        BitmapPool pool = BitmapPool.getInstance(context);
+        if (w <= 0 || h <= 0) {
+            options.inSampleSize = 1;
+            return decodePooled(pool, source, options);
+        }
+        if (crop) {
+            Rect region = centerCropRegion(options.outWidth, options.outHeight, w, h);
+            options.inSampleSize = sampleSize(region.width(), region.height(), w, h);
+            if (region.width() < options.outWidth || region.height() < options.outHeight) {
+                Bitmap b = decodeRegion(pool, source, region, options);
+                if (b != null) {
+                    return b;
+                }
+            }
+            // the format has no region decoder; decode all of it instead
+        }
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, w, h);
+        return decodePooled(pool, source, options);
+    }
+
+    // The largest power of two that keeps a srcW x srcH image at least as
+    // large as it is shown when fitted into w x h.
+    static int sampleSize(int srcW, int srcH, int w, int h) {
+        int sampleSize = 1;
+        while (srcW / (sampleSize * 2) >= w || srcH / (sampleSize * 2) >= h) {
+            sampleSize <<= 1;
+        }
+        return sampleSize;
+    }
+
+    // The part of a srcW x srcH image that a center-crop w x h view shows.
+    static Rect centerCropRegion(int srcW, int srcH, int w, int h) {
+        int cropW = srcW;
+        int cropH = srcH;
+        if ((long) srcW * h > (long) srcH * w) {
+            cropW = (int) ((long) srcH * w / h);
+        } else {
+            cropH = (int) ((long) srcW * h / w);
+        }
+        int left = (srcW - cropW) / 2;
+        int top = (srcH - cropH) / 2;
+        return new Rect(left, top, left + cropW, top + cropH);
+    }
+
+    private static Bitmap decodeRegion(BitmapPool pool, ImageSource source, Rect region,
+                                       BitmapFactory.Options options) {
+        BitmapRegionDecoder decoder = null;
+        Bitmap inBitmap = null;
+        Bitmap b = null;
+        try {
+            decoder = source.newRegionDecoder();
+            options.inJustDecodeBounds = false;
+            pool.setInBitmap(options, region.width(), region.height());
+            inBitmap = options.inBitmap;
+            try {
+                b = decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException ex) {
+                options.inBitmap = null;
+                b = decoder.decodeRegion(region, options);
+            }
+        } catch (IOException ex) {
+            // not a format BitmapRegionDecoder supports
+        } finally {
+            options.inBitmap = null;
+            if (inBitmap != null && b != inBitmap) {
+                pool.put(inBitmap);
+            }
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Decode with a pooled inBitmap. The bounds (and inSampleSize) must already be in
+     * options. If the pooled bitmap cannot be reused for this image the decode is
+     * retried without it and the bitmap goes back to the pool.
+     */
+    private static Bitmap decodePooled(BitmapPool pool, ImageSource source,
+                                       BitmapFactory.Options options) {
+        options.inJustDecodeBounds = false;
+        pool.setInBitmap(options);
+        Bitmap inBitmap = options.inBitmap;
+        Bitmap b = null;
+        try {
+            b = source.decode(options);
+        } catch (IllegalArgumentException ex) {
+            options.inBitmap = null;
+            b = source.decode(options);
+        } finally {
+            options.inBitmap = null;
+            if (inBitmap != null && b != inBitmap) {
+                pool.put(inBitmap);
+            }
+        }
+        return b;
+    }
+
+    private static Bitmap getArtworkFromFile(Context context, long songid, long albumid,
+                                             int w, int h, boolean crop) {
         Bitmap bm = null;
-        byte[] art = null;
-        String path = null;
         Uri uri = null;
 
         if (albumid < 0 && songid < 0) {
@@ -446,9 +708,6 @@ public class MusicUtils {
         ParcelFileDescriptor pfd = null;
         try {
             if (albumid < 0) {
-                if (sLastSong == songid) {
-                    return sCachedBitSong != null ? sCachedBitSong : getDefaultArtwork(context);
-                }
                 uri = Uri.parse("content://media/external/audio/media/" + songid + "/albumart");
                 try {
                     pfd = context.getContentResolver().openFileDescriptor(uri, "r");
@@ -458,19 +717,15 @@ public class MusicUtils {
                 }
 
                 if (pfd != null) {
-                    FileDescriptor fd = pfd.getFileDescriptor();
-                    bm = BitmapFactory.decodeFileDescriptor(fd);
+                    bm = decodeSized(context, fdSource(pfd.getFileDescriptor()),
+                            newArtworkOptions(), w, h, crop);
                 }
             } else {
-                if (sLastAlbum == albumid) {
-                    return sCachedBitAlbum != null ?
-                            sCachedBitAlbum : getDefaultArtworkImage(context);
-                }
                 uri = ContentUris.withAppendedId(sArtworkUri, albumid);
                 pfd = context.getContentResolver().openFileDescriptor(uri, "r");
                 if (pfd != null) {
-                    FileDescriptor fd = pfd.getFileDescriptor();
-                    bm = BitmapFactory.decodeFileDescriptor(fd);
+                    bm = decodeSized(context, fdSource(pfd.getFileDescriptor()),
+                            newArtworkOptions(), w, h, crop);
                 }
             }
         } catch (IllegalStateException ex) {
@@ -485,16 +740,47 @@ public class MusicUtils {
             } catch (IOException e) {
             }
         }
-        if (albumid < 0) {
-            sCachedBitSong = bm;
-            sLastSong = songid;
-        } else {
-            sCachedBitAlbum = bm;
-            sLastAlbum = albumid;
-        }
         return bm;
     }
 
+    /**
+     * Decode the picture embedded in the tags of the audio file at path.
+     * Only the picture's own bytes are mapped; nothing is copied out of the
+     * file. Returns null when there is no path or no embedded picture.
+     */
+    private static Bitmap getArtworkFromTags(Context context, String path,
+                                             int w, int h, boolean crop) {
+        if (path == null) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            AudioTags tags = TagReader.read(new File(path));
+            if (!tags.hasPicture()) {
+                return null;
+            }
+            raf = new RandomAccessFile(path, "r");
+            // the mapping stays valid after the file is closed
+            ByteBuffer picture = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    tags.getPictureOffset(), tags.getPictureLength());
+            return decodeSized(context, bufferSource(picture), newArtworkOptions(), w, h, crop);
+        } catch (IOException ex) {
+            return null;
+        } catch (RuntimeException ex) {
+            // malformed tags in a broken file; treat it as having no artwork
+            return null;
+        } catch (OutOfMemoryError ex) {
+            return null;
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
     public static Bitmap getDefaultArtwork(Context context) {
         /*BitmapFactory.Options opts = new BitmapFactory.Options();
         opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
@@ -526,6 +812,20 @@ public class MusicUtils {
         ed.apply();
     }
 
+    static long getLongPref(Context context, String name, long def) {
+        SharedPreferences prefs =
+                context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
+        return prefs.getLong(name, def);
+    }
+
+    static void setLongPref(Context context, String name, long value) {
+        SharedPreferences prefs =
+                context.getSharedPreferences(context.getPackageName(), Context.MODE_PRIVATE);
+        Editor ed = prefs.edit();
+        ed.putLong(name, value);
+        ed.apply();
+    }
+
     public static void startService(Context context, Intent intent) {
         if (context == null || intent == null) {
             Log.e(TAG, "context or intent null");
@@ -563,29 +863,65 @@ public class MusicUtils {
         public final static int CHILD_MENU_BASE = 19;// this should be the last item;
     }
 
-    private static class FastBitmapDrawable extends Drawable {
-        private Bitmap mBitmap;
+    /**
+     * An InputStream over a ByteBuffer, so the decoders can read a mapped
+     * picture without copying it into a byte array first.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+        // where reset() goes back to; the start of the image until mark() is called
+        private int mMark;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer.duplicate();
+            mBuffer.rewind();
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
 
-        public FastBitmapDrawable(Bitmap b) {
-            mBitmap = b;
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
         }
 
         @Override
-        public void draw(Canvas canvas) {
-            canvas.drawBitmap(mBitmap, 0, 0, null);
+        public int available() {
+            return mBuffer.remaining();
         }
 
         @Override
-        public int getOpacity() {
-            return PixelFormat.OPAQUE;
+        public boolean markSupported() {
+            return true;
         }
 
         @Override
-        public void setAlpha(int alpha) {
+        public synchronized void mark(int readlimit) {
+            mMark = mBuffer.position();
         }
 
+        // BitmapFactory may reset without marking first, so this never throws
+        // the way ByteBuffer.reset() does without a mark
         @Override
-        public void setColorFilter(ColorFilter cf) {
+        public synchronized void reset() {
+            mBuffer.position(mMark);
         }
     }
 
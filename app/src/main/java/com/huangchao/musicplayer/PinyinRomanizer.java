@@ -0,0 +1,99 @@
+package com.huangchao.musicplayer;
+
+import com.huangchao.musicplayer.data.SearchIndex;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * 把汉字转为拼音首字母，供SearchIndex按首字母搜索，例如“周杰伦”可以用“zjl”找到。
+ * 中文排序规则按拼音排列汉字，与每个声母开头的第一个汉字比较就能确定首字母，
+ * 不需要附带拼音字典。不认识的字（生僻字或非汉字）跳过。
+ * Android的ICU按拼音排列全部汉字，JDK只排列GB2312一级字，其余的排在最后，
+ * 两者排在每个声母最前的字不同，所以每个声母列出几个候选，取排序规则中最小的。
+ */
+public class PinyinRomanizer implements SearchIndex.Romanizer {
+    // 每个首字母可能排在最前的汉字，没有以i、u、v开头的拼音
+    private static final String[] FIRSTS = {
+            "吖阿啊", "八芭巴", "嚓擦", "咑哒搭", "妸蛾婀", "发", "旮噶", "哈", "丌击", "咔喀",
+            "垃拉", "呒呣妈", "拏拿", "噢哦喔", "妑啪趴", "七期", "呥然", "仨撒", "他塌",
+            "屲挖", "夕昔", "丫压", "帀匝"};
+    private static final String LETTERS = "abcdefghjklmnopqrstwxyz";
+    // 常用汉字中可能排在最后的字，取其中最大的，之后的字不在拼音顺序中
+    private static final String LASTS = "座做坐";
+
+    private final Collator collator;
+    private final CollationKey[] boundaryKeys;
+    private final CollationKey last;
+
+    public PinyinRomanizer() {
+        collator = Collator.getInstance(Locale.CHINA);
+        boundaryKeys = new CollationKey[FIRSTS.length];
+        for (int i = 0; i < boundaryKeys.length; i++) {
+            boundaryKeys[i] = extremeKey(FIRSTS[i], -1);
+        }
+        last = extremeKey(LASTS, 1);
+    }
+
+    /**
+     * chars中排在最前（sign为-1）或最后（sign为1）的字的CollationKey
+     */
+    private CollationKey extremeKey(String chars, int sign) {
+        CollationKey result = null;
+        for (int i = 0; i < chars.length(); i++) {
+            CollationKey key = collator.getCollationKey(String.valueOf(chars.charAt(i)));
+            if (result == null || Integer.signum(key.compareTo(result)) == sign) {
+                result = key;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 返回空格分隔的首字母，没有可以转换的汉字时返回null。
+     * Collator不是线程安全的
+     */
+    @Override
+    public synchronized String romanize(String text) {
+        StringBuilder sb = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x4e00 || c > 0x9fff) {
+                continue;
+            }
+            char letter = initialOf(c);
+            if (letter == 0) {
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder();
+            } else {
+                sb.append(' ');
+            }
+            sb.append(letter);
+        }
+        return sb == null ? null : sb.toString();
+    }
+
+    /**
+     * 二分查找不大于c的最后一个边界字，c不在拼音顺序中时返回0
+     */
+    private char initialOf(char c) {
+        CollationKey key = collator.getCollationKey(String.valueOf(c));
+        if (key.compareTo(boundaryKeys[0]) < 0 || key.compareTo(last) > 0) {
+            return 0;
+        }
+        int low = 0;
+        int high = boundaryKeys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (boundaryKeys[mid].compareTo(key) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return LETTERS.charAt(low);
+    }
+}
@@ -0,0 +1,271 @@
+package com.huangchao.musicplayer;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * 播放命令队列，任意线程提交，在播放线程上按顺序执行。
+ * 队列有容量上限，满了之后新命令被丢弃。可合并的命令（例如跳转和更新歌曲列表）
+ * 彼此之间可以交换顺序：新提交的可合并命令越过队尾连续的可合并命令，
+ * 找到同一种命令时只更新它的参数，交替提交的跳转和列表更新也不会占满队列。
+ * 同时统计队列深度，以及每种命令从提交到开始执行的等待时间。
+ */
+public class PlaybackCommandQueue {
+    // 队列中最多等待的命令数
+    public static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * 在播放线程上执行命令
+     */
+    public interface Callback {
+        void onCommand(int what, int arg, Object obj);
+    }
+
+    private static final class Command {
+        final int what;
+        int arg;
+        Object obj;
+        // 提交的时刻，System.nanoTime()
+        final long enqueuedAt;
+
+        Command(int what, int arg, Object obj, long enqueuedAt) {
+            this.what = what;
+            this.arg = arg;
+            this.obj = obj;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * 一种命令的等待时间统计
+     */
+    private static final class Latency {
+        long count;
+        long totalNanos;
+        long maxNanos;
+
+        void add(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        long averageMicros() {
+            return count == 0 ? 0 : totalNanos / count / 1000;
+        }
+    }
+
+    private final int capacity;
+    // 可以合并的命令，已经排序
+    private final int[] collapsibleWhats;
+    private final Executor executor;
+    private final Callback callback;
+    private final ArrayDeque<Command> commands = new ArrayDeque<Command>();
+    // 是否已经向executor提交了drain
+    private boolean drainScheduled;
+    private boolean closed;
+
+    // 统计，都在commands的锁内读写
+    private int maxDepth;
+    private long executedCount;
+    private long collapsedCount;
+    private long droppedCount;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private final HashMap<Integer, Latency> latencies = new HashMap<Integer, Latency>();
+
+    /**
+     * @param collapsibleWhats 只需要执行最后一条、并且彼此可以交换顺序的命令，例如跳转
+     * @param executor         在播放线程上运行任务，例如播放线程Handler的post
+     */
+    public PlaybackCommandQueue(int capacity, int[] collapsibleWhats, Executor executor,
+                                Callback callback) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.collapsibleWhats = collapsibleWhats.clone();
+        Arrays.sort(this.collapsibleWhats);
+        this.executor = executor;
+        this.callback = callback;
+    }
+
+    /**
+     * 提交一条命令，队列已满或已经关闭时返回false
+     */
+    public boolean offer(int what, int arg, Object obj) {
+        boolean schedule;
+        synchronized (commands) {
+            if (closed) {
+                return false;
+            }
+            if (isCollapsible(what)) {
+                // 同一种命令还没执行，直接改为新的参数，等待时间从前一次算起。
+                // 只越过可合并的命令，不能越过播放、切换歌曲等其他命令
+                Iterator<Command> pending = commands.descendingIterator();
+                while (pending.hasNext()) {
+                    Command command = pending.next();
+                    if (!isCollapsible(command.what)) {
+                        break;
+                    }
+                    if (command.what == what) {
+                        command.arg = arg;
+                        command.obj = obj;
+                        collapsedCount++;
+                        return true;
+                    }
+                }
+            }
+            if (commands.size() >= capacity) {
+                droppedCount++;
+                return false;
+            }
+            commands.addLast(new Command(what, arg, obj, System.nanoTime()));
+            maxDepth = Math.max(maxDepth, commands.size());
+            schedule = !drainScheduled;
+            drainScheduled = true;
+        }
+        if (schedule) {
+            executor.execute(drain);
+        }
+        return true;
+    }
+
+    /**
+     * 执行队列中的所有命令，执行期间新提交的命令也在这一轮执行
+     */
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Command command;
+                synchronized (commands) {
+                    command = commands.pollFirst();
+                    if (command == null) {
+                        drainScheduled = false;
+                        return;
+                    }
+                    long latency = System.nanoTime() - command.enqueuedAt;
+                    executedCount++;
+                    totalLatencyNanos += latency;
+                    maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                    Latency stats = latencies.get(command.what);
+                    if (stats == null) {
+                        stats = new Latency();
+                        latencies.put(command.what, stats);
+                    }
+                    stats.add(latency);
+                }
+                callback.onCommand(command.what, command.arg, command.obj);
+            }
+        }
+    };
+
+    private boolean isCollapsible(int what) {
+        return Arrays.binarySearch(collapsibleWhats, what) >= 0;
+    }
+
+    /**
+     * 不再接受新命令，还没执行的命令被丢弃
+     */
+    public void close() {
+        synchronized (commands) {
+            closed = true;
+            commands.clear();
+        }
+    }
+
+    public int depth() {
+        synchronized (commands) {
+            return commands.size();
+        }
+    }
+
+    public int maxDepth() {
+        synchronized (commands) {
+            return maxDepth;
+        }
+    }
+
+    public long executedCount() {
+        synchronized (commands) {
+            return executedCount;
+        }
+    }
+
+    public long collapsedCount() {
+        synchronized (commands) {
+            return collapsedCount;
+        }
+    }
+
+    public long droppedCount() {
+        synchronized (commands) {
+            return droppedCount;
+        }
+    }
+
+    /**
+     * 平均等待时间，微秒
+     */
+    public long averageLatencyMicros() {
+        synchronized (commands) {
+            return executedCount == 0 ? 0 : totalLatencyNanos / executedCount / 1000;
+        }
+    }
+
+    /**
+     * 最长等待时间，微秒
+     */
+    public long maxLatencyMicros() {
+        synchronized (commands) {
+            return maxLatencyNanos / 1000;
+        }
+    }
+
+    /**
+     * what命令的平均等待时间，微秒，还没有执行过时为0
+     */
+    public long averageLatencyMicros(int what) {
+        synchronized (commands) {
+            Latency stats = latencies.get(what);
+            return stats == null ? 0 : stats.averageMicros();
+        }
+    }
+
+    /**
+     * what命令的最长等待时间，微秒
+     */
+    public long maxLatencyMicros(int what) {
+        synchronized (commands) {
+            Latency stats = latencies.get(what);
+            return stats == null ? 0 : stats.maxNanos / 1000;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (commands) {
+            StringBuilder sb = new StringBuilder("PlaybackCommandQueue[depth=")
+                    .append(commands.size()).append('/').append(capacity)
+                    .append(", maxDepth=").append(maxDepth)
+                    .append(", executed=").append(executedCount)
+                    .append(", collapsed=").append(collapsedCount)
+                    .append(", dropped=").append(droppedCount)
+                    .append(", avgLatency=")
+                    .append(executedCount == 0 ? 0 : totalLatencyNanos / executedCount / 1000)
+                    .append("us, maxLatency=").append(maxLatencyNanos / 1000).append("us");
+            // 每种命令：执行次数/平均/最长等待时间
+            for (Integer what : latencies.keySet()) {
+                Latency stats = latencies.get(what);
+                sb.append(", ").append(what).append('=').append(stats.count)
+                        .append('/').append(stats.averageMicros())
+                        .append('/').append(stats.maxNanos / 1000).append("us");
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.huangchao.musicplayer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在后台线程把歌曲加入MediaStore的播放列表。
+ * 写入由MusicUtils.addToPlaylist分块完成，每块之后在主线程回调进度，
+ * 几万首歌也不会卡住界面。多次添加和查询按提交的顺序依次执行。
+ */
+public class PlaylistWriter {
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 回调总是在主线程中执行
+     */
+    public interface Callback {
+        void onProgress(int inserted, int total);
+
+        /**
+         * 写入结束，inserted为实际插入的行数，创建播放列表失败时为-1
+         */
+        void onFinished(int inserted);
+    }
+
+    /**
+     * 查询结果的回调，在主线程中执行
+     */
+    public interface PlaylistsCallback {
+        void onPlaylists(long[] ids, String[] names);
+    }
+
+    private PlaylistWriter() {
+    }
+
+    /**
+     * 在后台按名称顺序查询所有播放列表。排在之前提交的添加之后，
+     * 刚刚新建的播放列表也在结果中
+     */
+    public static void queryPlaylists(Context context, final PlaylistsCallback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long[] ids = new long[0];
+                String[] names = new String[0];
+                Cursor cursor = MusicUtils.query(appContext,
+                        MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                        new String[]{MediaStore.Audio.Playlists._ID, MediaStore.Audio.Playlists.NAME},
+                        null, null, MediaStore.Audio.Playlists.NAME);
+                if (cursor != null) {
+                    try {
+                        ids = new long[cursor.getCount()];
+                        names = new String[ids.length];
+                        int count = 0;
+                        while (count < ids.length && cursor.moveToNext()) {
+                            ids[count] = cursor.getLong(0);
+                            names[count] = cursor.getString(1);
+                            count++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                final long[] playlistIds = ids;
+                final String[] playlistNames = names;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPlaylists(playlistIds, playlistNames);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 把ids追加到playlistId，playlistId小于0时先创建名为newName的播放列表。
+     * 提交之后调用者不能再修改ids
+     */
+    public static void add(Context context, final long[] ids, final long playlistId,
+                           final String newName, final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long id = playlistId >= 0 ? playlistId : MusicUtils.createPlaylist(appContext, newName);
+                final int inserted = id < 0 ? -1 : MusicUtils.addToPlaylist(appContext, ids, id,
+                        new MusicUtils.PlaylistProgressListener() {
+                            @Override
+                            public void onProgress(final int inserted, final int total) {
+                                mainHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        callback.onProgress(inserted, total);
+                                    }
+                                });
+                            }
+                        });
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFinished(inserted);
+                    }
+                });
+            }
+        });
+    }
+}
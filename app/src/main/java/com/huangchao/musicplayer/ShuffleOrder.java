@@ -0,0 +1,239 @@
+package com.huangchao.musicplayer;
+
+import com.huangchao.musicplayer.data.PlayQueue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 随机播放的顺序，是歌曲位置的一个排列，按Fisher–Yates算法逐步生成。
+ * order的前generated项已经确定，是播放过或预先选好的歌曲，cursor指向当前歌曲；
+ * 其余的项是还没有选过的歌曲，顺序无关，每次从中随机取一首放到已确定部分的末尾。
+ * 因此一轮之内每首歌只播放一次，next/previous都是O(1)，previous沿播放历史返回。
+ * 在末尾追加歌曲是O(1)，在中间插入或移除歌曲只需要修正一遍位置，不重新打乱，
+ * 播放历史保持不变。这个类不是线程安全的。
+ */
+public class ShuffleOrder {
+    private final Random random;
+    private int[] order = new int[0];
+    private int size;
+    // order中已经确定顺序的项数
+    private int generated;
+    // 当前歌曲在order中的位置，还没有开始时为-1
+    private int cursor = -1;
+
+    public ShuffleOrder() {
+        this(new Random());
+    }
+
+    public ShuffleOrder(Random random) {
+        this.random = random;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 为count首歌开始新的一轮，first为当前歌曲，小于0时表示还没有当前歌曲
+     */
+    public void reset(int count, int first) {
+        if (order.length < count) {
+            order = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        size = count;
+        generated = 0;
+        cursor = -1;
+        if (first >= 0 && first < count) {
+            jumpTo(first);
+        }
+    }
+
+    /**
+     * 当前歌曲，还没有开始时返回-1
+     */
+    public int current() {
+        return cursor >= 0 ? order[cursor] : -1;
+    }
+
+    /**
+     * 下一首歌曲但不移动，这一轮已经播放完时返回-1。
+     * 需要时从未选过的歌曲中随机确定一首，之后的next返回同一首
+     */
+    public int peekNext() {
+        int position = cursor + 1;
+        if (position < generated) {
+            return order[position];
+        }
+        if (generated >= size) {
+            return -1;
+        }
+        // Fisher–Yates的一步：从[generated, size)中随机取一项换到generated
+        swap(generated, generated + random.nextInt(size - generated));
+        generated++;
+        return order[position];
+    }
+
+    /**
+     * 移到下一首，这一轮已经播放完时返回-1并且不移动
+     */
+    public int next() {
+        int following = peekNext();
+        if (following >= 0) {
+            cursor++;
+        }
+        return following;
+    }
+
+    /**
+     * 上一首歌曲但不移动，已经在历史开头时返回-1
+     */
+    public int peekPrevious() {
+        return cursor > 0 ? order[cursor - 1] : -1;
+    }
+
+    /**
+     * 沿播放历史回到上一首，已经在历史开头时返回-1并且不移动
+     */
+    public int previous() {
+        if (cursor <= 0) {
+            return -1;
+        }
+        cursor--;
+        return order[cursor];
+    }
+
+    /**
+     * 直接选择index为当前歌曲。已经播放过的歌曲回到它在历史中的位置，
+     * 没有播放过的歌曲接在已确定部分的末尾
+     */
+    public void jumpTo(int index) {
+        int position = indexOf(index);
+        if (position < 0) {
+            throw new IllegalArgumentException("index " + index + ", size " + size);
+        }
+        if (position >= generated) {
+            swap(generated, position);
+            position = generated;
+            generated++;
+        }
+        cursor = position;
+    }
+
+    /**
+     * 在末尾追加count首歌，它们加入未选过的歌曲中
+     */
+    public void append(int count) {
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            order[size] = size;
+            size++;
+        }
+    }
+
+    /**
+     * 在index处插入一首歌，原来位置不小于index的歌曲位置加一
+     */
+    public void insert(int index) {
+        insert(index, 1);
+    }
+
+    /**
+     * 在index处插入count首歌，它们加入未选过的歌曲中
+     */
+    public void insert(int index, int count) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        for (int i = 0; i < size; i++) {
+            if (order[i] >= index) {
+                order[i] += count;
+            }
+        }
+        ensureCapacity(size + count);
+        for (int i = 0; i < count; i++) {
+            order[size++] = index + i;
+        }
+    }
+
+    /**
+     * 在index处插入count首歌，并且排在当前歌曲之后依次播放，用于“下一首播放”
+     */
+    public void insertAfterCurrent(int index, int count) {
+        insert(index, count);
+        // insert把新歌曲放在末尾，挪到cursor之后并计入已确定的部分
+        int target = cursor + 1;
+        int[] added = Arrays.copyOfRange(order, size - count, size);
+        System.arraycopy(order, target, order, target + count, size - count - target);
+        System.arraycopy(added, 0, order, target, count);
+        generated += count;
+    }
+
+    /**
+     * 歌曲从from移到to，其间的歌曲依次挪动一位，播放顺序不变
+     */
+    public void move(int from, int to) {
+        for (int i = 0; i < size; i++) {
+            order[i] = PlayQueue.positionAfterMove(order[i], from, to);
+        }
+    }
+
+    /**
+     * 移除index处的歌曲，原来位置大于index的歌曲位置减一。
+     * 移除的是当前歌曲时，cursor退到它的前一首，next继续原来的顺序
+     */
+    public void remove(int index) {
+        int position = indexOf(index);
+        if (position < 0) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+        if (position < generated) {
+            // 保持历史的顺序，未选过的部分顺序无关，把最后一项移到空出的位置
+            System.arraycopy(order, position + 1, order, position, generated - position - 1);
+            generated--;
+            order[generated] = order[size - 1];
+            if (position <= cursor) {
+                cursor--;
+            }
+        } else {
+            order[position] = order[size - 1];
+        }
+        size--;
+        for (int i = 0; i < size; i++) {
+            if (order[i] > index) {
+                order[i]--;
+            }
+        }
+    }
+
+    /**
+     * 已经确定顺序的歌曲，从最早的一首开始
+     */
+    public int[] history() {
+        return Arrays.copyOf(order, generated);
+    }
+
+    private int indexOf(int index) {
+        for (int i = 0; i < size; i++) {
+            if (order[i] == index) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void swap(int i, int j) {
+        int value = order[i];
+        order[i] = order[j];
+        order[j] = value;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > order.length) {
+            order = Arrays.copyOf(order, Math.max(capacity, order.length + (order.length >> 1)));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.huangchao.musicplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在后台线程分批读取专辑、艺术家或播放列表的歌曲id，每读到一批就在主线程回调。
+ * 第一批到达时就可以开始播放，其余的歌曲随后追加到播放队列，
+ * 很大的艺术家或播放列表不需要等全部读完。
+ */
+public class SongIdLoader {
+    public static final int SOURCE_ALBUM = 0;
+    public static final int SOURCE_ARTIST = 1;
+    public static final int SOURCE_PLAYLIST = 2;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 回调总是在主线程中执行，批次按顺序到达
+     */
+    public interface Callback {
+        /**
+         * 读到一批歌曲id，first表示这是第一批
+         */
+        void onBatch(long[] ids, boolean first);
+
+        /**
+         * 读取结束，total为歌曲总数
+         */
+        void onFinished(int total);
+    }
+
+    private SongIdLoader() {
+    }
+
+    public static void load(Context context, final int source, final long id, final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MusicUtils.SongIdReader reader = open(appContext, source, id);
+                int total = 0;
+                if (reader != null) {
+                    try {
+                        long[] batch;
+                        while ((batch = reader.nextBatch()) != null) {
+                            postBatch(mainHandler, callback, batch, total == 0);
+                            total += batch.length;
+                        }
+                    } finally {
+                        reader.close();
+                    }
+                }
+                final int count = total;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFinished(count);
+                    }
+                });
+            }
+        });
+    }
+
+    private static MusicUtils.SongIdReader open(Context context, int source, long id) {
+        switch (source) {
+            case SOURCE_ALBUM:
+                return MusicUtils.openSongListForAlbum(context, id);
+            case SOURCE_ARTIST:
+                return MusicUtils.openSongListForArtist(context, id);
+            case SOURCE_PLAYLIST:
+                return MusicUtils.openSongListForPlaylist(context, id);
+            default:
+                throw new IllegalArgumentException("source " + source);
+        }
+    }
+
+    private static void postBatch(Handler mainHandler, final Callback callback,
+                                  final long[] ids, final boolean first) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onBatch(ids, first);
+            }
+        });
+    }
+}
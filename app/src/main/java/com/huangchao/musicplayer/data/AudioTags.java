@@ -0,0 +1,98 @@
+package com.huangchao.musicplayer.data;
+
+/**
+ * TagReader从歌曲文件中读出的标签。没有读到的字符串为null，
+ * 没有读到的时长为0，没有读到的回放增益为NaN。
+ * 内嵌封面不复制出来，只记录它在文件中的位置和长度，解码时再映射这一段。
+ */
+public class AudioTags {
+    String title;
+    String artist;
+    String album;
+    String albumArtist;
+    int trackNumber;
+    long durationMs;
+    // 时长来自文件头中记录的采样数或帧数，而不是按比特率估算
+    boolean durationExact;
+    float trackGain = Float.NaN;
+    float albumGain = Float.NaN;
+    String pictureMimeType;
+    // ID3/FLAC的图片类型，用来优先选择封面
+    int pictureType = -1;
+    long pictureOffset = -1;
+    int pictureLength;
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    public String getAlbumArtist() {
+        return albumArtist;
+    }
+
+    /**
+     * 音轨号，没有时为0
+     */
+    public int getTrackNumber() {
+        return trackNumber;
+    }
+
+    /**
+     * 由文件头计算的时长，单位毫秒，文件头中没有足够的信息时为0
+     */
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    /**
+     * 时长是否准确：FLAC的STREAMINFO、MP4的mvhd和MP3的Xing/VBRI帧数是准确的，
+     * 没有VBR头的MP3按固定比特率估算，不准确
+     */
+    public boolean isDurationExact() {
+        return durationExact;
+    }
+
+    /**
+     * 单曲的回放增益，单位dB
+     */
+    public float getTrackGain() {
+        return trackGain;
+    }
+
+    /**
+     * 专辑的回放增益，单位dB
+     */
+    public float getAlbumGain() {
+        return albumGain;
+    }
+
+    public boolean hasPicture() {
+        return pictureOffset >= 0 && pictureLength > 0;
+    }
+
+    /**
+     * 内嵌封面的MIME类型，例如image/jpeg，未知时为null
+     */
+    public String getPictureMimeType() {
+        return pictureMimeType;
+    }
+
+    /**
+     * 内嵌封面的图片数据在文件中的偏移
+     */
+    public long getPictureOffset() {
+        return pictureOffset;
+    }
+
+    public int getPictureLength() {
+        return pictureLength;
+    }
+}
@@ -0,0 +1,85 @@
+package com.huangchao.musicplayer.data;
+
+/**
+ * 从歌曲文件中读出的一首歌的属性，以及读取时文件的修改时间和长度，
+ * 文件之后被修改时这条结果失效。没有读到的字符串为null，时长为0，回放增益为NaN。
+ * 只保留准确的时长，按比特率估算的时长不如MediaStore的值，记为0。
+ */
+public class EnrichedTrack {
+    final long id;
+    final long lastModified;
+    final long fileLength;
+    final String title;
+    final String artist;
+    final String album;
+    final int durationMs;
+    final float trackGain;
+    final float albumGain;
+
+    public EnrichedTrack(long id, long lastModified, long fileLength, String title, String artist,
+                         String album, int durationMs, float trackGain, float albumGain) {
+        this.id = id;
+        this.lastModified = lastModified;
+        this.fileLength = fileLength;
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        this.durationMs = durationMs;
+        this.trackGain = trackGain;
+        this.albumGain = albumGain;
+    }
+
+    /**
+     * 由TagReader的结果创建，tags为null表示文件无法读取，只记录文件状态，
+     * 这样下次不会再读取同一个文件
+     */
+    public static EnrichedTrack from(long id, long lastModified, long fileLength, AudioTags tags) {
+        if (tags == null) {
+            return new EnrichedTrack(id, lastModified, fileLength, null, null, null, 0,
+                    Float.NaN, Float.NaN);
+        }
+        int durationMs = tags.isDurationExact()
+                ? (int) Math.min(tags.getDurationMs(), Integer.MAX_VALUE) : 0;
+        return new EnrichedTrack(id, lastModified, fileLength, tags.getTitle(), tags.getArtist(),
+                tags.getAlbum(), durationMs, tags.getTrackGain(), tags.getAlbumGain());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getArtist() {
+        return artist;
+    }
+
+    public String getAlbum() {
+        return album;
+    }
+
+    /**
+     * 由文件头计算的准确时长，单位毫秒，未知或只能估算时为0
+     */
+    public int getDurationMs() {
+        return durationMs;
+    }
+
+    public float getTrackGain() {
+        return trackGain;
+    }
+
+    public float getAlbumGain() {
+        return albumGain;
+    }
+}
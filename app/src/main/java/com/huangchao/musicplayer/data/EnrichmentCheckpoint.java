@@ -0,0 +1,189 @@
+package com.huangchao.musicplayer.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 补全标签的检查点，一个只追加的记录文件：每处理完一批歌曲追加一批EnrichedTrack。
+ * 记录按歌曲id索引，同一首歌以后写入的记录为准；文件的修改时间或长度变化后记录失效。
+ * 写入中途进程被杀死时，读取时丢弃末尾不完整的记录，之前的记录仍然有效，
+ * 下次从这里继续，已经处理过的文件不需要再读取。
+ * 文件格式：
+ * 头部   magic, version
+ * 记录   id, 修改时间, 文件长度, 时长, 单曲和专辑的回放增益, 标题/艺术家/专辑
+ * 可以在多个线程同时调用。
+ */
+public class EnrichmentCheckpoint {
+    private static final int MAGIC = 0x4d454e52; // "MENR"
+    // 版本2起只记录准确的时长，旧版本中估算的时长不再使用
+    private static final int VERSION = 2;
+    // writeUTF最多写入64K字节，过长的标签截断
+    private static final int MAX_STRING_LENGTH = 4096;
+
+    private final File file;
+    private final HashMap<Long, EnrichedTrack> entries = new HashMap<Long, EnrichedTrack>();
+    private DataOutputStream out;
+
+    private EnrichmentCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 读取检查点，只保留id在sortedIds（已经排序）中的记录。
+     * 文件有不完整、重复或不再需要的记录时先重写，再打开用于追加
+     */
+    public static EnrichmentCheckpoint open(File file, long[] sortedIds) throws IOException {
+        EnrichmentCheckpoint checkpoint = new EnrichmentCheckpoint(file);
+        boolean compact = !checkpoint.load(sortedIds);
+        if (compact) {
+            checkpoint.rewrite();
+        }
+        checkpoint.out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true), 16 * 1024));
+        return checkpoint;
+    }
+
+    /**
+     * 返回id的记录，没有记录或文件已经变化时返回null
+     */
+    public synchronized EnrichedTrack get(long id, long lastModified, long fileLength) {
+        EnrichedTrack track = entries.get(id);
+        if (track == null || track.lastModified != lastModified || track.fileLength != fileLength) {
+            return null;
+        }
+        return track;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 追加一批记录并写入文件
+     */
+    public synchronized void append(List<EnrichedTrack> tracks) throws IOException {
+        if (out == null) {
+            throw new IOException("checkpoint closed: " + file);
+        }
+        for (EnrichedTrack track : tracks) {
+            writeRecord(out, track);
+            entries.put(track.id, track);
+        }
+        out.flush();
+    }
+
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+        }
+        out = null;
+    }
+
+    /**
+     * 读取所有记录，文件可以直接继续追加时返回true
+     */
+    private boolean load(long[] sortedIds) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        int records = 0;
+        boolean complete = false;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            while (in.available() > 0) {
+                EnrichedTrack track = readRecord(in);
+                records++;
+                if (Arrays.binarySearch(sortedIds, track.id) >= 0) {
+                    entries.put(track.id, track);
+                }
+            }
+            complete = true;
+        } catch (IOException e) {
+            // 末尾不完整的记录，之前读到的仍然有效
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+        return complete && records == entries.size();
+    }
+
+    /**
+     * 先写入临时文件，成功后再替换
+     */
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream tmpOut = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            tmpOut.writeInt(MAGIC);
+            tmpOut.writeInt(VERSION);
+            for (EnrichedTrack track : entries.values()) {
+                writeRecord(tmpOut, track);
+            }
+        } finally {
+            tmpOut.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, EnrichedTrack track) throws IOException {
+        out.writeLong(track.id);
+        out.writeLong(track.lastModified);
+        out.writeLong(track.fileLength);
+        out.writeInt(track.durationMs);
+        out.writeFloat(track.trackGain);
+        out.writeFloat(track.albumGain);
+        writeString(out, track.title);
+        writeString(out, track.artist);
+        writeString(out, track.album);
+    }
+
+    private static EnrichedTrack readRecord(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        long lastModified = in.readLong();
+        long fileLength = in.readLong();
+        int durationMs = in.readInt();
+        float trackGain = in.readFloat();
+        float albumGain = in.readFloat();
+        String title = readString(in);
+        String artist = readString(in);
+        String album = readString(in);
+        return new EnrichedTrack(id, lastModified, fileLength, title, artist, album, durationMs,
+                trackGain, albumGain);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s.length() > MAX_STRING_LENGTH ? s.substring(0, MAX_STRING_LENGTH) : s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,321 @@
+package com.huangchao.musicplayer.data;
+
+import java.util.Arrays;
+
+/**
+ * 按专辑和艺术家分组的歌曲索引，由TrackStore中的albumId和artistId建立。
+ * 每个分组的歌曲id保存在一个long数组的连续区间中，starts[g]到starts[g + 1]；
+ * 艺术家另外有自己的专辑列表。浏览专辑、艺术家或播放整张专辑时直接取出区间，
+ * 不需要查询ContentResolver。
+ * 建立时读一遍TrackStore，之后只处理int数组。TrackStore有排序时按专辑、艺术家的排序遍历，
+ * 分组按名称排列，组内的歌曲也按排序排列。专辑内的歌曲再按音轨号排列，
+ * 艺术家的歌曲在每张专辑内也按音轨号排列；音轨号未知的排在最后，保持原来的顺序。
+ * 分组是建立时的快照，之后的修改不会反映到这里。
+ */
+public class LibraryGroups {
+    // 专辑有多位艺术家时显示的名称
+    public static final String VARIOUS_ARTISTS = "群星";
+
+    private final int albumCount;
+    private final long[] albumIds;
+    private final String[] albumNames;
+    private final String[] albumArtists;
+    private final int[] albumStarts;
+    private final long[] albumTracks;
+
+    private final int artistCount;
+    private final long[] artistIds;
+    private final String[] artistNames;
+    private final int[] artistStarts;
+    private final long[] artistTracks;
+    // 艺术家的专辑：artistAlbums中artistAlbumStarts[a]到artistAlbumStarts[a + 1]的专辑序号
+    private final int[] artistAlbumStarts;
+    private final int[] artistAlbums;
+
+    private final IdMap albumIndex;
+    private final IdMap artistIndex;
+
+    private LibraryGroups(TrackStore tracks) {
+        int size = tracks.size();
+        long[] ids = tracks.copyIds();
+        int[] rowAlbums = new int[size];
+        int[] rowArtists = new int[size];
+
+        // 一遍读取：为每首歌分配专辑和艺术家的分组序号，按排序第一次出现的顺序编号
+        int[] albumOrder = tracks.getSortOrder(SortOrders.SORT_ALBUM);
+        int[] artistOrder = tracks.getSortOrder(SortOrders.SORT_ARTIST);
+        albumIndex = new IdMap(size);
+        artistIndex = new IdMap(size);
+        String[] albumNames = new String[16];
+        String[] albumArtists = new String[16];
+        String[] artistNames = new String[16];
+        for (int i = 0; i < size; i++) {
+            int row = albumOrder != null ? albumOrder[i] : i;
+            int before = albumIndex.size();
+            int album = albumIndex.add(tracks.getMusicAlbumId(row));
+            if (album == albumNames.length) {
+                albumNames = Arrays.copyOf(albumNames, album * 2);
+                albumArtists = Arrays.copyOf(albumArtists, album * 2);
+            }
+            String artist = tracks.getmusicArtist(row);
+            if (album == before) {
+                albumNames[album] = tracks.getMusicAlbum(row);
+                albumArtists[album] = artist;
+            } else if (!equals(albumArtists[album], artist)) {
+                albumArtists[album] = VARIOUS_ARTISTS;
+            }
+            rowAlbums[row] = album;
+
+            row = artistOrder != null ? artistOrder[i] : i;
+            before = artistIndex.size();
+            int group = artistIndex.add(tracks.getMusicArtistId(row));
+            if (group == artistNames.length) {
+                artistNames = Arrays.copyOf(artistNames, group * 2);
+            }
+            if (group == before) {
+                artistNames[group] = tracks.getmusicArtist(row);
+            }
+            rowArtists[row] = group;
+        }
+        albumCount = albumIndex.size();
+        artistCount = artistIndex.size();
+        albumIds = albumIndex.keys();
+        artistIds = artistIndex.keys();
+        this.albumNames = Arrays.copyOf(albumNames, albumCount);
+        this.albumArtists = Arrays.copyOf(albumArtists, albumCount);
+        this.artistNames = Arrays.copyOf(artistNames, artistCount);
+
+        // 计数排序，把歌曲位置放到各自分组的区间中，再按音轨号排列后换成歌曲id
+        int[] rows = new int[size];
+        long[] keys = new long[size];
+        albumStarts = new int[albumCount + 1];
+        group(rowAlbums, albumOrder, albumStarts, rows);
+        for (int album = 0; album < albumCount; album++) {
+            sortByTrackNumber(tracks, rows, albumStarts[album], albumStarts[album + 1], keys);
+        }
+        albumTracks = toIds(ids, rows);
+        artistStarts = new int[artistCount + 1];
+        group(rowArtists, artistOrder, artistStarts, rows);
+        for (int artist = 0; artist < artistCount; artist++) {
+            // 艺术家的区间按专辑排列，同一张专辑是连续的一段
+            int end = artistStarts[artist + 1];
+            for (int start = artistStarts[artist]; start < end; ) {
+                int next = start + 1;
+                while (next < end && rowAlbums[rows[next]] == rowAlbums[rows[start]]) {
+                    next++;
+                }
+                sortByTrackNumber(tracks, rows, start, next, keys);
+                start = next;
+            }
+        }
+        artistTracks = toIds(ids, rows);
+
+        // 艺术家的专辑：对(艺术家, 专辑)对排序去重，专辑序号本身按名称排列
+        long[] pairs = new long[size];
+        for (int row = 0; row < size; row++) {
+            pairs[row] = ((long) rowArtists[row] << 32) | rowAlbums[row];
+        }
+        Arrays.sort(pairs);
+        artistAlbumStarts = new int[artistCount + 1];
+        int[] albums = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (i > 0 && pairs[i] == pairs[i - 1]) {
+                continue;
+            }
+            albums[count++] = (int) pairs[i];
+            artistAlbumStarts[(int) (pairs[i] >>> 32) + 1]++;
+        }
+        for (int a = 0; a < artistCount; a++) {
+            artistAlbumStarts[a + 1] += artistAlbumStarts[a];
+        }
+        artistAlbums = Arrays.copyOf(albums, count);
+    }
+
+    /**
+     * 建立分组，需要在修改tracks的线程调用，或者对副本调用
+     */
+    public static LibraryGroups build(TrackStore tracks) {
+        return new LibraryGroups(tracks);
+    }
+
+    public int getAlbumCount() {
+        return albumCount;
+    }
+
+    public long getAlbumId(int album) {
+        return albumIds[album];
+    }
+
+    public String getAlbumName(int album) {
+        return albumNames[album];
+    }
+
+    /**
+     * 专辑的艺术家，有多位艺术家时为VARIOUS_ARTISTS
+     */
+    public String getAlbumArtist(int album) {
+        return albumArtists[album];
+    }
+
+    public int getAlbumTrackCount(int album) {
+        return albumStarts[album + 1] - albumStarts[album];
+    }
+
+    /**
+     * 专辑的歌曲id
+     */
+    public long[] getAlbumTracks(int album) {
+        return Arrays.copyOfRange(albumTracks, albumStarts[album], albumStarts[album + 1]);
+    }
+
+    /**
+     * albumId对应的专辑序号，没有这张专辑时返回-1
+     */
+    public int indexOfAlbum(long albumId) {
+        return albumIndex.get(albumId);
+    }
+
+    public int getArtistCount() {
+        return artistCount;
+    }
+
+    public long getArtistId(int artist) {
+        return artistIds[artist];
+    }
+
+    public String getArtistName(int artist) {
+        return artistNames[artist];
+    }
+
+    public int getArtistTrackCount(int artist) {
+        return artistStarts[artist + 1] - artistStarts[artist];
+    }
+
+    /**
+     * 艺术家的歌曲id，按专辑排列
+     */
+    public long[] getArtistTracks(int artist) {
+        return Arrays.copyOfRange(artistTracks, artistStarts[artist], artistStarts[artist + 1]);
+    }
+
+    /**
+     * 艺术家有歌曲的专辑，返回专辑序号
+     */
+    public int[] getArtistAlbums(int artist) {
+        return Arrays.copyOfRange(artistAlbums, artistAlbumStarts[artist], artistAlbumStarts[artist + 1]);
+    }
+
+    public int indexOfArtist(long artistId) {
+        return artistIndex.get(artistId);
+    }
+
+    /**
+     * 计数排序：starts先统计每组的歌曲数，再累加为区间起点，最后按order的顺序放入歌曲位置
+     */
+    private static void group(int[] rowGroups, int[] order, int[] starts, int[] grouped) {
+        for (int group : rowGroups) {
+            starts[group + 1]++;
+        }
+        for (int g = 1; g < starts.length; g++) {
+            starts[g] += starts[g - 1];
+        }
+        int[] cursors = Arrays.copyOf(starts, starts.length - 1);
+        for (int i = 0; i < rowGroups.length; i++) {
+            int row = order != null ? order[i] : i;
+            grouped[cursors[rowGroups[row]]++] = row;
+        }
+    }
+
+    /**
+     * 把rows中start到end的歌曲按音轨号排列。音轨号在高位，区间内原来的序号在低位，
+     * 音轨号相同时保持原来的顺序；未知的音轨号换成最大值排在最后
+     */
+    private static void sortByTrackNumber(TrackStore tracks, int[] rows, int start, int end, long[] keys) {
+        if (end - start < 2) {
+            return;
+        }
+        int[] original = Arrays.copyOfRange(rows, start, end);
+        for (int i = 0; i < original.length; i++) {
+            int track = tracks.getTrackNumber(original[i]);
+            keys[i] = ((long) (track > 0 ? track : Integer.MAX_VALUE) << 32) | i;
+        }
+        Arrays.sort(keys, 0, original.length);
+        for (int i = 0; i < original.length; i++) {
+            rows[start + i] = original[(int) keys[i]];
+        }
+    }
+
+    private static long[] toIds(long[] ids, int[] rows) {
+        long[] grouped = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            grouped[i] = ids[rows[i]];
+        }
+        return grouped;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * long到分组序号的开放寻址散列表，序号按加入的顺序从0开始
+     */
+    private static final class IdMap {
+        private final long[] slotKeys;
+        private final int[] slotValues;
+        private long[] keys;
+        private int size;
+
+        IdMap(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(expected, 1) * 2) * 2;
+            slotKeys = new long[capacity];
+            slotValues = new int[capacity];
+            keys = new long[16];
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * 返回key的序号，key还没有序号时分配一个新的
+         */
+        int add(long key) {
+            int mask = slotKeys.length - 1;
+            int slot = hash(key) & mask;
+            while (slotValues[slot] != 0) {
+                if (slotKeys[slot] == key) {
+                    return slotValues[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            keys[size] = key;
+            slotKeys[slot] = key;
+            slotValues[slot] = ++size;
+            return size - 1;
+        }
+
+        int get(long key) {
+            int mask = slotKeys.length - 1;
+            for (int slot = hash(key) & mask; slotValues[slot] != 0; slot = (slot + 1) & mask) {
+                if (slotKeys[slot] == key) {
+                    return slotValues[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        long[] keys() {
+            return Arrays.copyOf(keys, size);
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
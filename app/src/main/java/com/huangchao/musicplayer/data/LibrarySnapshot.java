@@ -0,0 +1,240 @@
+package com.huangchao.musicplayer.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 歌曲库的二进制快照，供下次启动时直接显示列表。
+ * 文件格式：
+ * 头部   magic, version, 歌曲数, 字符串数
+ * 字符串池 每个字符串为 长度 + UTF-8字节，相同的字符串只保存一次
+ * 歌曲   id, albumId, artistId, 时长, 加入时间, 单曲和专辑的回放增益, 音轨号, 以及标题/艺术家/专辑/路径在字符串池中的序号
+ * 读取时通过内存映射访问文件，不经过流拷贝；歌曲是定长的，可以按页读取，见Reader。
+ */
+public class LibrarySnapshot {
+    private static final int MAGIC = 0x4d534e50; // "MSNP"
+    private static final int VERSION = 5;
+    private static final int NULL_STRING = -1;
+    private static final int HEADER_BYTES = 16;
+    // 每首歌曲：三个long id，时长，加入时间，两个回放增益，音轨号，四个字符串序号
+    private static final int ROW_BYTES = 8 * 3 + 4 + 8 + 4 * 2 + 4 + 4 * 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private LibrarySnapshot() {
+    }
+
+    /**
+     * 先写入临时文件，成功后再替换，避免留下半个快照
+     */
+    static void write(File file, TrackStore tracks) throws IOException {
+        HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+        ArrayList<String> pool = new ArrayList<String>();
+        int count = tracks.size();
+        int[] refs = new int[count * 4];
+        for (int i = 0; i < count; i++) {
+            refs[i * 4] = intern(tracks.getmusicName(i), poolIndex, pool);
+            refs[i * 4 + 1] = intern(tracks.getmusicArtist(i), poolIndex, pool);
+            refs[i * 4 + 2] = intern(tracks.getMusicAlbum(i), poolIndex, pool);
+            refs[i * 4 + 3] = intern(tracks.getmusicPath(i), poolIndex, pool);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(pool.size());
+            for (String s : pool) {
+                byte[] bytes = s.getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeLong(tracks.getMusicId(i));
+                out.writeLong(tracks.getMusicAlbumId(i));
+                out.writeLong(tracks.getMusicArtistId(i));
+                out.writeInt(tracks.getmusicDuration(i));
+                out.writeLong(tracks.getMusicDateAdded(i));
+                out.writeFloat(tracks.getTrackGain(i));
+                out.writeFloat(tracks.getAlbumGain(i));
+                out.writeInt(tracks.getTrackNumber(i));
+                for (int j = 0; j < 4; j++) {
+                    out.writeInt(refs[i * 4 + j]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename failed: " + file);
+        }
+    }
+
+    /**
+     * 打开快照，文件不存在或已损坏时返回null。
+     * 只检查头部和字符串池的布局，歌曲和字符串在读取页时才解码，可以在后台线程调用
+     */
+    static Reader open(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            // 关闭文件之后映射仍然有效
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return Reader.open(buffer);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                if (raf != null) {
+                    raf.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 按页读取快照。第一页只需要解码这一页的歌曲和它们引用的字符串，
+     * 不需要先解码整个文件，列表可以在快照读完之前显示。
+     */
+    public static final class Reader {
+        private final ByteBuffer buffer;
+        private final int count;
+        private final int rowsStart;
+        // 每个字符串的长度字段在文件中的位置，以及已经解码的字符串
+        private final int[] poolOffsets;
+        private final String[] pool;
+        private byte[] scratch = new byte[256];
+        private int next;
+
+        private Reader(ByteBuffer buffer, int count, int rowsStart, int[] poolOffsets) {
+            this.buffer = buffer;
+            this.count = count;
+            this.rowsStart = rowsStart;
+            this.poolOffsets = poolOffsets;
+            this.pool = new String[poolOffsets.length];
+        }
+
+        /**
+         * 在分配任何数组之前，先用文件长度检查头部中的歌曲数和字符串数
+         */
+        static Reader open(ByteBuffer buffer) {
+            int limit = buffer.limit();
+            if (limit < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return null;
+            }
+            int count = buffer.getInt(8);
+            int poolSize = buffer.getInt(12);
+            if (count < 0 || poolSize < 0 || (long) count * ROW_BYTES > limit - HEADER_BYTES
+                    || (long) poolSize * 4 > limit - HEADER_BYTES) {
+                return null;
+            }
+            int[] poolOffsets = new int[poolSize];
+            long position = HEADER_BYTES;
+            for (int i = 0; i < poolSize; i++) {
+                if (position + 4 > limit) {
+                    return null;
+                }
+                int length = buffer.getInt((int) position);
+                if (length < 0) {
+                    return null;
+                }
+                poolOffsets[i] = (int) position;
+                position += 4 + length;
+            }
+            // 歌曲是定长的，必须正好到文件末尾
+            if (position + (long) count * ROW_BYTES != limit) {
+                return null;
+            }
+            return new Reader(buffer, count, (int) position, poolOffsets);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public boolean hasNext() {
+            return next < count;
+        }
+
+        /**
+         * 解码接下来的最多max首歌曲
+         */
+        public TrackStore readPage(int max) {
+            int end = next + Math.min(max, count - next);
+            TrackStore page = new TrackStore(end - next);
+            for (; next < end; next++) {
+                int row = rowsStart + next * ROW_BYTES;
+                long id = buffer.getLong(row);
+                long albumId = buffer.getLong(row + 8);
+                long artistId = buffer.getLong(row + 16);
+                int duration = buffer.getInt(row + 24);
+                long dateAdded = buffer.getLong(row + 28);
+                float trackGain = buffer.getFloat(row + 36);
+                float albumGain = buffer.getFloat(row + 40);
+                int trackNumber = buffer.getInt(row + 44);
+                String title = lookup(buffer.getInt(row + 48));
+                String artist = lookup(buffer.getInt(row + 52));
+                String album = lookup(buffer.getInt(row + 56));
+                String path = lookup(buffer.getInt(row + 60));
+                page.add(id, title, artist, album, path, duration, albumId, artistId, dateAdded);
+                page.setReplayGain(page.size() - 1, trackGain, albumGain);
+                page.setTrackNumber(page.size() - 1, trackNumber);
+            }
+            return page;
+        }
+
+        /**
+         * 第一次引用时解码字符串，序号超出范围的按null处理
+         */
+        private String lookup(int ref) {
+            if (ref < 0 || ref >= pool.length) {
+                return null;
+            }
+            String s = pool[ref];
+            if (s == null) {
+                int offset = poolOffsets[ref];
+                int length = buffer.getInt(offset);
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                ByteBuffer bytes = buffer.duplicate();
+                bytes.position(offset + 4);
+                bytes.get(scratch, 0, length);
+                s = new String(scratch, 0, length, UTF_8);
+                pool[ref] = s;
+            }
+            return s;
+        }
+    }
+
+    private static int intern(String s, HashMap<String, Integer> poolIndex, ArrayList<String> pool) {
+        if (s == null) {
+            return NULL_STRING;
+        }
+        Integer ref = poolIndex.get(s);
+        if (ref == null) {
+            ref = pool.size();
+            poolIndex.put(s, ref);
+            pool.add(s);
+        }
+        return ref;
+    }
+}
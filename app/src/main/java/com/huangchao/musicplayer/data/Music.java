@@ -9,14 +9,15 @@ public class Music {
     private String musicName;
     private String musicArtist;
     private String musicPath;
-    private String musicDuration;
+    // 时长，单位毫秒
+    private int musicDuration;
     private String musicAlbum;
 
     public long musicId;
     public long musicArtistId;
     public long musicAlbumId;
 
-    public Music(String musicName, String musicArtist, String musicPath, String musicDuration, String musicAlbum) {
+    public Music(String musicName, String musicArtist, String musicPath, int musicDuration, String musicAlbum) {
         this.musicName = musicName;
         this.musicArtist = musicArtist;
         this.musicPath = musicPath;
@@ -36,7 +37,7 @@ public class Music {
         return this.musicPath;
     }
 
-    public String getmusicDuration() {
+    public int getmusicDuration() {
         return this.musicDuration;
     }
 
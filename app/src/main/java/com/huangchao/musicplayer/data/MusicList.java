@@ -1,20 +1,73 @@
 package com.huangchao.musicplayer.data;
 
-import java.util.ArrayList;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
 
 /*
  * MusicList类，采用单一实例，
  * 只能通过getMusicList方法获取
- * 共享，唯一的ArrayList<Music>对象
+ * 共享，唯一的TrackStore对象
  * */
 public class MusicList {
+    private static final String TAG = "MusicList";
+    private static final String SNAPSHOT_FILE = "library.snapshot";
 
-    private static ArrayList<Music> musicarray = new ArrayList<Music>();
+    private static TrackStore musicarray = new TrackStore();
+    // 列表是否完整加载过：快照全部读入，或者完整扫描结束。只在主线程读写
+    private static boolean loaded;
 
     private MusicList() {
     }
 
-    public static ArrayList<Music> getMusicList() {
+    public static TrackStore getMusicList() {
         return musicarray;
     }
+
+    /**
+     * 列表是否完整。加载快照或完整扫描被中途取消时列表只有一部分，
+     * 不能在它上面做增量扫描，也不能把它写入快照
+     */
+    public static boolean isLoaded() {
+        return loaded;
+    }
+
+    public static void setLoaded(boolean isLoaded) {
+        loaded = isLoaded;
+    }
+
+    /**
+     * 返回所有歌曲id的副本
+     */
+    public static long[] getMusicIds() {
+        return musicarray.copyIds();
+    }
+
+    /**
+     * 打开快照文件，由调用者按页读取并加入列表，可以在后台线程调用。
+     * 快照不存在或已损坏时返回null
+     */
+    public static LibrarySnapshot.Reader openSnapshot(Context context) {
+        return LibrarySnapshot.open(getSnapshotFile(context));
+    }
+
+    /**
+     * 把歌曲列表写入快照文件，可以在后台线程调用，
+     * 调用者需要传入列表的副本。扫描和补全标签都会写入快照，写入互斥
+     */
+    public static synchronized boolean saveSnapshot(Context context, TrackStore tracks) {
+        try {
+            LibrarySnapshot.write(getSnapshotFile(context), tracks);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "saveSnapshot failed", e);
+            return false;
+        }
+    }
+
+    private static File getSnapshotFile(Context context) {
+        return new File(context.getFilesDir(), SNAPSHOT_FILE);
+    }
 }
@@ -0,0 +1,252 @@
+package com.huangchao.musicplayer.data;
+
+import java.util.Arrays;
+
+/**
+ * 播放队列，按顺序保存歌曲id。
+ * 数据放在一个带间隙的long数组中：间隙跟随最近一次修改的位置移动，
+ * 在同一处附近连续插入或移除（下一首播放、拖动排序）只需要移动很少的元素。
+ * 每次修改都通知ChangeListener，PlayQueueStore据此增量写入磁盘。
+ * 这个类不是线程安全的。
+ */
+public class PlayQueue {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * 队列的修改，在修改完成之后回调
+     */
+    public interface ChangeListener {
+        /**
+         * 整个队列被替换
+         */
+        void onQueueSet(PlayQueue queue);
+
+        void onQueueInserted(int position, long[] ids, int offset, int count);
+
+        void onQueueRemoved(int position, int count);
+
+        void onQueueMoved(int from, int to);
+    }
+
+    private long[] buffer;
+    // 间隙为[gapStart, gapEnd)
+    private int gapStart;
+    private int gapEnd;
+    private ChangeListener listener;
+
+    public PlayQueue() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public PlayQueue(int capacity) {
+        buffer = new long[Math.max(capacity, 1)];
+        gapStart = 0;
+        gapEnd = buffer.length;
+    }
+
+    public void setChangeListener(ChangeListener listener) {
+        this.listener = listener;
+    }
+
+    public int size() {
+        return buffer.length - (gapEnd - gapStart);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public long get(int position) {
+        if (position < 0 || position >= size()) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+        }
+        return position < gapStart ? buffer[position] : buffer[position + gapEnd - gapStart];
+    }
+
+    /**
+     * 返回id第一次出现的位置，找不到返回-1
+     */
+    public int indexOf(long id) {
+        for (int i = 0; i < gapStart; i++) {
+            if (buffer[i] == id) {
+                return i;
+            }
+        }
+        for (int i = gapEnd; i < buffer.length; i++) {
+            if (buffer[i] == id) {
+                return i - (gapEnd - gapStart);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 与ids的内容是否相同
+     */
+    public boolean contentEquals(long[] ids) {
+        if (ids.length != size()) {
+            return false;
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (get(i) != ids[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long[] toArray() {
+        long[] ids = new long[size()];
+        System.arraycopy(buffer, 0, ids, 0, gapStart);
+        System.arraycopy(buffer, gapEnd, ids, gapStart, buffer.length - gapEnd);
+        return ids;
+    }
+
+    /**
+     * 用ids替换整个队列
+     */
+    public void setAll(long[] ids) {
+        buffer = Arrays.copyOf(ids, Math.max(ids.length + (ids.length >> 2), INITIAL_CAPACITY));
+        gapStart = ids.length;
+        gapEnd = buffer.length;
+        if (listener != null) {
+            listener.onQueueSet(this);
+        }
+    }
+
+    /**
+     * 追加到队列末尾
+     */
+    public void addAll(long[] ids) {
+        insert(size(), ids, 0, ids.length);
+    }
+
+    public void insert(int position, long[] ids) {
+        insert(position, ids, 0, ids.length);
+    }
+
+    /**
+     * 把ids[offset, offset + count)插入到position处
+     */
+    public void insert(int position, long[] ids, int offset, int count) {
+        if (position < 0 || position > size()) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+        }
+        if (count == 0) {
+            return;
+        }
+        moveGap(position);
+        ensureGap(count);
+        System.arraycopy(ids, offset, buffer, gapStart, count);
+        gapStart += count;
+        if (listener != null) {
+            listener.onQueueInserted(position, ids, offset, count);
+        }
+    }
+
+    /**
+     * 移除[position, position + count)
+     */
+    public void remove(int position, int count) {
+        if (position < 0 || count < 0 || position + count > size()) {
+            throw new IndexOutOfBoundsException("position " + position + ", count " + count
+                    + ", size " + size());
+        }
+        if (count == 0) {
+            return;
+        }
+        moveGap(position);
+        gapEnd += count;
+        if (listener != null) {
+            listener.onQueueRemoved(position, count);
+        }
+    }
+
+    /**
+     * 把from处的歌曲移到to处，其间的歌曲依次挪动一位
+     */
+    public void move(int from, int to) {
+        int size = size();
+        if (from < 0 || from >= size || to < 0 || to >= size) {
+            throw new IndexOutOfBoundsException("from " + from + ", to " + to + ", size " + size);
+        }
+        if (from == to) {
+            return;
+        }
+        long id = get(from);
+        moveGap(from);
+        gapEnd++;
+        moveGap(to);
+        buffer[gapStart++] = id;
+        if (listener != null) {
+            listener.onQueueMoved(from, to);
+        }
+    }
+
+    /**
+     * 在position处插入count首歌之后，原来位置p的新位置
+     */
+    public static int positionAfterInsert(int p, int position, int count) {
+        return p >= position ? p + count : p;
+    }
+
+    /**
+     * 移除[position, position + count)之后，原来位置p的新位置，p被移除时返回-1
+     */
+    public static int positionAfterRemove(int p, int position, int count) {
+        if (p < position) {
+            return p;
+        }
+        return p >= position + count ? p - count : -1;
+    }
+
+    /**
+     * 把from移到to之后，原来位置p的新位置
+     */
+    public static int positionAfterMove(int p, int from, int to) {
+        if (p == from) {
+            return to;
+        }
+        if (from < p && p <= to) {
+            return p - 1;
+        }
+        if (to <= p && p < from) {
+            return p + 1;
+        }
+        return p;
+    }
+
+    /**
+     * 把间隙移到position处
+     */
+    private void moveGap(int position) {
+        if (position < gapStart) {
+            int count = gapStart - position;
+            System.arraycopy(buffer, position, buffer, gapEnd - count, count);
+            gapStart -= count;
+            gapEnd -= count;
+        } else if (position > gapStart) {
+            int count = position - gapStart;
+            System.arraycopy(buffer, gapEnd, buffer, gapStart, count);
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+
+    /**
+     * 保证间隙至少有count个位置，扩容时间隙保持在原来的位置
+     */
+    private void ensureGap(int count) {
+        if (gapEnd - gapStart >= count) {
+            return;
+        }
+        int size = size();
+        int capacity = Math.max(size + count, buffer.length + (buffer.length >> 1));
+        long[] grown = new long[capacity];
+        int tail = buffer.length - gapEnd;
+        System.arraycopy(buffer, 0, grown, 0, gapStart);
+        System.arraycopy(buffer, gapEnd, grown, capacity - tail, tail);
+        buffer = grown;
+        gapEnd = capacity - tail;
+    }
+}
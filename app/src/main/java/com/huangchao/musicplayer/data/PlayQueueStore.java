@@ -0,0 +1,368 @@
+package com.huangchao.musicplayer.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
+/**
+ * 把播放队列和当前位置保存到文件，下次启动时恢复。
+ * 文件由头部（magic, version）和一串修改记录组成，
+ * 队列每次修改只在末尾追加一条记录，不重写整个队列；
+ * 记录太多或者整个队列被替换时再压缩为一条完整的SET记录。
+ * 压缩和当前位置的记录都推迟到flush时写入，替换队列之后可以先开始播放，
+ * 连续切歌时位置也只写入一次。
+ * 最后一条记录写到一半时（例如进程被杀），读取时忽略它。
+ * 所有方法都要在同一个线程调用。
+ */
+public class PlayQueueStore implements PlayQueue.ChangeListener {
+    private static final int MAGIC = 0x4d505155; // "MPQU"
+    private static final int VERSION = 1;
+    // 记录类型
+    private static final byte OP_SET = 1;
+    private static final byte OP_INSERT = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_MOVE = 4;
+    private static final byte OP_POSITION = 5;
+    // 追加的记录超过这个数时压缩
+    private static final int MAX_RECORDS = 512;
+
+    private final File file;
+    // 安排推迟的flush，为null时等到调用flush或close
+    private final Executor flushExecutor;
+    private PlayQueue queue;
+    private int position = -1;
+    private DataOutputStream out;
+    // 上次压缩之后追加的记录数
+    private int records;
+    // 写入失败过，下次修改时重写整个文件
+    private boolean dirty;
+    // 需要重写整个文件，在这之前的修改不再追加记录
+    private boolean compactPending;
+    // 缓冲区中有还没交给系统的位置记录
+    private boolean flushPending;
+    private boolean flushScheduled;
+
+    public PlayQueueStore(File file) {
+        this(file, null);
+    }
+
+    /**
+     * executor安排推迟的flush，必须在调用其他方法的同一个线程上执行，
+     * 可以延迟一段时间，让多次修改合并为一次写入
+     */
+    public PlayQueueStore(File file, Executor executor) {
+        this.file = file;
+        this.flushExecutor = executor;
+    }
+
+    /**
+     * 读取保存的队列，之后队列的修改自动写入文件。
+     * 文件不存在或头部损坏时返回空队列
+     */
+    public PlayQueue load() {
+        queue = new PlayQueue();
+        position = -1;
+        boolean complete = replay();
+        queue.setChangeListener(this);
+        if (!complete || records > MAX_RECORDS) {
+            // 去掉损坏的尾部，之后的记录才能接在有效的记录后面
+            compact();
+        }
+        return queue;
+    }
+
+    /**
+     * 最后保存的当前位置，没有时为-1
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    public void setPosition(int position) {
+        if (this.position == position) {
+            return;
+        }
+        this.position = position;
+        if (startRecord()) {
+            try {
+                // 位置丢失的代价很小，留在缓冲区中等flush
+                out.writeByte(OP_POSITION);
+                out.writeInt(position);
+                records++;
+                flushPending = true;
+                scheduleFlush();
+            } catch (IOException e) {
+                fail();
+            }
+        }
+    }
+
+    @Override
+    public void onQueueSet(PlayQueue queue) {
+        compactPending = true;
+        scheduleFlush();
+    }
+
+    @Override
+    public void onQueueInserted(int position, long[] ids, int offset, int count) {
+        if (startRecord()) {
+            try {
+                out.writeByte(OP_INSERT);
+                out.writeInt(position);
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(ids[offset + i]);
+                }
+                endRecord();
+            } catch (IOException e) {
+                fail();
+            }
+        }
+    }
+
+    @Override
+    public void onQueueRemoved(int position, int count) {
+        if (startRecord()) {
+            try {
+                out.writeByte(OP_REMOVE);
+                out.writeInt(position);
+                out.writeInt(count);
+                endRecord();
+            } catch (IOException e) {
+                fail();
+            }
+        }
+    }
+
+    @Override
+    public void onQueueMoved(int from, int to) {
+        if (startRecord()) {
+            try {
+                out.writeByte(OP_MOVE);
+                out.writeInt(from);
+                out.writeInt(to);
+                endRecord();
+            } catch (IOException e) {
+                fail();
+            }
+        }
+    }
+
+    /**
+     * 写入推迟的内容：需要时重写整个文件，否则把缓冲的记录交给系统
+     */
+    public void flush() {
+        flushScheduled = false;
+        if (compactPending) {
+            compact();
+            return;
+        }
+        if (flushPending && out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail();
+            }
+        }
+        flushPending = false;
+    }
+
+    public void close() {
+        flush();
+        closeStream();
+    }
+
+    private void closeStream() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * 准备追加一条记录。文件还不存在或者需要压缩时安排重写整个文件并返回false，
+     * 重写时队列已经修改完成，重写的内容会包含这次修改
+     */
+    private boolean startRecord() {
+        if (compactPending) {
+            return false;
+        }
+        if (dirty || records >= MAX_RECORDS || !file.exists()) {
+            compactPending = true;
+            scheduleFlush();
+            return false;
+        }
+        if (out == null) {
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file, true), 8 * 1024));
+            } catch (IOException e) {
+                fail();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 队列修改的记录写完就交给系统，进程被杀时最多丢失正在写的一条
+     */
+    private void endRecord() throws IOException {
+        out.flush();
+        records++;
+        flushPending = false;
+    }
+
+    private void scheduleFlush() {
+        if (flushExecutor != null && !flushScheduled) {
+            flushScheduled = true;
+            flushExecutor.execute(flushTask);
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            if (flushScheduled) {
+                flush();
+            }
+        }
+    };
+
+    private void fail() {
+        closeStream();
+        dirty = true;
+    }
+
+    /**
+     * 把当前队列和位置写成一个新文件，替换原来的文件
+     */
+    private void compact() {
+        closeStream();
+        compactPending = false;
+        flushPending = false;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream tmpOut = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                tmpOut.writeInt(MAGIC);
+                tmpOut.writeInt(VERSION);
+                tmpOut.writeByte(OP_SET);
+                tmpOut.writeInt(queue.size());
+                for (int i = 0; i < queue.size(); i++) {
+                    tmpOut.writeLong(queue.get(i));
+                }
+                tmpOut.writeByte(OP_POSITION);
+                tmpOut.writeInt(position);
+            } finally {
+                tmpOut.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed: " + file);
+            }
+            records = 0;
+            dirty = false;
+        } catch (IOException e) {
+            tmp.delete();
+            dirty = true;
+        }
+    }
+
+    /**
+     * 按顺序重放文件中的记录，读到完整的末尾返回true
+     */
+    private boolean replay() {
+        if (!file.exists()) {
+            return true;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            while (true) {
+                int op = in.read();
+                if (op < 0) {
+                    return true;
+                }
+                if (!replayRecord(op, in)) {
+                    return false;
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * 重放一条记录，记录的内容不合理时返回false
+     */
+    private boolean replayRecord(int op, DataInputStream in) throws IOException {
+        switch (op) {
+            case OP_SET:
+            case OP_INSERT: {
+                int at = op == OP_SET ? 0 : in.readInt();
+                int count = in.readInt();
+                // 长度不可能超过文件能容纳的id数
+                if (count < 0 || count > file.length() / 8 || at < 0 || at > queue.size()) {
+                    return false;
+                }
+                long[] ids = new long[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = in.readLong();
+                }
+                if (op == OP_SET) {
+                    queue.setAll(ids);
+                } else {
+                    queue.insert(at, ids);
+                }
+                return true;
+            }
+            case OP_REMOVE: {
+                int at = in.readInt();
+                int count = in.readInt();
+                if (at < 0 || count < 0 || at + count > queue.size()) {
+                    return false;
+                }
+                queue.remove(at, count);
+                return true;
+            }
+            case OP_MOVE: {
+                int from = in.readInt();
+                int to = in.readInt();
+                if (from < 0 || to < 0 || from >= queue.size() || to >= queue.size()) {
+                    return false;
+                }
+                queue.move(from, to);
+                return true;
+            }
+            case OP_POSITION:
+                position = in.readInt();
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package com.huangchao.musicplayer.data;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 歌曲库的内存搜索索引，覆盖标题、艺术家和专辑。
+ * 文本先归一化：兼容分解后去掉变音符号，转为小写，非字母数字变为空格；
+ * 含汉字的标题和艺术家另外加上Romanizer转换的拼音首字母连写，可以用首字母搜索，例如“zjl”。
+ * 倒排表是int数组，键为词首的1～2个字符（汉字每个字都算词首）和词内的每个三字符组：
+ * 查询时取最短的倒排表作为候选，再用归一化的文本逐个确认，取够数量就停止。
+ * 歌曲可以逐批加入或按id移除，移除只做标记，标记过多时整体重建。
+ * 所有方法都是线程安全的，可以在后台线程建立索引、在主线程查询。
+ */
+public class SearchIndex {
+    // 移除的文档超过这个比例时重建
+    private static final int COMPACT_RATIO = 2;
+    private static final int COMPACT_MIN_DOCS = 1024;
+    // 键的类型标志，区分词首键和三字符组
+    private static final long PREFIX_KEY = 1L << 62;
+
+    /**
+     * 把汉字转为拼音首字母，返回空格分隔的字母，每个能转换的汉字一个，不能转换时返回null
+     */
+    public interface Romanizer {
+        String romanize(String text);
+    }
+
+    private final Romanizer romanizer;
+
+    // 文档：歌曲id和归一化的文本，前后各有一个空格
+    private long[] docIds = new long[64];
+    private String[] docTexts = new String[64];
+    private boolean[] deleted = new boolean[64];
+    private int docCount;
+    private int deletedCount;
+
+    // 键 -> 倒排表序号加一，开放寻址，0为空槽
+    private long[] slotKeys = new long[256];
+    private int[] slotLists = new int[256];
+    private int keyCount;
+    // 倒排表，文档序号递增
+    private int[][] lists = new int[64][];
+    private int[] listSizes = new int[64];
+
+    public SearchIndex(Romanizer romanizer) {
+        this.romanizer = romanizer;
+    }
+
+    /**
+     * 加入tracks中从start开始的count首歌曲，已经存在的歌曲需要先remove
+     */
+    public synchronized void add(TrackStore tracks, int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            addDoc(tracks.getMusicId(i), buildText(tracks.getmusicName(i),
+                    tracks.getmusicArtist(i), tracks.getMusicAlbum(i)));
+        }
+    }
+
+    public synchronized void add(long id, String title, String artist, String album) {
+        addDoc(id, buildText(title, artist, album));
+    }
+
+    /**
+     * 移除id在sortedIds中的歌曲，sortedIds必须已经排序
+     */
+    public synchronized void remove(long[] sortedIds) {
+        for (int doc = 0; doc < docCount; doc++) {
+            if (!deleted[doc] && Arrays.binarySearch(sortedIds, docIds[doc]) >= 0) {
+                deleted[doc] = true;
+                deletedCount++;
+            }
+        }
+        if (docCount >= COMPACT_MIN_DOCS && deletedCount * COMPACT_RATIO > docCount) {
+            compact();
+        }
+    }
+
+    public synchronized void clear() {
+        docCount = 0;
+        deletedCount = 0;
+        Arrays.fill(docTexts, null);
+        Arrays.fill(slotLists, 0);
+        keyCount = 0;
+    }
+
+    public synchronized int size() {
+        return docCount - deletedCount;
+    }
+
+    /**
+     * 查找同时包含query中每个词的歌曲，按加入的顺序返回最多limit个歌曲id。
+     * 一两个字符的词要出现在词首，更长的词可以出现在词的任何位置
+     */
+    public synchronized long[] search(String query, int limit) {
+        String[] terms = split(normalize(query));
+        if (terms.length == 0 || limit <= 0) {
+            return new long[0];
+        }
+        // 倒排表最短的词作为候选来源
+        int bestList = -1;
+        for (String term : terms) {
+            int list = candidates(term);
+            if (list < 0) {
+                return new long[0];
+            }
+            if (bestList < 0 || listSizes[list] < listSizes[bestList]) {
+                bestList = list;
+            }
+        }
+        long[] result = new long[Math.min(limit, listSizes[bestList])];
+        int count = 0;
+        int[] docs = lists[bestList];
+        for (int i = 0; i < listSizes[bestList] && count < result.length; i++) {
+            int doc = docs[i];
+            if (deleted[doc]) {
+                continue;
+            }
+            boolean all = true;
+            for (String term : terms) {
+                if (!matches(docTexts[doc], term)) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                result[count++] = docIds[doc];
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * 归一化：兼容分解并去掉变音符号，小写，非字母数字变为空格，合并连续的空格
+     */
+    public static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        boolean space = true;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            int type = Character.getType(c);
+            if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                    || type == Character.COMBINING_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+                space = false;
+            } else if (!space) {
+                sb.append(' ');
+                space = true;
+            }
+        }
+        int length = sb.length();
+        if (length > 0 && sb.charAt(length - 1) == ' ') {
+            sb.setLength(length - 1);
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 中日韩文字，每个字都当作词首
+     */
+    static boolean isCjk(char c) {
+        return (c >= 0x4e00 && c <= 0x9fff) || (c >= 0x3400 && c <= 0x4dbf)
+                || (c >= 0x3040 && c <= 0x30ff) || (c >= 0xac00 && c <= 0xd7af);
+    }
+
+    /**
+     * 一首歌的搜索文本：标题、艺术家、专辑，以及标题和艺术家的拼音
+     */
+    private String buildText(String title, String artist, String album) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(' ').append(normalize(title))
+                .append(' ').append(normalize(artist))
+                .append(' ').append(normalize(album));
+        appendPinyin(sb, title);
+        appendPinyin(sb, artist);
+        sb.append(' ');
+        return sb.toString();
+    }
+
+    /**
+     * 加上拼音首字母的连写，例如“周杰伦”加上“zjl”，按词首可以用“z”“zj”“zjl”找到
+     */
+    private void appendPinyin(StringBuilder sb, String text) {
+        if (romanizer == null || text == null || !containsCjk(text)) {
+            return;
+        }
+        String[] initials = split(normalize(romanizer.romanize(text)));
+        if (initials.length == 0) {
+            return;
+        }
+        sb.append(' ');
+        for (String initial : initials) {
+            sb.append(initial);
+        }
+    }
+
+    private static boolean containsCjk(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (isCjk(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String[] split(String normalized) {
+        return normalized.isEmpty() ? new String[0] : normalized.split(" ");
+    }
+
+    /**
+     * 文本是否包含term：短的词要出现在词首或汉字处，长的词可以出现在任何位置
+     */
+    private static boolean matches(String text, String term) {
+        if (term.length() > 2) {
+            return text.contains(term);
+        }
+        for (int at = text.indexOf(term); at >= 0; at = text.indexOf(term, at + 1)) {
+            if (text.charAt(at - 1) == ' ' || isCjk(text.charAt(at))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * term的候选倒排表序号，没有候选时返回-1
+     */
+    private int candidates(String term) {
+        if (term.length() <= 2) {
+            return findList(prefixKey(term, 0, term.length()));
+        }
+        int best = -1;
+        for (int i = 0; i + 3 <= term.length(); i++) {
+            int list = findList(gramKey(term, i));
+            if (list < 0) {
+                return -1;
+            }
+            if (best < 0 || listSizes[list] < listSizes[best]) {
+                best = list;
+            }
+        }
+        return best;
+    }
+
+    private void addDoc(long id, String text) {
+        if (docCount == docIds.length) {
+            int capacity = docCount * 2;
+            docIds = Arrays.copyOf(docIds, capacity);
+            docTexts = Arrays.copyOf(docTexts, capacity);
+            deleted = Arrays.copyOf(deleted, capacity);
+        }
+        int doc = docCount++;
+        docIds[doc] = id;
+        docTexts[doc] = text;
+        deleted[doc] = false;
+        indexText(doc, text);
+    }
+
+    /**
+     * 为文本中的每个词加入词首键和三字符组
+     */
+    private void indexText(int doc, String text) {
+        int length = text.length();
+        int start = 1;
+        while (start < length) {
+            int end = text.indexOf(' ', start);
+            for (int i = start; i < end; i++) {
+                if (i == start || isCjk(text.charAt(i))) {
+                    post(prefixKey(text, i, 1), doc);
+                    if (i + 2 <= end) {
+                        post(prefixKey(text, i, 2), doc);
+                    }
+                }
+                if (i + 3 <= end) {
+                    post(gramKey(text, i), doc);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    private static long prefixKey(String s, int start, int length) {
+        long key = PREFIX_KEY | ((long) length << 48) | ((long) s.charAt(start) << 32);
+        if (length > 1) {
+            key |= (long) s.charAt(start + 1) << 16;
+        }
+        return key;
+    }
+
+    private static long gramKey(String s, int start) {
+        return (3L << 48) | ((long) s.charAt(start) << 32)
+                | ((long) s.charAt(start + 1) << 16) | s.charAt(start + 2);
+    }
+
+    /**
+     * 把doc加入key的倒排表，同一个文档只加入一次
+     */
+    private void post(long key, int doc) {
+        int list = findOrCreateList(key);
+        int size = listSizes[list];
+        int[] docs = lists[list];
+        if (size > 0 && docs[size - 1] == doc) {
+            return;
+        }
+        if (size == docs.length) {
+            docs = Arrays.copyOf(docs, size * 2);
+            lists[list] = docs;
+        }
+        docs[size] = doc;
+        listSizes[list] = size + 1;
+    }
+
+    private int findList(long key) {
+        int mask = slotKeys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (slotLists[slot] == 0) {
+                return -1;
+            }
+            if (slotKeys[slot] == key) {
+                return slotLists[slot] - 1;
+            }
+        }
+    }
+
+    private int findOrCreateList(long key) {
+        int mask = slotKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (slotLists[slot] != 0) {
+            if (slotKeys[slot] == key) {
+                return slotLists[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int list = keyCount++;
+        if (list == lists.length) {
+            lists = Arrays.copyOf(lists, list * 2);
+            listSizes = Arrays.copyOf(listSizes, list * 2);
+        }
+        lists[list] = new int[2];
+        listSizes[list] = 0;
+        slotKeys[slot] = key;
+        slotLists[slot] = list + 1;
+        if (keyCount * 2 > slotKeys.length) {
+            rehash(slotKeys.length * 2);
+        }
+        return list;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = slotKeys;
+        int[] oldLists = slotLists;
+        slotKeys = new long[capacity];
+        slotLists = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldLists[i] == 0) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (slotLists[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slotKeys[slot] = oldKeys[i];
+            slotLists[slot] = oldLists[i];
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    /**
+     * 去掉已经移除的文档，用保存的文本重建倒排表，不需要再转换拼音
+     */
+    private void compact() {
+        long[] oldIds = docIds;
+        String[] oldTexts = docTexts;
+        boolean[] oldDeleted = deleted;
+        int oldCount = docCount;
+        int capacity = Math.max(64, (oldCount - deletedCount) * 2);
+        docIds = new long[capacity];
+        docTexts = new String[capacity];
+        deleted = new boolean[capacity];
+        docCount = 0;
+        deletedCount = 0;
+        slotKeys = new long[256];
+        slotLists = new int[256];
+        keyCount = 0;
+        lists = new int[64][];
+        listSizes = new int[64];
+        for (int doc = 0; doc < oldCount; doc++) {
+            if (!oldDeleted[doc]) {
+                addDoc(oldIds[doc], oldTexts[doc]);
+            }
+        }
+    }
+}
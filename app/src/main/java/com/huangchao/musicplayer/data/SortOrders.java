@@ -0,0 +1,178 @@
+package com.huangchao.musicplayer.data;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 歌曲列表预先计算的几种排序，每种是歌曲位置的一个int排列。
+ * 字符串按Collator比较，每个不同的字符串只计算一次CollationKey：
+ * 艺术家和专辑直接使用TrackStore字符串池中的序号，标题先去重。
+ * 字符串先换算为名次，之后每种排序都是对long数组（名次在高位，次要键在低位）的一次基本类型排序。
+ * 计算量较大，应当在后台线程对TrackStore的副本调用build。
+ */
+public class SortOrders {
+    public static final int SORT_TITLE = 0;
+    public static final int SORT_ARTIST = 1;
+    public static final int SORT_ALBUM = 2;
+    public static final int SORT_DURATION = 3;
+    // 最近加入的在前
+    public static final int SORT_DATE_ADDED = 4;
+    public static final int SORT_COUNT = 5;
+
+    private final int[][] orders;
+
+    private SortOrders(int[][] orders) {
+        this.orders = orders;
+    }
+
+    public int[] get(int key) {
+        return orders[key];
+    }
+
+    public static SortOrders build(TrackStore tracks, Collator collator) {
+        int size = tracks.size();
+        int[] titleRanks = rankTitles(tracks, collator);
+        int[] artistRanks = rankPool(tracks.getArtistPool(), collator);
+        int[] albumRanks = rankPool(tracks.getAlbumPool(), collator);
+        long[] keys = new long[size];
+
+        // 标题：名次相同时保持原来的顺序；之后都以标题顺序作为最后的次要键
+        for (int i = 0; i < size; i++) {
+            keys[i] = pack(titleRanks[i], i);
+        }
+        int[] byTitle = sort(keys, null);
+        int[] titlePositions = inverse(byTitle);
+
+        for (int i = 0; i < size; i++) {
+            keys[i] = pack(albumRanks[tracks.getAlbumRef(i)], titlePositions[i]);
+        }
+        int[] byAlbum = sort(keys, byTitle);
+        int[] albumPositions = inverse(byAlbum);
+
+        // 艺术家：同一位艺术家按专辑、再按标题排列
+        for (int i = 0; i < size; i++) {
+            keys[i] = pack(artistRanks[tracks.getArtistRef(i)], albumPositions[i]);
+        }
+        int[] byArtist = sort(keys, byAlbum);
+
+        for (int i = 0; i < size; i++) {
+            keys[i] = pack(Math.max(tracks.getmusicDuration(i), 0), titlePositions[i]);
+        }
+        int[] byDuration = sort(keys, byTitle);
+
+        for (int i = 0; i < size; i++) {
+            long dateAdded = Math.min(Math.max(tracks.getMusicDateAdded(i), 0), Integer.MAX_VALUE);
+            keys[i] = pack(Integer.MAX_VALUE - (int) dateAdded, titlePositions[i]);
+        }
+        int[] byDateAdded = sort(keys, byTitle);
+
+        int[][] orders = new int[SORT_COUNT][];
+        orders[SORT_TITLE] = byTitle;
+        orders[SORT_ARTIST] = byArtist;
+        orders[SORT_ALBUM] = byAlbum;
+        orders[SORT_DURATION] = byDuration;
+        orders[SORT_DATE_ADDED] = byDateAdded;
+        return new SortOrders(orders);
+    }
+
+    private static long pack(int rank, int secondary) {
+        return ((long) rank << 32) | secondary;
+    }
+
+    /**
+     * 排序keys，低32位是唯一的次要键。次要键是由positions排列得到的序号时，
+     * 通过positions换算回歌曲位置；positions为null时低32位就是歌曲位置
+     */
+    private static int[] sort(long[] keys, int[] positions) {
+        Arrays.sort(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            int secondary = (int) keys[i];
+            order[i] = positions == null ? secondary : positions[secondary];
+        }
+        return order;
+    }
+
+    /**
+     * 排列的逆：每首歌在排列中的序号
+     */
+    private static int[] inverse(int[] order) {
+        int[] positions = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            positions[order[i]] = i;
+        }
+        return positions;
+    }
+
+    /**
+     * 字符串池中每个字符串的名次，null排在最前
+     */
+    private static int[] rankPool(StringPool pool, Collator collator) {
+        String[] strings = new String[pool.size()];
+        for (int ref = 0; ref < strings.length; ref++) {
+            strings[ref] = pool.get(ref);
+        }
+        return rank(strings, collator);
+    }
+
+    /**
+     * 每首歌的标题名次，相同的标题只计算一次
+     */
+    private static int[] rankTitles(TrackStore tracks, Collator collator) {
+        HashMap<String, Integer> refs = new HashMap<String, Integer>();
+        int size = tracks.size();
+        int[] titleRefs = new int[size];
+        String[] distinct = new String[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            String title = tracks.getmusicName(i);
+            Integer ref = refs.get(title);
+            if (ref == null) {
+                ref = count;
+                distinct[count++] = title;
+                refs.put(title, ref);
+            }
+            titleRefs[i] = ref;
+        }
+        int[] ranks = rank(Arrays.copyOf(distinct, count), collator);
+        for (int i = 0; i < size; i++) {
+            titleRefs[i] = ranks[titleRefs[i]];
+        }
+        return titleRefs;
+    }
+
+    /**
+     * 各不相同的字符串的名次。比较结果相等的字符串名次也相同
+     */
+    private static int[] rank(String[] strings, Collator collator) {
+        int count = strings.length;
+        CollationKey[] keys = new CollationKey[count];
+        HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+        int nullIndex = -1;
+        int nonNull = 0;
+        for (int i = 0; i < count; i++) {
+            if (strings[i] == null) {
+                nullIndex = i;
+            } else {
+                keys[nonNull++] = collator.getCollationKey(strings[i]);
+                indexes.put(strings[i], i);
+            }
+        }
+        Arrays.sort(keys, 0, nonNull);
+        int[] ranks = new int[count];
+        int base = nullIndex >= 0 ? 1 : 0;
+        int rank = base;
+        for (int i = 0; i < nonNull; i++) {
+            if (i > 0 && keys[i].compareTo(keys[i - 1]) != 0) {
+                rank = base + i;
+            }
+            ranks[indexes.get(keys[i].getSourceString())] = rank;
+        }
+        if (nullIndex >= 0) {
+            ranks[nullIndex] = 0;
+        }
+        return ranks;
+    }
+}
@@ -0,0 +1,71 @@
+package com.huangchao.musicplayer.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 去重的字符串池，相同的字符串只保存一次，通过int序号引用。
+ * 序号0保留给null。已有的序号不会改变，intern只在末尾追加，
+ * 所以快照可以和池共用字符串数组。
+ */
+final class StringPool {
+    static final int NULL_REF = 0;
+
+    private String[] strings = new String[16];
+    private int size = 1;
+    private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+    int intern(String s) {
+        if (s == null) {
+            return NULL_REF;
+        }
+        Integer ref = index.get(s);
+        if (ref == null) {
+            if (size == strings.length) {
+                strings = Arrays.copyOf(strings, size * 2);
+            }
+            ref = size;
+            strings[size++] = s;
+            index.put(s, ref);
+        }
+        return ref;
+    }
+
+    String get(int ref) {
+        return strings[ref];
+    }
+
+    /**
+     * 包括null在内的字符串数
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 与这个池共用字符串数组的只读快照，只能调用get和size
+     */
+    StringPool snapshot() {
+        StringPool snapshot = new StringPool();
+        snapshot.strings = strings;
+        snapshot.size = size;
+        return snapshot;
+    }
+
+    StringPool copy() {
+        StringPool copy = new StringPool();
+        copy.strings = Arrays.copyOf(strings, strings.length);
+        copy.size = size;
+        copy.index.putAll(index);
+        return copy;
+    }
+
+    /**
+     * 换用新的数组，快照仍然可以读取原来的
+     */
+    void clear() {
+        strings = new String[16];
+        size = 1;
+        index.clear();
+    }
+}
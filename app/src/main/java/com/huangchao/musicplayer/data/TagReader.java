@@ -0,0 +1,867 @@
+package com.huangchao.musicplayer.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 读取歌曲文件中的标签：ID3v2（MP3等）、FLAC和Ogg中的Vorbis注释、MP4（M4A）的ilst。
+ * 不读取整个文件，只映射标签所在的一段：ID3v2按标签头中的长度映射，
+ * FLAC先用块头找到元数据的末尾，MP4只读顶层atom的头部，找到moov后只映射moov。
+ * MP3的时长由标签之后的第一个帧计算，见readMpeg。
+ * 解析直接在映射的字节上进行，字符串由Charset从映射的区域解码，不先复制到字节数组；
+ * 内嵌封面只记录偏移和长度，见AudioTags。
+ * 没有共享的状态，可以在多个线程同时调用。
+ */
+public class TagReader {
+    // 识别格式时映射的长度，Ogg的注释头也在这个范围内读取
+    private static final int HEAD_BYTES = 64 * 1024;
+    // 映射的标签区域的上限，超出的部分（通常是很大的封面）不读取
+    private static final int MAX_TAG_BYTES = 16 * 1024 * 1024;
+    // ID3的图片类型和FLAC的图片类型：封面
+    private static final int PICTURE_FRONT_COVER = 3;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    private static final Charset GBK = Charset.forName("GBK");
+
+    // ID3v2.3/2.4的帧
+    private static final int TIT2 = fourCc("TIT2");
+    private static final int TPE1 = fourCc("TPE1");
+    private static final int TALB = fourCc("TALB");
+    private static final int TPE2 = fourCc("TPE2");
+    private static final int TRCK = fourCc("TRCK");
+    private static final int TXXX = fourCc("TXXX");
+    private static final int APIC = fourCc("APIC");
+    // ID3v2.2的帧，只有三个字符
+    private static final int TT2 = fourCc("\0TT2");
+    private static final int TP1 = fourCc("\0TP1");
+    private static final int TAL = fourCc("\0TAL");
+    private static final int TP2 = fourCc("\0TP2");
+    private static final int TRK = fourCc("\0TRK");
+    private static final int TXX = fourCc("\0TXX");
+    private static final int PIC = fourCc("\0PIC");
+
+    // MP4的atom
+    private static final int FTYP = fourCc("ftyp");
+    private static final int MOOV = fourCc("moov");
+    private static final int MVHD = fourCc("mvhd");
+    private static final int UDTA = fourCc("udta");
+    private static final int META = fourCc("meta");
+    private static final int ILST = fourCc("ilst");
+    private static final int DATA = fourCc("data");
+    private static final int NAME = fourCc("name");
+    private static final int NAM = 0xa96e616d; // ©nam
+    private static final int ART = 0xa9415254; // ©ART
+    private static final int ALB = 0xa9616c62; // ©alb
+    private static final int AART = fourCc("aART");
+    private static final int TRKN = fourCc("trkn");
+    private static final int COVR = fourCc("covr");
+    private static final int FREEFORM = fourCc("----");
+
+    // MPEG音频的比特率，单位kbps，下标为[MPEG1为0，MPEG2/2.5为1][层 - 1][比特率序号]
+    private static final short[][][] MPEG_BITRATES = {
+            {
+                    {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+                    {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}
+            },
+            {
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+            }
+    };
+    // MPEG1的采样率，MPEG2减半，MPEG2.5再减半
+    private static final int[] MPEG_SAMPLE_RATES = {44100, 48000, 32000};
+    private static final int XING = fourCc("Xing");
+    private static final int INFO = fourCc("Info");
+    private static final int VBRI = fourCc("VBRI");
+    // 寻找第一个帧头时最多检查的字节数
+    private static final int MAX_SYNC_SEARCH = 16 * 1024;
+
+    private TagReader() {
+    }
+
+    /**
+     * 读取file的标签，不认识的格式返回空的AudioTags
+     */
+    public static AudioTags read(File file) throws IOException {
+        AudioTags tags = new AudioTags();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            ByteBuffer head = map(channel, 0, Math.min(length, HEAD_BYTES));
+            long start = 0;
+            if (head.limit() >= 10 && matches(head, 0, "ID3")) {
+                // 标签头10字节，有标签尾时再加10字节
+                long size = 10 + syncsafe(head, 6) + ((head.get(5) & 0x10) != 0 ? 10 : 0);
+                ByteBuffer tag = size <= head.limit() ? head
+                        : map(channel, 0, Math.min(length, Math.min(size, MAX_TAG_BYTES)));
+                readId3(tag, tags);
+                start = size;
+            }
+            if (start + 8 > length) {
+                return tags;
+            }
+            // ID3之后可能还有FLAC的元数据
+            ByteBuffer next = start == 0 ? head
+                    : map(channel, start, Math.min(length - start, HEAD_BYTES));
+            if (matches(next, 0, "fLaC")) {
+                readFlac(channel, start, length, tags);
+            } else if (matches(next, 0, "OggS")) {
+                readOgg(next, tags);
+            } else if (start == 0 && next.getInt(4) == FTYP) {
+                readMp4(channel, length, tags);
+            } else {
+                readMpeg(channel, next, start, length, tags);
+            }
+            return tags;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    }
+
+    // ---------------- ID3v2 ----------------
+
+    private static void readId3(ByteBuffer buffer, AudioTags tags) {
+        int major = buffer.get(3) & 0xff;
+        int flags = buffer.get(5) & 0xff;
+        if (major < 2 || major > 4) {
+            return;
+        }
+        int end = (int) Math.min(10L + syncsafe(buffer, 6), buffer.limit());
+        // 整个标签做过反同步时，帧中的0xff 0x00需要还原，图片不能直接使用映射的字节
+        boolean unsynchronised = (flags & 0x80) != 0;
+        int position = 10;
+        if ((flags & 0x40) != 0 && major >= 3) {
+            // 扩展头，2.3的长度不包括自身的4字节，2.4的包括
+            position += major == 3 ? buffer.getInt(10) + 4 : syncsafe(buffer, 10);
+        }
+        int headerLength = major == 2 ? 6 : 10;
+        while (position >= 10 && position + headerLength <= end) {
+            if (buffer.get(position) == 0) {
+                // 填充
+                break;
+            }
+            int id;
+            int size;
+            int formatFlags = 0;
+            if (major == 2) {
+                id = uint24(buffer, position);
+                size = uint24(buffer, position + 3);
+            } else {
+                id = buffer.getInt(position);
+                size = major == 4 ? syncsafe(buffer, position + 4) : buffer.getInt(position + 4);
+                formatFlags = buffer.get(position + 9) & 0xff;
+            }
+            int body = position + headerLength;
+            if (size <= 0 || size > end - body) {
+                break;
+            }
+            // 压缩或加密的帧不读取
+            boolean skip = major == 3 ? (formatFlags & 0xc0) != 0 : (formatFlags & 0x0c) != 0;
+            if (!skip) {
+                boolean frameUnsynchronised = unsynchronised || (major == 4 && (formatFlags & 0x02) != 0);
+                // 2.4的帧可以在内容前带4字节的原始长度
+                int data = body + (major == 4 && (formatFlags & 0x01) != 0 ? 4 : 0);
+                readId3Frame(buffer, id, data, body + size, frameUnsynchronised, tags);
+            }
+            position = body + size;
+        }
+    }
+
+    private static void readId3Frame(ByteBuffer buffer, int id, int start, int end,
+                                     boolean unsynchronised, AudioTags tags) {
+        if (start >= end) {
+            return;
+        }
+        int encoding = buffer.get(start);
+        if (id == TIT2 || id == TT2) {
+            tags.title = first(tags.title, decodeText(buffer, start + 1, end, encoding));
+        } else if (id == TPE1 || id == TP1) {
+            tags.artist = first(tags.artist, decodeText(buffer, start + 1, end, encoding));
+        } else if (id == TALB || id == TAL) {
+            tags.album = first(tags.album, decodeText(buffer, start + 1, end, encoding));
+        } else if (id == TPE2 || id == TP2) {
+            tags.albumArtist = first(tags.albumArtist, decodeText(buffer, start + 1, end, encoding));
+        } else if (id == TRCK || id == TRK) {
+            if (tags.trackNumber == 0) {
+                tags.trackNumber = parseTrackNumber(decodeText(buffer, start + 1, end, encoding));
+            }
+        } else if (id == TXXX || id == TXX) {
+            int value = skipText(buffer, start + 1, end, encoding);
+            String description = decodeText(buffer, start + 1, value, encoding);
+            setGain(tags, description, decodeText(buffer, value, end, encoding));
+        } else if ((id == APIC || id == PIC) && !unsynchronised) {
+            String mimeType;
+            int position;
+            if (id == PIC) {
+                // 2.2只有三个字符的图片格式
+                mimeType = start + 4 <= end && matches(buffer, start + 1, "PNG") ? "image/png" : "image/jpeg";
+                position = start + 4;
+            } else {
+                position = skipText(buffer, start + 1, end, 0);
+                mimeType = decodeText(buffer, start + 1, position, 0);
+            }
+            if (position >= end) {
+                return;
+            }
+            int type = buffer.get(position) & 0xff;
+            position = skipText(buffer, position + 1, end, encoding);
+            setPicture(tags, mimeType, type, position, end - position);
+        }
+    }
+
+    // ---------------- FLAC / Vorbis ----------------
+
+    private static void readFlac(FileChannel channel, long start, long length, AudioTags tags)
+            throws IOException {
+        // 先只读块头，找到元数据的末尾，再映射整个元数据区域
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long end = start + 4;
+        boolean last = false;
+        while (!last && end + 4 <= length && end - start < MAX_TAG_BYTES) {
+            header.clear();
+            if (channel.read(header, end) < 4) {
+                break;
+            }
+            last = (header.get(0) & 0x80) != 0;
+            end += 4 + (header.getInt(0) & 0xffffff);
+        }
+        end = Math.min(end, Math.min(length, start + MAX_TAG_BYTES));
+        ByteBuffer buffer = map(channel, start, end - start);
+        int position = 4;
+        while (position + 4 <= buffer.limit()) {
+            int type = buffer.get(position) & 0x7f;
+            boolean lastBlock = (buffer.get(position) & 0x80) != 0;
+            int body = position + 4;
+            int blockEnd = body + (buffer.getInt(position) & 0xffffff);
+            if (blockEnd > buffer.limit()) {
+                break;
+            }
+            if (type == 0 && blockEnd - body >= 18) {
+                readStreamInfo(buffer, body, tags);
+            } else if (type == 4) {
+                readVorbisComments(buffer, body, blockEnd, tags);
+            } else if (type == 6) {
+                readFlacPicture(buffer, body, blockEnd, start, tags);
+            }
+            if (lastBlock) {
+                break;
+            }
+            position = blockEnd;
+        }
+    }
+
+    /**
+     * STREAMINFO中的采样率（20位）和总采样数（36位）
+     */
+    private static void readStreamInfo(ByteBuffer buffer, int position, AudioTags tags) {
+        long bits = buffer.getLong(position + 10);
+        int sampleRate = (int) (bits >>> 44);
+        long samples = bits & 0xfffffffffL;
+        if (sampleRate > 0 && samples > 0) {
+            tags.durationMs = samples * 1000 / sampleRate;
+            tags.durationExact = true;
+        }
+    }
+
+    private static void readFlacPicture(ByteBuffer buffer, int position, int end, long base,
+                                        AudioTags tags) {
+        if (position + 8 > end) {
+            return;
+        }
+        int type = buffer.getInt(position);
+        int mimeLength = buffer.getInt(position + 4);
+        int mime = position + 8;
+        if (mimeLength < 0 || mimeLength > end - mime - 4) {
+            return;
+        }
+        int descriptionLength = buffer.getInt(mime + mimeLength);
+        // 描述之后是宽、高、色深、颜色数和数据长度
+        int fields = mime + mimeLength + 4 + descriptionLength;
+        if (descriptionLength < 0 || fields < 0 || fields + 20 > end) {
+            return;
+        }
+        int length = buffer.getInt(fields + 16);
+        int data = fields + 20;
+        if (length <= 0 || length > end - data) {
+            return;
+        }
+        String mimeType = decode(buffer, mime, mime + mimeLength, ISO_8859_1);
+        setPicture(tags, mimeType, type, base + data, length);
+    }
+
+    /**
+     * Ogg的第一页是识别头，第二页开始是注释头。
+     * 注释头跨页时（通常是因为内嵌了封面）只读取第二页中的部分
+     */
+    private static void readOgg(ByteBuffer buffer, AudioTags tags) {
+        int position = 0;
+        for (int page = 0; page < 2; page++) {
+            if (position + 27 > buffer.limit() || !matches(buffer, position, "OggS")) {
+                return;
+            }
+            int segments = buffer.get(position + 26) & 0xff;
+            int data = position + 27 + segments;
+            if (data > buffer.limit()) {
+                return;
+            }
+            int size = 0;
+            for (int i = 0; i < segments; i++) {
+                size += buffer.get(position + 27 + i) & 0xff;
+            }
+            if (page == 1) {
+                int end = Math.min(data + size, buffer.limit());
+                if (end - data > 7 && matches(buffer, data, "\3vorbis")) {
+                    readVorbisComments(buffer, data + 7, end, tags);
+                } else if (end - data > 8 && matches(buffer, data, "OpusTags")) {
+                    readVorbisComments(buffer, data + 8, end, tags);
+                }
+            }
+            position = data + size;
+        }
+    }
+
+    /**
+     * Vorbis注释：小端的厂商字符串长度和内容，注释数，每条注释是长度和“KEY=value”
+     */
+    private static void readVorbisComments(ByteBuffer buffer, int position, int end, AudioTags tags) {
+        if (position + 4 > end) {
+            return;
+        }
+        int vendorLength = intLe(buffer, position);
+        if (vendorLength < 0 || vendorLength > end - position - 8) {
+            return;
+        }
+        position += 4 + vendorLength;
+        int count = intLe(buffer, position);
+        position += 4;
+        for (int i = 0; i < count && position + 4 <= end; i++) {
+            int length = intLe(buffer, position);
+            position += 4;
+            if (length < 0 || length > end - position) {
+                return;
+            }
+            int commentEnd = position + length;
+            int equals = position;
+            while (equals < commentEnd && buffer.get(equals) != '=') {
+                equals++;
+            }
+            if (equals < commentEnd) {
+                readVorbisField(buffer, position, equals, commentEnd, tags);
+            }
+            position = commentEnd;
+        }
+    }
+
+    /**
+     * 只解码需要的字段，其他注释（例如Base64编码的封面）直接跳过
+     */
+    private static void readVorbisField(ByteBuffer buffer, int key, int equals, int end, AudioTags tags) {
+        int value = equals + 1;
+        if (keyEquals(buffer, key, equals, "TITLE")) {
+            tags.title = first(tags.title, decode(buffer, value, end, UTF_8));
+        } else if (keyEquals(buffer, key, equals, "ARTIST")) {
+            tags.artist = first(tags.artist, decode(buffer, value, end, UTF_8));
+        } else if (keyEquals(buffer, key, equals, "ALBUM")) {
+            tags.album = first(tags.album, decode(buffer, value, end, UTF_8));
+        } else if (keyEquals(buffer, key, equals, "ALBUMARTIST")
+                || keyEquals(buffer, key, equals, "ALBUM ARTIST")) {
+            tags.albumArtist = first(tags.albumArtist, decode(buffer, value, end, UTF_8));
+        } else if (keyEquals(buffer, key, equals, "TRACKNUMBER")) {
+            if (tags.trackNumber == 0) {
+                tags.trackNumber = parseTrackNumber(decode(buffer, value, end, UTF_8));
+            }
+        } else if (keyEquals(buffer, key, equals, "REPLAYGAIN_TRACK_GAIN")
+                || keyEquals(buffer, key, equals, "REPLAYGAIN_ALBUM_GAIN")) {
+            setGain(tags, decode(buffer, key, equals, ISO_8859_1), decode(buffer, value, end, UTF_8));
+        }
+    }
+
+    // ---------------- MP4 ----------------
+
+    private static void readMp4(FileChannel channel, long length, AudioTags tags) throws IOException {
+        // 顶层atom只读头部，moov可能在mdat之后，找到后只映射moov
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+        while (position + 8 <= length) {
+            header.clear();
+            int read = channel.read(header, position);
+            if (read < 8) {
+                return;
+            }
+            long size = header.getInt(0) & 0xffffffffL;
+            int headerSize = 8;
+            if (size == 1) {
+                if (read < 16) {
+                    return;
+                }
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+            // 长度不合理时不再往后找，position也不会溢出
+            if (size < headerSize || size > length - position) {
+                return;
+            }
+            if (header.getInt(4) == MOOV) {
+                long mapped = Math.min(size, Math.min(length - position, MAX_TAG_BYTES));
+                ByteBuffer moov = map(channel, position, mapped);
+                readMoov(moov, headerSize, (int) mapped, position, tags);
+                return;
+            }
+            position += size;
+        }
+    }
+
+    private static void readMoov(ByteBuffer buffer, int start, int end, long base, AudioTags tags) {
+        int mvhd = findAtom(buffer, start, end, MVHD);
+        int mvhdEnd = mvhd >= 0 ? atomEnd(buffer, mvhd, end) : -1;
+        if (mvhd >= 0 && mvhd + 32 <= mvhdEnd) {
+            int body = mvhd + 8;
+            long timescale;
+            long duration;
+            if (buffer.get(body) == 1) {
+                timescale = buffer.getInt(body + 20) & 0xffffffffL;
+                duration = body + 32 <= mvhdEnd ? buffer.getLong(body + 24) : 0;
+            } else {
+                timescale = buffer.getInt(body + 12) & 0xffffffffL;
+                duration = buffer.getInt(body + 16) & 0xffffffffL;
+            }
+            if (timescale > 0 && duration > 0) {
+                tags.durationMs = duration * 1000 / timescale;
+                tags.durationExact = true;
+            }
+        }
+        int udta = findAtom(buffer, start, end, UDTA);
+        if (udta < 0) {
+            return;
+        }
+        int meta = findAtom(buffer, udta + 8, atomEnd(buffer, udta, end), META);
+        if (meta < 0) {
+            return;
+        }
+        // meta是full box，子atom之前有4字节的版本和标志
+        int ilst = findAtom(buffer, meta + 12, atomEnd(buffer, meta, end), ILST);
+        if (ilst < 0) {
+            return;
+        }
+        int ilstEnd = atomEnd(buffer, ilst, end);
+        for (int item = ilst + 8; item + 8 <= ilstEnd; ) {
+            int itemEnd = atomEnd(buffer, item, ilstEnd);
+            if (itemEnd < 0) {
+                break;
+            }
+            readMp4Item(buffer, item, itemEnd, base, tags);
+            item = itemEnd;
+        }
+    }
+
+    private static void readMp4Item(ByteBuffer buffer, int item, int end, long base, AudioTags tags) {
+        int type = buffer.getInt(item + 4);
+        int data = findAtom(buffer, item + 8, end, DATA);
+        if (data < 0) {
+            return;
+        }
+        int dataEnd = atomEnd(buffer, data, end);
+        if (data + 16 > dataEnd) {
+            return;
+        }
+        // data的内容：1字节版本、3字节类型、4字节地区，然后是值
+        int dataType = buffer.getInt(data + 8) & 0xffffff;
+        int value = data + 16;
+        if (type == NAM) {
+            tags.title = first(tags.title, decodeMp4Text(buffer, value, dataEnd, dataType));
+        } else if (type == ART) {
+            tags.artist = first(tags.artist, decodeMp4Text(buffer, value, dataEnd, dataType));
+        } else if (type == ALB) {
+            tags.album = first(tags.album, decodeMp4Text(buffer, value, dataEnd, dataType));
+        } else if (type == AART) {
+            tags.albumArtist = first(tags.albumArtist, decodeMp4Text(buffer, value, dataEnd, dataType));
+        } else if (type == TRKN) {
+            if (tags.trackNumber == 0 && value + 4 <= dataEnd) {
+                tags.trackNumber = buffer.getShort(value + 2) & 0xffff;
+            }
+        } else if (type == COVR) {
+            String mimeType = dataType == 14 ? "image/png" : dataType == 27 ? "image/bmp" : "image/jpeg";
+            setPicture(tags, mimeType, PICTURE_FRONT_COVER, base + value, dataEnd - value);
+        } else if (type == FREEFORM) {
+            // ----项由mean、name和data组成，回放增益在name中
+            int name = findAtom(buffer, item + 8, end, NAME);
+            if (name >= 0 && name + 12 <= end) {
+                String description = decode(buffer, name + 12, atomEnd(buffer, name, end), UTF_8);
+                setGain(tags, description, decodeMp4Text(buffer, value, dataEnd, dataType));
+            }
+        }
+    }
+
+    private static String decodeMp4Text(ByteBuffer buffer, int start, int end, int dataType) {
+        if (dataType == 1) {
+            return emptyToNull(decode(buffer, start, end, UTF_8));
+        }
+        if (dataType == 2) {
+            return emptyToNull(decode(buffer, start, end, UTF_16BE));
+        }
+        return null;
+    }
+
+    /**
+     * 在[start, end)中的atom里查找type，返回它的起始位置，找不到返回-1
+     */
+    private static int findAtom(ByteBuffer buffer, int start, int end, int type) {
+        for (int position = start; position + 8 <= end; ) {
+            int next = atomEnd(buffer, position, end);
+            if (next < 0) {
+                return -1;
+            }
+            if (buffer.getInt(position + 4) == type) {
+                return position;
+            }
+            position = next;
+        }
+        return -1;
+    }
+
+    /**
+     * atom的结束位置。长度小于头部或超出end时返回-1，遍历在这里结束，
+     * 不使用长度不合理的atom
+     */
+    private static int atomEnd(ByteBuffer buffer, int position, int end) {
+        long size = buffer.getInt(position) & 0xffffffffL;
+        if (size < 8 || size > end - position) {
+            return -1;
+        }
+        return position + (int) size;
+    }
+
+    // ---------------- MPEG音频 ----------------
+
+    /**
+     * MP3的标签中没有时长，由第一个帧计算：VBR文件的第一帧是Xing/Info或VBRI头，记录了总帧数；
+     * 没有这样的头时按固定比特率，用音频数据的字节数计算。
+     * buffer从start（ID3标签之后）开始映射，只检查前MAX_SYNC_SEARCH字节
+     */
+    private static void readMpeg(FileChannel channel, ByteBuffer buffer, long start, long length,
+                                 AudioTags tags) throws IOException {
+        int limit = Math.min(buffer.limit(), MAX_SYNC_SEARCH);
+        for (int position = 0; position + 4 <= limit; position++) {
+            int header = mpegHeader(buffer, position);
+            if (header == 0) {
+                continue;
+            }
+            // 下一帧的帧头也一致才认为找到了帧，避免数据中偶然出现的同步字
+            int next = position + mpegFrameLength(header);
+            if (next + 4 <= buffer.limit() && (mpegHeader(buffer, next) & 0xfffe0c00) != (header & 0xfffe0c00)) {
+                continue;
+            }
+            int version = header >>> 19 & 3;
+            int layer = 4 - (header >>> 17 & 3);
+            int sampleRate = mpegSampleRate(header);
+            int samplesPerFrame = layer == 1 ? 384 : layer == 2 || version == 3 ? 1152 : 576;
+            long frames = 0;
+            // Xing/Info头在side info之后，side info的长度取决于版本和声道
+            boolean mono = (header >>> 6 & 3) == 3;
+            int xing = position + 4 + (version == 3 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+            if (xing + 12 <= buffer.limit() && (buffer.getInt(xing) == XING || buffer.getInt(xing) == INFO)
+                    && (buffer.getInt(xing + 4) & 1) != 0) {
+                frames = buffer.getInt(xing + 8) & 0xffffffffL;
+            }
+            // VBRI头固定在帧头之后32字节
+            int vbri = position + 36;
+            if (frames == 0 && vbri + 18 <= buffer.limit() && buffer.getInt(vbri) == VBRI) {
+                frames = buffer.getInt(vbri + 14) & 0xffffffffL;
+            }
+            if (frames > 0) {
+                tags.durationMs = frames * samplesPerFrame * 1000 / sampleRate;
+                tags.durationExact = true;
+            } else {
+                long audioLength = length - start - position - (hasId3v1(channel, length) ? 128 : 0);
+                // 字节数 * 8 / kbps = 毫秒
+                tags.durationMs = Math.max(audioLength, 0) * 8 / mpegBitrate(header);
+            }
+            return;
+        }
+    }
+
+    /**
+     * position处的4字节帧头，不是有效的帧头时返回0。不支持自由比特率
+     */
+    private static int mpegHeader(ByteBuffer buffer, int position) {
+        if (position + 4 > buffer.limit() || buffer.get(position) != (byte) 0xff) {
+            return 0;
+        }
+        int header = buffer.getInt(position);
+        int bitrate = header >>> 12 & 0xf;
+        if ((header & 0xffe00000) != 0xffe00000 || (header >>> 19 & 3) == 1 || (header >>> 17 & 3) == 0
+                || bitrate == 0 || bitrate == 15 || (header >>> 10 & 3) == 3) {
+            return 0;
+        }
+        return header;
+    }
+
+    private static int mpegBitrate(int header) {
+        int version = header >>> 19 & 3;
+        int layer = 4 - (header >>> 17 & 3);
+        return MPEG_BITRATES[version == 3 ? 0 : 1][layer - 1][header >>> 12 & 0xf];
+    }
+
+    private static int mpegSampleRate(int header) {
+        int version = header >>> 19 & 3;
+        return MPEG_SAMPLE_RATES[header >>> 10 & 3] >> (version == 3 ? 0 : version == 2 ? 1 : 2);
+    }
+
+    private static int mpegFrameLength(int header) {
+        int version = header >>> 19 & 3;
+        int layer = 4 - (header >>> 17 & 3);
+        int padding = header >>> 9 & 1;
+        int bitrate = mpegBitrate(header) * 1000;
+        int sampleRate = mpegSampleRate(header);
+        if (layer == 1) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        int samplesPerFrame = layer == 2 || version == 3 ? 1152 : 576;
+        return samplesPerFrame / 8 * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * 文件末尾128字节的ID3v1标签不是音频数据
+     */
+    private static boolean hasId3v1(FileChannel channel, long length) throws IOException {
+        if (length < 128) {
+            return false;
+        }
+        ByteBuffer tag = ByteBuffer.allocate(3);
+        return channel.read(tag, length - 128) == 3 && matches(tag, 0, "TAG");
+    }
+
+    // ---------------- 公共 ----------------
+
+    private static void setPicture(AudioTags tags, String mimeType, int type, long offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        // 优先使用封面，其他类型的图片只在没有封面时使用第一张
+        if (!tags.hasPicture() || (type == PICTURE_FRONT_COVER && tags.pictureType != PICTURE_FRONT_COVER)) {
+            tags.pictureMimeType = mimeType;
+            tags.pictureType = type;
+            tags.pictureOffset = offset;
+            tags.pictureLength = length;
+        }
+    }
+
+    /**
+     * 回放增益的值形如“-6.54 dB”
+     */
+    private static void setGain(AudioTags tags, String description, String value) {
+        if (description == null || value == null) {
+            return;
+        }
+        boolean track = description.equalsIgnoreCase("REPLAYGAIN_TRACK_GAIN");
+        if (!track && !description.equalsIgnoreCase("REPLAYGAIN_ALBUM_GAIN")) {
+            return;
+        }
+        String number = value.trim();
+        if (number.regionMatches(true, Math.max(number.length() - 2, 0), "dB", 0, 2)) {
+            number = number.substring(0, number.length() - 2).trim();
+        }
+        try {
+            float gain = Float.parseFloat(number);
+            if (track) {
+                tags.trackGain = gain;
+            } else {
+                tags.albumGain = gain;
+            }
+        } catch (NumberFormatException e) {
+        }
+    }
+
+    /**
+     * 音轨号形如“3”或“3/12”
+     */
+    static int parseTrackNumber(String text) {
+        if (text == null) {
+            return 0;
+        }
+        int number = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9' || number > 100000) {
+                break;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    /**
+     * 按ID3的编码解码[start, end)中第一个结束符之前的文本
+     */
+    private static String decodeText(ByteBuffer buffer, int start, int end, int encoding) {
+        int textEnd = textEnd(buffer, start, end, encoding);
+        switch (encoding) {
+            case 1:
+                return emptyToNull(decode(buffer, start, textEnd, UTF_16));
+            case 2:
+                return emptyToNull(decode(buffer, start, textEnd, UTF_16BE));
+            case 3:
+                return emptyToNull(decode(buffer, start, textEnd, UTF_8));
+            default:
+                return emptyToNull(decodeLegacy(buffer, start, textEnd));
+        }
+    }
+
+    /**
+     * 文本的结束位置：单字节编码为一个0，UTF-16为对齐的两个0
+     */
+    private static int textEnd(ByteBuffer buffer, int start, int end, int encoding) {
+        if (encoding == 1 || encoding == 2) {
+            for (int i = start; i + 1 < end; i += 2) {
+                if (buffer.get(i) == 0 && buffer.get(i + 1) == 0) {
+                    return i;
+                }
+            }
+            return end;
+        }
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 跳过一段以结束符结尾的文本，返回结束符之后的位置
+     */
+    private static int skipText(ByteBuffer buffer, int start, int end, int encoding) {
+        int textEnd = textEnd(buffer, start, end, encoding);
+        return Math.min(end, textEnd + (encoding == 1 || encoding == 2 ? 2 : 1));
+    }
+
+    /**
+     * ID3标记为ISO-8859-1的文本实际上常常是UTF-8或GBK。
+     * 是合法的UTF-8时按UTF-8解码，只由ASCII和GB2312双字节汉字组成时按GBK解码，
+     * 否则按ISO-8859-1解码
+     */
+    private static String decodeLegacy(ByteBuffer buffer, int start, int end) {
+        boolean ascii = true;
+        for (int i = start; i < end && ascii; i++) {
+            ascii = buffer.get(i) >= 0;
+        }
+        if (ascii) {
+            return decode(buffer, start, end, ISO_8859_1);
+        }
+        try {
+            return UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(slice(buffer, start, end)).toString();
+        } catch (CharacterCodingException e) {
+        }
+        return decode(buffer, start, end, looksLikeGb2312(buffer, start, end) ? GBK : ISO_8859_1);
+    }
+
+    private static boolean looksLikeGb2312(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            int lead = buffer.get(i) & 0xff;
+            if (lead < 0x80) {
+                continue;
+            }
+            if (lead < 0xa1 || lead > 0xf7 || i + 1 >= end) {
+                return false;
+            }
+            int trail = buffer.get(++i) & 0xff;
+            if (trail < 0xa1 || trail > 0xfe) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 直接从映射的区域解码，不复制字节
+     */
+    private static String decode(ByteBuffer buffer, int start, int end, Charset charset) {
+        if (start >= end) {
+            return "";
+        }
+        return charset.decode(slice(buffer, start, end)).toString();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(end);
+        slice.position(start);
+        return slice;
+    }
+
+    private static boolean keyEquals(ByteBuffer buffer, int start, int end, String key) {
+        if (end - start != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            int c = buffer.get(start + i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            if (c != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int position, String magic) {
+        if (position + magic.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer.get(position + i) != (byte) magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int syncsafe(ByteBuffer buffer, int position) {
+        return (buffer.get(position) & 0x7f) << 21 | (buffer.get(position + 1) & 0x7f) << 14
+                | (buffer.get(position + 2) & 0x7f) << 7 | (buffer.get(position + 3) & 0x7f);
+    }
+
+    private static int uint24(ByteBuffer buffer, int position) {
+        return (buffer.get(position) & 0xff) << 16 | (buffer.get(position + 1) & 0xff) << 8
+                | (buffer.get(position + 2) & 0xff);
+    }
+
+    private static int intLe(ByteBuffer buffer, int position) {
+        return (buffer.get(position) & 0xff) | (buffer.get(position + 1) & 0xff) << 8
+                | (buffer.get(position + 2) & 0xff) << 16 | (buffer.get(position + 3) & 0xff) << 24;
+    }
+
+    private static int fourCc(String s) {
+        return s.charAt(0) << 24 | s.charAt(1) << 16 | s.charAt(2) << 8 | s.charAt(3);
+    }
+
+    private static String first(String current, String value) {
+        return current != null ? current : value;
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+}
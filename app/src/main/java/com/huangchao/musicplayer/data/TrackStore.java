@@ -0,0 +1,556 @@
+package com.huangchao.musicplayer.data;
+
+import java.util.Arrays;
+
+/**
+ * 按列保存的歌曲库。
+ * 每一列是一个基本类型数组，艺术家和专辑保存在去重的字符串池中，
+ * 按位置读取歌曲属性时不需要创建对象。
+ * 方法名与Music的获取方法保持一致，参数为歌曲在列表中的位置。
+ * snapshot()返回与列表共用列数组的只读快照，交给其他线程时不需要复制。
+ */
+public class TrackStore {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int size;
+    private long[] ids;
+    private long[] albumIds;
+    private long[] artistIds;
+    private int[] durations;
+    private long[] datesAdded;
+    // 回放增益，单位dB，未知时为NaN
+    private float[] trackGains;
+    private float[] albumGains;
+    // 音轨号，MediaStore的TRACK列，碟号 * 1000 + 音轨号，未知时为0
+    private int[] trackNumbers;
+    private int[] artistRefs;
+    private int[] albumRefs;
+    private String[] titles;
+    private String[] paths;
+    private StringPool artistPool = new StringPool();
+    private StringPool albumPool = new StringPool();
+    // 列数组是否与快照共用，共用时修改已有的行之前先复制
+    private boolean shared;
+    // 快照是只读的
+    private final boolean readOnly;
+    // 结构修改的次数，其他线程持有副本时用来判断副本是否过期
+    private int modCount;
+    // 所有修改的次数，包括只修改属性的修改
+    private int version;
+    // indexOfId使用的散列表，以及建立它时的modCount
+    private int[] idSlots;
+    private int idSlotsModCount;
+    // 预先计算的排序，以及计算时的modCount
+    private SortOrders sortOrders;
+    private int sortOrdersModCount;
+
+    public TrackStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public TrackStore(int capacity) {
+        readOnly = false;
+        allocate(capacity);
+    }
+
+    /**
+     * source的只读快照，共用source的列数组
+     */
+    private TrackStore(TrackStore source) {
+        readOnly = true;
+        size = source.size;
+        ids = source.ids;
+        albumIds = source.albumIds;
+        artistIds = source.artistIds;
+        durations = source.durations;
+        datesAdded = source.datesAdded;
+        trackGains = source.trackGains;
+        albumGains = source.albumGains;
+        trackNumbers = source.trackNumbers;
+        artistRefs = source.artistRefs;
+        albumRefs = source.albumRefs;
+        titles = source.titles;
+        paths = source.paths;
+        artistPool = source.artistPool.snapshot();
+        albumPool = source.albumPool.snapshot();
+        modCount = source.modCount;
+        version = source.version;
+        sortOrders = source.sortOrders;
+        sortOrdersModCount = source.sortOrdersModCount;
+    }
+
+    private void allocate(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ids = new long[capacity];
+        albumIds = new long[capacity];
+        artistIds = new long[capacity];
+        durations = new int[capacity];
+        datesAdded = new long[capacity];
+        trackGains = new float[capacity];
+        albumGains = new float[capacity];
+        trackNumbers = new int[capacity];
+        artistRefs = new int[capacity];
+        albumRefs = new int[capacity];
+        titles = new String[capacity];
+        paths = new String[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 增加、插入、移除或清空歌曲的次数。
+     * update、setReplayGain和setTrackNumber只修改属性，不改变位置，不计入
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * 所有修改的次数，包括update、setReplayGain和setTrackNumber。
+     * 持有快照的线程用来判断快照中的属性是否过期
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public long getMusicId(int position) {
+        return ids[position];
+    }
+
+    public long getMusicAlbumId(int position) {
+        return albumIds[position];
+    }
+
+    public long getMusicArtistId(int position) {
+        return artistIds[position];
+    }
+
+    public String getmusicName(int position) {
+        return titles[position];
+    }
+
+    public String getmusicArtist(int position) {
+        return artistPool.get(artistRefs[position]);
+    }
+
+    public String getMusicAlbum(int position) {
+        return albumPool.get(albumRefs[position]);
+    }
+
+    public String getmusicPath(int position) {
+        return paths[position];
+    }
+
+    /**
+     * 时长，单位毫秒
+     */
+    public int getmusicDuration(int position) {
+        return durations[position];
+    }
+
+    /**
+     * 加入MediaStore的时间，单位秒，未知时为0
+     */
+    public long getMusicDateAdded(int position) {
+        return datesAdded[position];
+    }
+
+    /**
+     * 单曲的回放增益，单位dB，未知时为NaN
+     */
+    public float getTrackGain(int position) {
+        return trackGains[position];
+    }
+
+    /**
+     * 专辑的回放增益，单位dB，未知时为NaN
+     */
+    public float getAlbumGain(int position) {
+        return albumGains[position];
+    }
+
+    /**
+     * 音轨号，碟号 * 1000 + 音轨号，未知时为0
+     */
+    public int getTrackNumber(int position) {
+        return trackNumbers[position];
+    }
+
+    int getArtistRef(int position) {
+        return artistRefs[position];
+    }
+
+    int getAlbumRef(int position) {
+        return albumRefs[position];
+    }
+
+    StringPool getArtistPool() {
+        return artistPool;
+    }
+
+    StringPool getAlbumPool() {
+        return albumPool;
+    }
+
+    /**
+     * 保存在modCount时为这个列表计算的排序
+     */
+    public void setSortOrders(SortOrders orders, int modCount) {
+        sortOrders = orders;
+        sortOrdersModCount = modCount;
+    }
+
+    /**
+     * 按key排序的位置排列，还没有计算或者列表之后被修改过时返回null。
+     * 切换排序只是取出另一个数组
+     */
+    public int[] getSortOrder(int key) {
+        if (sortOrders == null || sortOrdersModCount != modCount) {
+            return null;
+        }
+        return sortOrders.get(key);
+    }
+
+    /**
+     * 为需要Music对象的旧代码创建一个副本
+     */
+    public Music get(int position) {
+        Music music = new Music(titles[position], getmusicArtist(position), paths[position],
+                durations[position], getMusicAlbum(position));
+        music.musicId = ids[position];
+        music.musicAlbumId = albumIds[position];
+        music.musicArtistId = artistIds[position];
+        return music;
+    }
+
+    /**
+     * 返回一个独立的副本，例如交给后台线程写入快照
+     */
+    public TrackStore copy() {
+        TrackStore copy = new TrackStore(size);
+        copy.size = size;
+        System.arraycopy(ids, 0, copy.ids, 0, size);
+        System.arraycopy(albumIds, 0, copy.albumIds, 0, size);
+        System.arraycopy(artistIds, 0, copy.artistIds, 0, size);
+        System.arraycopy(durations, 0, copy.durations, 0, size);
+        System.arraycopy(datesAdded, 0, copy.datesAdded, 0, size);
+        System.arraycopy(trackGains, 0, copy.trackGains, 0, size);
+        System.arraycopy(albumGains, 0, copy.albumGains, 0, size);
+        System.arraycopy(trackNumbers, 0, copy.trackNumbers, 0, size);
+        System.arraycopy(artistRefs, 0, copy.artistRefs, 0, size);
+        System.arraycopy(albumRefs, 0, copy.albumRefs, 0, size);
+        System.arraycopy(titles, 0, copy.titles, 0, size);
+        System.arraycopy(paths, 0, copy.paths, 0, size);
+        copy.artistPool = artistPool.copy();
+        copy.albumPool = albumPool.copy();
+        return copy;
+    }
+
+    /**
+     * 返回当前内容的只读快照，O(1)，可以交给其他线程读取。
+     * 快照与这个列表共用列数组：之后在末尾追加只写入快照范围之外的位置，
+     * 其他修改先复制列数组，快照看到的内容不会改变。快照的修改方法抛出异常
+     */
+    public TrackStore snapshot() {
+        if (readOnly) {
+            return this;
+        }
+        shared = true;
+        return new TrackStore(this);
+    }
+
+    /**
+     * 返回所有歌曲id的副本
+     */
+    public long[] copyIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * 返回id对应的位置，找不到返回-1。
+     * 第一次查找时建立id到位置的散列表，之后直到下一次结构修改都是O(1)
+     */
+    public int indexOfId(long id) {
+        if (idSlots == null || idSlotsModCount != modCount) {
+            buildIdSlots();
+        }
+        int mask = idSlots.length - 1;
+        for (int slot = hashId(id) & mask; ; slot = (slot + 1) & mask) {
+            int position = idSlots[slot] - 1;
+            if (position < 0) {
+                return -1;
+            }
+            if (ids[position] == id) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * 开放寻址的散列表，保存位置加一，0表示空槽。
+     * 从后往前填入，id重复时保留第一次出现的位置
+     */
+    private void buildIdSlots() {
+        int capacity = Integer.highestOneBit(Math.max(size, 1) * 2) * 2;
+        if (idSlots == null || idSlots.length != capacity) {
+            idSlots = new int[capacity];
+        } else {
+            Arrays.fill(idSlots, 0);
+        }
+        int mask = capacity - 1;
+        for (int i = size - 1; i >= 0; i--) {
+            int slot = hashId(ids[i]) & mask;
+            while (idSlots[slot] != 0 && ids[idSlots[slot] - 1] != ids[i]) {
+                slot = (slot + 1) & mask;
+            }
+            idSlots[slot] = i + 1;
+        }
+        idSlotsModCount = modCount;
+    }
+
+    private static int hashId(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public void add(long id, String title, String artist, String album, String path,
+                    int duration, long albumId, long artistId) {
+        insert(size, id, title, artist, album, path, duration, albumId, artistId, 0);
+    }
+
+    public void add(long id, String title, String artist, String album, String path,
+                    int duration, long albumId, long artistId, long dateAdded) {
+        insert(size, id, title, artist, album, path, duration, albumId, artistId, dateAdded);
+    }
+
+    public void add(Music music) {
+        add(music.musicId, music.getmusicName(), music.getmusicArtist(), music.getMusicAlbum(),
+                music.getmusicPath(), music.getmusicDuration(),
+                music.musicAlbumId, music.musicArtistId);
+    }
+
+    public void insert(int position, long id, String title, String artist, String album,
+                       String path, int duration, long albumId, long artistId) {
+        insert(position, id, title, artist, album, path, duration, albumId, artistId, 0);
+    }
+
+    public void insert(int position, long id, String title, String artist, String album,
+                       String path, int duration, long albumId, long artistId, long dateAdded) {
+        if (position < 0 || position > size) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+        }
+        ensureCapacity(size + 1);
+        if (position < size) {
+            beforeWrite();
+            int count = size - position;
+            System.arraycopy(ids, position, ids, position + 1, count);
+            System.arraycopy(albumIds, position, albumIds, position + 1, count);
+            System.arraycopy(artistIds, position, artistIds, position + 1, count);
+            System.arraycopy(durations, position, durations, position + 1, count);
+            System.arraycopy(datesAdded, position, datesAdded, position + 1, count);
+            System.arraycopy(trackGains, position, trackGains, position + 1, count);
+            System.arraycopy(albumGains, position, albumGains, position + 1, count);
+            System.arraycopy(trackNumbers, position, trackNumbers, position + 1, count);
+            System.arraycopy(artistRefs, position, artistRefs, position + 1, count);
+            System.arraycopy(albumRefs, position, albumRefs, position + 1, count);
+            System.arraycopy(titles, position, titles, position + 1, count);
+            System.arraycopy(paths, position, paths, position + 1, count);
+        }
+        ids[position] = id;
+        albumIds[position] = albumId;
+        artistIds[position] = artistId;
+        durations[position] = duration;
+        datesAdded[position] = dateAdded;
+        trackGains[position] = Float.NaN;
+        albumGains[position] = Float.NaN;
+        trackNumbers[position] = 0;
+        artistRefs[position] = artistPool.intern(artist);
+        albumRefs[position] = albumPool.intern(album);
+        titles[position] = title;
+        paths[position] = path;
+        size++;
+        modCount++;
+        version++;
+    }
+
+    /**
+     * 把另一个TrackStore中的第index首歌插入到position处
+     */
+    public void insert(int position, TrackStore other, int index) {
+        insert(position, other.ids[index], other.titles[index], other.getmusicArtist(index),
+                other.getMusicAlbum(index), other.paths[index], other.durations[index],
+                other.albumIds[index], other.artistIds[index], other.datesAdded[index]);
+        trackGains[position] = other.trackGains[index];
+        albumGains[position] = other.albumGains[index];
+        trackNumbers[position] = other.trackNumbers[index];
+    }
+
+    /**
+     * 修改position处歌曲的标题、艺术家、专辑和时长，位置和id不变，不是结构修改，
+     * indexOfId的散列表仍然有效。这些都是排序的键，有变化时丢弃已经计算的排序，
+     * getSortOrder返回null，直到调用者重新计算。返回是否有变化
+     */
+    public boolean update(int position, String title, String artist, String album, int duration) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+        }
+        if (equals(titles[position], title) && equals(getmusicArtist(position), artist)
+                && equals(getMusicAlbum(position), album) && durations[position] == duration) {
+            return false;
+        }
+        beforeWrite();
+        titles[position] = title;
+        artistRefs[position] = artistPool.intern(artist);
+        albumRefs[position] = albumPool.intern(album);
+        durations[position] = duration;
+        version++;
+        sortOrders = null;
+        return true;
+    }
+
+    public void setReplayGain(int position, float trackGain, float albumGain) {
+        beforeWrite();
+        trackGains[position] = trackGain;
+        albumGains[position] = albumGain;
+        version++;
+    }
+
+    public void setTrackNumber(int position, int trackNumber) {
+        beforeWrite();
+        trackNumbers[position] = trackNumber;
+        version++;
+    }
+
+    /**
+     * 把另一个TrackStore的全部歌曲追加到末尾
+     */
+    public void addAll(TrackStore other) {
+        ensureCapacity(size + other.size);
+        for (int i = 0; i < other.size; i++) {
+            insert(size, other, i);
+        }
+    }
+
+    /**
+     * 一次遍历移除所有id在sortedIds中的歌曲，sortedIds必须已经排序。
+     * 返回移除的歌曲数
+     */
+    public int removeIds(long[] sortedIds) {
+        int target = 0;
+        while (target < size && Arrays.binarySearch(sortedIds, ids[target]) < 0) {
+            target++;
+        }
+        if (target == size) {
+            checkWritable();
+            return 0;
+        }
+        beforeWrite();
+        for (int i = target; i < size; i++) {
+            if (Arrays.binarySearch(sortedIds, ids[i]) >= 0) {
+                continue;
+            }
+            if (target != i) {
+                ids[target] = ids[i];
+                albumIds[target] = albumIds[i];
+                artistIds[target] = artistIds[i];
+                durations[target] = durations[i];
+                datesAdded[target] = datesAdded[i];
+                trackGains[target] = trackGains[i];
+                albumGains[target] = albumGains[i];
+                trackNumbers[target] = trackNumbers[i];
+                artistRefs[target] = artistRefs[i];
+                albumRefs[target] = albumRefs[i];
+                titles[target] = titles[i];
+                paths[target] = paths[i];
+            }
+            target++;
+        }
+        int removed = size - target;
+        Arrays.fill(titles, target, size, null);
+        Arrays.fill(paths, target, size, null);
+        size = target;
+        if (removed > 0) {
+            modCount++;
+            version++;
+        }
+        return removed;
+    }
+
+    public void clear() {
+        checkWritable();
+        if (shared) {
+            // 快照还在读取这些数组
+            allocate(INITIAL_CAPACITY);
+            shared = false;
+        } else {
+            Arrays.fill(titles, 0, size, null);
+            Arrays.fill(paths, 0, size, null);
+        }
+        artistPool.clear();
+        albumPool.clear();
+        size = 0;
+        modCount++;
+        version++;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("read-only snapshot");
+        }
+    }
+
+    /**
+     * 修改已有的行之前调用，列数组与快照共用时先复制一份
+     */
+    private void beforeWrite() {
+        checkWritable();
+        if (!shared) {
+            return;
+        }
+        ids = ids.clone();
+        albumIds = albumIds.clone();
+        artistIds = artistIds.clone();
+        durations = durations.clone();
+        datesAdded = datesAdded.clone();
+        trackGains = trackGains.clone();
+        albumGains = albumGains.clone();
+        trackNumbers = trackNumbers.clone();
+        artistRefs = artistRefs.clone();
+        albumRefs = albumRefs.clone();
+        titles = titles.clone();
+        paths = paths.clone();
+        shared = false;
+    }
+
+    private void ensureCapacity(int capacity) {
+        checkWritable();
+        if (capacity <= ids.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, ids.length + (ids.length >> 1));
+        ids = Arrays.copyOf(ids, newCapacity);
+        albumIds = Arrays.copyOf(albumIds, newCapacity);
+        artistIds = Arrays.copyOf(artistIds, newCapacity);
+        durations = Arrays.copyOf(durations, newCapacity);
+        datesAdded = Arrays.copyOf(datesAdded, newCapacity);
+        trackGains = Arrays.copyOf(trackGains, newCapacity);
+        albumGains = Arrays.copyOf(albumGains, newCapacity);
+        trackNumbers = Arrays.copyOf(trackNumbers, newCapacity);
+        artistRefs = Arrays.copyOf(artistRefs, newCapacity);
+        albumRefs = Arrays.copyOf(albumRefs, newCapacity);
+        titles = Arrays.copyOf(titles, newCapacity);
+        paths = Arrays.copyOf(paths, newCapacity);
+        // 新的数组只属于这个列表
+        shared = false;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,135 @@
+package com.huangchao.musicplayer.model;
+
+/**
+ * 某一时刻播放状态的快照，创建后不再改变。
+ * MusicService每发布一次新的快照，版本号加一；
+ * 监听者同时收到变化了的字段，只需要更新对应的界面。
+ * 播放位置以锚点的形式给出：采样时的位置、采样时刻和播放速度，
+ * 之后任意时刻的位置由getPositionAt推算，不需要服务不断发布。
+ */
+public final class PlaybackState {
+    // 字段标志，可以按位组合
+    public static final int FIELD_STATUS = 1;
+    public static final int FIELD_TRACK = 1 << 1;
+    public static final int FIELD_POSITION = 1 << 2;
+    public static final int FIELD_DURATION = 1 << 3;
+    public static final int FIELD_ALL = FIELD_STATUS | FIELD_TRACK | FIELD_POSITION | FIELD_DURATION;
+    // 推算的位置与新采样的位置相差不超过这个值时，认为位置没有变化
+    private static final int POSITION_TOLERANCE_MS = 50;
+
+    private final long version;
+    private final int status;
+    private final int number;
+    private final long trackId;
+    private final int position;
+    private final long updateTime;
+    private final float speed;
+    private final int duration;
+
+    /**
+     * @param status     MusicService.STATUS_*
+     * @param number     歌曲序号，没有歌曲时为-1
+     * @param trackId    歌曲id，没有歌曲时为-1
+     * @param position   采样时的播放位置，毫秒
+     * @param updateTime 采样的时刻，SystemClock.elapsedRealtime()
+     * @param speed      播放速度，没有在播放时为0
+     * @param duration   歌曲时长，毫秒
+     */
+    public PlaybackState(long version, int status, int number, long trackId,
+                         int position, long updateTime, float speed, int duration) {
+        this.version = version;
+        this.status = status;
+        this.number = number;
+        this.trackId = trackId;
+        this.position = position;
+        this.updateTime = updateTime;
+        this.speed = speed;
+        this.duration = duration;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public long getTrackId() {
+        return trackId;
+    }
+
+    /**
+     * 采样时的播放位置
+     */
+    public int getPosition() {
+        return position;
+    }
+
+    /**
+     * 由锚点推算的elapsedRealtime时刻的播放位置，不超过歌曲时长
+     */
+    public int getPositionAt(long elapsedRealtime) {
+        if (speed == 0 || elapsedRealtime <= updateTime) {
+            return position;
+        }
+        long estimate = position + (long) ((elapsedRealtime - updateTime) * speed);
+        return (int) (duration > 0 ? Math.min(estimate, duration) : estimate);
+    }
+
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    /**
+     * 与另一个快照相比变化了的字段，版本号不参与比较。
+     * 播放位置按other的锚点推算到本次采样的时刻再比较
+     */
+    public int diff(PlaybackState other) {
+        if (other == null) {
+            return FIELD_ALL;
+        }
+        int changed = 0;
+        if (status != other.status) {
+            changed |= FIELD_STATUS;
+        }
+        if (number != other.number || trackId != other.trackId) {
+            changed |= FIELD_TRACK;
+        }
+        if (speed != other.speed
+                || Math.abs(other.getPositionAt(updateTime) - position) > POSITION_TOLERANCE_MS) {
+            changed |= FIELD_POSITION;
+        }
+        if (duration != other.duration) {
+            changed |= FIELD_DURATION;
+        }
+        return changed;
+    }
+
+    /**
+     * 版本号改为version的副本
+     */
+    public PlaybackState withVersion(long version) {
+        return new PlaybackState(version, status, number, trackId, position, updateTime,
+                speed, duration);
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackState[v" + version + ", status=" + status + ", number=" + number
+                + ", id=" + trackId + ", position=" + position + "/" + duration
+                + " @" + updateTime + " x" + speed + "]";
+    }
+}
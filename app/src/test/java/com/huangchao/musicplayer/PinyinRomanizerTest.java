@@ -0,0 +1,35 @@
+package com.huangchao.musicplayer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 使用运行测试的JVM中真实的中文Collator
+ */
+public class PinyinRomanizerTest {
+    private final PinyinRomanizer romanizer = new PinyinRomanizer();
+
+    @Test
+    public void firstCharactersOfEachInitial() {
+        // 同一个声母中排在最前的几个字不能被算到前一个声母
+        assertEquals("a a", romanizer.romanize("啊阿"));
+        assertEquals("b b", romanizer.romanize("八芭"));
+        assertEquals("q q", romanizer.romanize("七期"));
+        assertEquals("t t", romanizer.romanize("他塌"));
+        assertEquals("x x", romanizer.romanize("夕昔"));
+    }
+
+    @Test
+    public void lastCommonCharacters() {
+        assertEquals("z z z", romanizer.romanize("做坐座"));
+    }
+
+    @Test
+    public void commonNames() {
+        assertEquals("z j l", romanizer.romanize("周杰伦"));
+        assertEquals("w f", romanizer.romanize("Faye 王菲"));
+        assertEquals("h k t k", romanizer.romanize("海阔天空"));
+        assertNull(romanizer.romanize("Beyond"));
+    }
+}
@@ -0,0 +1,152 @@
+package com.huangchao.musicplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PlaybackCommandQueueTest {
+    private static final int PLAY = 0;
+    private static final int SEEK = 7;
+    private static final int LIBRARY = 100;
+    private static final int[] COLLAPSIBLE = {SEEK, LIBRARY};
+
+    /**
+     * 手动运行的executor，模拟播放线程忙碌时命令在队列中积压
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class Recorder implements PlaybackCommandQueue.Callback {
+        final List<String> executed = new ArrayList<String>();
+
+        @Override
+        public void onCommand(int what, int arg, Object obj) {
+            executed.add(what + ":" + arg);
+        }
+    }
+
+    @Test
+    public void consecutiveSeeks_keepOnlyLastTarget() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        PlaybackCommandQueue queue = new PlaybackCommandQueue(8, COLLAPSIBLE, executor, recorder);
+        queue.offer(PLAY, 3, null);
+        for (int time = 0; time < 100; time++) {
+            assertTrue(queue.offer(SEEK, time * 10, null));
+        }
+        assertEquals(2, queue.depth());
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals("[0:3, 7:990]", recorder.executed.toString());
+        assertEquals(99, queue.collapsedCount());
+        assertEquals(2, queue.executedCount());
+        assertEquals(0, queue.depth());
+    }
+
+    @Test
+    public void seeksSeparatedByOtherCommands_areNotMerged() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        PlaybackCommandQueue queue = new PlaybackCommandQueue(8, COLLAPSIBLE, executor, recorder);
+        queue.offer(SEEK, 1, null);
+        queue.offer(PLAY, 2, null);
+        queue.offer(SEEK, 3, null);
+        executor.runAll();
+        assertEquals("[7:1, 0:2, 7:3]", recorder.executed.toString());
+    }
+
+    @Test
+    public void seeksInterleavedWithLibraryUpdates_collapse() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        PlaybackCommandQueue queue = new PlaybackCommandQueue(4, COLLAPSIBLE, executor, recorder);
+        queue.offer(PLAY, 1, null);
+        // 扫描期间拖动进度条：每次跳转之前都有一个新的列表快照
+        for (int time = 1; time <= 100; time++) {
+            assertTrue(queue.offer(LIBRARY, time, null));
+            assertTrue(queue.offer(SEEK, time * 10, null));
+        }
+        assertEquals(3, queue.depth());
+        assertEquals(0, queue.droppedCount());
+        executor.runAll();
+        assertEquals("[0:1, 100:100, 7:1000]", recorder.executed.toString());
+        assertEquals(3, queue.executedCount());
+    }
+
+    @Test
+    public void latency_isRecordedPerCommand() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        PlaybackCommandQueue queue = new PlaybackCommandQueue(4, COLLAPSIBLE, executor, recorder);
+        queue.offer(PLAY, 1, null);
+        queue.offer(SEEK, 2, null);
+        executor.runAll();
+        assertTrue(queue.maxLatencyMicros(PLAY) >= queue.averageLatencyMicros(PLAY));
+        assertEquals(0, queue.maxLatencyMicros(LIBRARY));
+        assertTrue(queue.toString().contains(PLAY + "=1/"));
+        assertTrue(queue.toString().contains(SEEK + "=1/"));
+    }
+
+    @Test
+    public void fullQueue_dropsNewCommands() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        PlaybackCommandQueue queue = new PlaybackCommandQueue(2, COLLAPSIBLE, executor, recorder);
+        assertTrue(queue.offer(PLAY, 1, null));
+        assertTrue(queue.offer(PLAY, 2, null));
+        assertFalse(queue.offer(PLAY, 3, null));
+        assertEquals(1, queue.droppedCount());
+        assertEquals(2, queue.maxDepth());
+        executor.runAll();
+        assertEquals("[0:1, 0:2]", recorder.executed.toString());
+        assertTrue(queue.offer(PLAY, 4, null));
+    }
+
+    @Test
+    public void commandsOfferedWhileDraining_runInSameDrain() {
+        ManualExecutor executor = new ManualExecutor();
+        final Recorder recorder = new Recorder();
+        final PlaybackCommandQueue[] holder = new PlaybackCommandQueue[1];
+        holder[0] = new PlaybackCommandQueue(4, COLLAPSIBLE, executor, new PlaybackCommandQueue.Callback() {
+            @Override
+            public void onCommand(int what, int arg, Object obj) {
+                recorder.onCommand(what, arg, obj);
+                if (arg == 1) {
+                    holder[0].offer(PLAY, 2, null);
+                }
+            }
+        });
+        holder[0].offer(PLAY, 1, null);
+        executor.tasks.remove(0).run();
+        assertEquals("[0:1, 0:2]", recorder.executed.toString());
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void closedQueue_rejectsCommands() {
+        ManualExecutor executor = new ManualExecutor();
+        Recorder recorder = new Recorder();
+        PlaybackCommandQueue queue = new PlaybackCommandQueue(4, COLLAPSIBLE, executor, recorder);
+        queue.offer(PLAY, 1, null);
+        queue.close();
+        assertFalse(queue.offer(PLAY, 2, null));
+        executor.runAll();
+        assertTrue(recorder.executed.isEmpty());
+    }
+}
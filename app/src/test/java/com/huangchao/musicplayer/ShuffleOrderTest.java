@@ -0,0 +1,120 @@
+package com.huangchao.musicplayer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ShuffleOrderTest {
+
+    private static int[] playAll(ShuffleOrder shuffle) {
+        int[] played = new int[shuffle.size()];
+        int count = 0;
+        if (shuffle.current() >= 0) {
+            played[count++] = shuffle.current();
+        }
+        int next;
+        while ((next = shuffle.next()) >= 0) {
+            played[count++] = next;
+        }
+        assertEquals(shuffle.size(), count);
+        return played;
+    }
+
+    private static void assertPermutation(int[] played, int size) {
+        int[] sorted = played.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < size; i++) {
+            assertEquals(i, sorted[i]);
+        }
+    }
+
+    @Test
+    public void oneRound_playsEveryTrackOnce() {
+        ShuffleOrder shuffle = new ShuffleOrder(new Random(1));
+        shuffle.reset(1000, 17);
+        assertEquals(17, shuffle.current());
+        int[] played = playAll(shuffle);
+        assertEquals(17, played[0]);
+        assertPermutation(played, 1000);
+        assertEquals(-1, shuffle.next());
+    }
+
+    @Test
+    public void previousAndNext_followHistory() {
+        ShuffleOrder shuffle = new ShuffleOrder(new Random(2));
+        shuffle.reset(50, 0);
+        int a = shuffle.next();
+        int b = shuffle.next();
+        int peeked = shuffle.peekNext();
+        assertEquals(a, shuffle.previous());
+        assertEquals(0, shuffle.previous());
+        assertEquals(-1, shuffle.previous());
+        assertEquals(a, shuffle.next());
+        assertEquals(b, shuffle.next());
+        assertEquals(peeked, shuffle.next());
+    }
+
+    @Test
+    public void jumpTo_playedTrackReturnsToHistory() {
+        ShuffleOrder shuffle = new ShuffleOrder(new Random(3));
+        shuffle.reset(20, 5);
+        int a = shuffle.next();
+        int b = shuffle.next();
+        shuffle.jumpTo(a);
+        assertEquals(a, shuffle.current());
+        assertEquals(b, shuffle.next());
+    }
+
+    @Test
+    public void appendAndInsert_keepHistoryAndRound() {
+        ShuffleOrder shuffle = new ShuffleOrder(new Random(4));
+        shuffle.reset(10, 3);
+        int a = shuffle.next();
+        shuffle.append(5);
+        // 在最前面插入一首，原来的歌曲位置都加一
+        shuffle.insert(0);
+        assertEquals(16, shuffle.size());
+        assertEquals(a + 1, shuffle.current());
+        int[] history = shuffle.history();
+        assertEquals(4, history[0]);
+        assertEquals(a + 1, history[1]);
+        shuffle.jumpTo(4);
+        assertPermutation(playAll(shuffle), 16);
+    }
+
+    @Test
+    public void remove_adjustsPositionsAndCursor() {
+        ShuffleOrder shuffle = new ShuffleOrder(new Random(5));
+        shuffle.reset(30, 10);
+        int a = shuffle.next();
+        int b = shuffle.next();
+        // 移除当前歌曲，next继续原来的顺序
+        shuffle.remove(b);
+        assertEquals(a > b ? a - 1 : a, shuffle.current());
+        // 移除一首还没播放的歌曲
+        int unplayed = 0;
+        while (unplayed == 10 || unplayed == a || unplayed == b) {
+            unplayed++;
+        }
+        shuffle.remove(unplayed);
+        assertEquals(28, shuffle.size());
+        shuffle.jumpTo(shuffle.history()[0]);
+        assertPermutation(playAll(shuffle), 28);
+    }
+
+    @Test
+    public void insertAfterCurrent_playsInsertedTracksNext() {
+        ShuffleOrder shuffle = new ShuffleOrder(new Random(6));
+        shuffle.reset(10, 4);
+        shuffle.next();
+        int current = shuffle.current();
+        shuffle.insertAfterCurrent(current + 1, 2);
+        assertEquals(current + 1, shuffle.next());
+        assertEquals(current + 2, shuffle.next());
+        shuffle.jumpTo(shuffle.history()[0]);
+        assertPermutation(playAll(shuffle), 12);
+    }
+}
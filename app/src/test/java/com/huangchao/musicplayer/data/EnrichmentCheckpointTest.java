@@ -0,0 +1,84 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class EnrichmentCheckpointTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static EnrichedTrack track(long id, long lastModified, String title) {
+        return new EnrichedTrack(id, lastModified, 100, title, null, "专辑", 1234, -3.5f, Float.NaN);
+    }
+
+    @Test
+    public void reopen_continuesFromAppendedRecords() throws IOException {
+        EnrichmentCheckpoint checkpoint = EnrichmentCheckpoint.open(file, new long[]{1, 2, 3});
+        checkpoint.append(Arrays.asList(track(1, 10, "一"), track(2, 20, "二")));
+        checkpoint.append(Arrays.asList(track(1, 11, "壹")));
+        checkpoint.close();
+
+        checkpoint = EnrichmentCheckpoint.open(file, new long[]{1, 2, 3});
+        EnrichedTrack one = checkpoint.get(1, 11, 100);
+        assertEquals("壹", one.getTitle());
+        assertNull(one.getArtist());
+        assertEquals("专辑", one.getAlbum());
+        assertEquals(1234, one.getDurationMs());
+        assertEquals(-3.5f, one.getTrackGain(), 0f);
+        assertTrue(Float.isNaN(one.getAlbumGain()));
+        // 文件被修改过，记录失效
+        assertNull(checkpoint.get(1, 10, 100));
+        assertNull(checkpoint.get(2, 20, 101));
+        assertNull(checkpoint.get(3, 30, 100));
+        checkpoint.close();
+
+        // 不在列表中的歌曲在重新打开时丢弃
+        checkpoint = EnrichmentCheckpoint.open(file, new long[]{2});
+        assertEquals(1, checkpoint.size());
+        assertNotNull(checkpoint.get(2, 20, 100));
+        checkpoint.close();
+    }
+
+    @Test
+    public void open_dropsTruncatedRecord() throws IOException {
+        EnrichmentCheckpoint checkpoint = EnrichmentCheckpoint.open(file, new long[]{1, 2});
+        checkpoint.append(Arrays.asList(track(1, 10, "一"), track(2, 20, "二")));
+        checkpoint.close();
+        // 模拟写入第二条记录时进程被杀死
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 5);
+        } finally {
+            raf.close();
+        }
+
+        checkpoint = EnrichmentCheckpoint.open(file, new long[]{1, 2});
+        assertEquals(1, checkpoint.size());
+        assertNotNull(checkpoint.get(1, 10, 100));
+        // 截断的部分已经被重写掉，之后追加的记录可以正常读回
+        checkpoint.append(Arrays.asList(track(2, 21, "二")));
+        checkpoint.close();
+        checkpoint = EnrichmentCheckpoint.open(file, new long[]{1, 2});
+        assertEquals(2, checkpoint.size());
+        assertEquals("二", checkpoint.get(2, 21, 100).getTitle());
+        checkpoint.close();
+    }
+}
@@ -0,0 +1,71 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.Test;
+
+import java.text.Collator;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class LibraryGroupsTest {
+
+    private static TrackStore newTracks() {
+        TrackStore tracks = new TrackStore();
+        // id, 标题, 艺术家, 专辑, 路径, 时长, albumId, artistId
+        tracks.add(1, "d", "Bee", "Zoo", "/1", 1, 20, 2);
+        tracks.add(2, "a", "Ant", "Mix", "/2", 1, 10, 1);
+        tracks.add(3, "c", "Bee", "Mix", "/3", 1, 10, 2);
+        tracks.add(4, "b", "Bee", "Zoo", "/4", 1, 20, 2);
+        return tracks;
+    }
+
+    @Test
+    public void build_groupsByAlbumAndArtist() {
+        LibraryGroups groups = LibraryGroups.build(newTracks());
+        assertEquals(2, groups.getAlbumCount());
+        int zoo = groups.indexOfAlbum(20);
+        int mix = groups.indexOfAlbum(10);
+        assertArrayEquals(new long[]{1, 4}, groups.getAlbumTracks(zoo));
+        assertArrayEquals(new long[]{2, 3}, groups.getAlbumTracks(mix));
+        assertEquals("Bee", groups.getAlbumArtist(zoo));
+        assertEquals(LibraryGroups.VARIOUS_ARTISTS, groups.getAlbumArtist(mix));
+        assertEquals(-1, groups.indexOfAlbum(99));
+
+        int bee = groups.indexOfArtist(2);
+        assertEquals(3, groups.getArtistTrackCount(bee));
+        assertEquals(2, groups.getArtistAlbums(bee).length);
+        assertArrayEquals(new int[]{mix}, groups.getArtistAlbums(groups.indexOfArtist(1)));
+    }
+
+    @Test
+    public void build_followsSortOrders() {
+        TrackStore tracks = newTracks();
+        tracks.setSortOrders(SortOrders.build(tracks.copy(), Collator.getInstance(Locale.ENGLISH)),
+                tracks.getModCount());
+        LibraryGroups groups = LibraryGroups.build(tracks);
+        assertEquals("Mix", groups.getAlbumName(0));
+        assertEquals("Zoo", groups.getAlbumName(1));
+        assertArrayEquals(new long[]{4, 1}, groups.getAlbumTracks(1));
+        assertEquals("Ant", groups.getArtistName(0));
+        // 同一位艺术家按专辑、再按标题
+        assertArrayEquals(new long[]{3, 4, 1}, groups.getArtistTracks(1));
+        assertArrayEquals(new int[]{0, 1}, groups.getArtistAlbums(1));
+    }
+
+    @Test
+    public void build_ordersAlbumTracksByTrackNumber() {
+        TrackStore tracks = newTracks();
+        tracks.add(5, "e", "Bee", "Zoo", "/5", 1, 20, 2);
+        tracks.setTrackNumber(0, 2);
+        tracks.setTrackNumber(3, 3);
+        tracks.setTrackNumber(4, 1);
+        tracks.setSortOrders(SortOrders.build(tracks.copy(), Collator.getInstance(Locale.ENGLISH)),
+                tracks.getModCount());
+        LibraryGroups groups = LibraryGroups.build(tracks);
+        // 按标题是b、d、e，按音轨号是e、d、b
+        assertArrayEquals(new long[]{5, 1, 4}, groups.getAlbumTracks(groups.indexOfAlbum(20)));
+        // 音轨号未知的排在最后，保持标题顺序
+        assertArrayEquals(new long[]{2, 3}, groups.getAlbumTracks(groups.indexOfAlbum(10)));
+        assertArrayEquals(new long[]{3, 5, 1, 4}, groups.getArtistTracks(groups.indexOfArtist(2)));
+    }
+}
@@ -0,0 +1,68 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class LibrarySnapshotTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("library", null);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void readPage_decodesInPages() throws IOException {
+        TrackStore tracks = new TrackStore();
+        for (int i = 0; i < 5; i++) {
+            tracks.add(i, "title" + i, i % 2 == 0 ? "歌手" : null, "album", "/" + i, i * 1000, 7, 8, 100 + i);
+        }
+        tracks.setReplayGain(3, -2.5f, Float.NaN);
+        tracks.setTrackNumber(3, 1004);
+        LibrarySnapshot.write(file, tracks);
+
+        LibrarySnapshot.Reader reader = LibrarySnapshot.open(file);
+        assertEquals(5, reader.getCount());
+        TrackStore first = reader.readPage(2);
+        assertEquals(2, first.size());
+        assertEquals("title1", first.getmusicName(1));
+        assertNull(first.getmusicArtist(1));
+        TrackStore rest = reader.readPage(10);
+        assertFalse(reader.hasNext());
+        assertEquals(3, rest.size());
+        assertEquals(3, rest.getMusicId(1));
+        assertEquals("歌手", rest.getmusicArtist(2));
+        assertEquals(3000, rest.getmusicDuration(1));
+        assertEquals(103, rest.getMusicDateAdded(1));
+        assertEquals(-2.5f, rest.getTrackGain(1), 0f);
+        assertEquals(1004, rest.getTrackNumber(1));
+        assertEquals(0, rest.getTrackNumber(0));
+    }
+
+    @Test
+    public void open_rejectsCountLargerThanFile() throws IOException {
+        TrackStore tracks = new TrackStore();
+        tracks.add(1, "a", "b", "c", "/1", 1, 1, 1);
+        LibrarySnapshot.write(file, tracks);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(8);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+        assertNull(LibrarySnapshot.open(file));
+    }
+}
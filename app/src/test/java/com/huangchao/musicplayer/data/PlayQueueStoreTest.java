@@ -0,0 +1,108 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class PlayQueueStoreTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("playqueue", null);
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void edits_areRestored() {
+        PlayQueueStore store = new PlayQueueStore(file);
+        PlayQueue queue = store.load();
+        assertTrue(queue.isEmpty());
+        queue.setAll(new long[]{1, 2, 3});
+        queue.addAll(new long[]{4, 5});
+        queue.insert(1, new long[]{9});
+        queue.move(0, 4);
+        queue.remove(2, 1);
+        store.setPosition(3);
+        store.close();
+
+        PlayQueueStore reopened = new PlayQueueStore(file);
+        PlayQueue restored = reopened.load();
+        assertTrue(Arrays.equals(queue.toArray(), restored.toArray()));
+        assertEquals(3, reopened.getPosition());
+        reopened.close();
+    }
+
+    @Test
+    public void setAndPosition_waitForScheduledFlush() {
+        final ArrayList<Runnable> scheduled = new ArrayList<Runnable>();
+        PlayQueueStore store = new PlayQueueStore(file, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                scheduled.add(command);
+            }
+        });
+        PlayQueue queue = store.load();
+        queue.setAll(new long[]{1, 2, 3});
+        store.setPosition(1);
+        store.setPosition(2);
+        // 替换队列不同步重写文件，多次修改只安排一次flush
+        assertFalse(file.exists());
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+        assertTrue(Arrays.equals(new long[]{1, 2, 3}, new PlayQueueStore(file).load().toArray()));
+
+        store.setPosition(0);
+        assertEquals(1, scheduled.size());
+        scheduled.remove(0).run();
+        PlayQueueStore reopened = new PlayQueueStore(file);
+        reopened.load();
+        assertEquals(0, reopened.getPosition());
+        reopened.close();
+        store.close();
+    }
+
+    @Test
+    public void truncatedRecord_isIgnored() throws IOException {
+        PlayQueueStore store = new PlayQueueStore(file);
+        PlayQueue queue = store.load();
+        queue.setAll(new long[]{1, 2, 3});
+        queue.addAll(new long[]{4});
+        store.close();
+        // 模拟写到一半被杀：一条INSERT记录只写了一部分
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[]{2, 0, 0, 0, 0, 0, 0, 0, 5, 0, 0});
+        out.close();
+
+        PlayQueueStore reopened = new PlayQueueStore(file);
+        PlayQueue restored = reopened.load();
+        assertTrue(Arrays.equals(new long[]{1, 2, 3, 4}, restored.toArray()));
+        // 之后的修改接在有效的记录后面
+        restored.addAll(new long[]{6});
+        reopened.close();
+        assertTrue(Arrays.equals(new long[]{1, 2, 3, 4, 6}, new PlayQueueStore(file).load().toArray()));
+    }
+
+    @Test
+    public void badHeader_givesEmptyQueue() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0x12345678);
+        raf.close();
+        assertTrue(new PlayQueueStore(file).load().isEmpty());
+    }
+}
@@ -0,0 +1,68 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PlayQueueTest {
+
+    private static long[] toArray(List<Long> list) {
+        long[] ids = new long[list.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = list.get(i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void randomEdits_matchArrayList() {
+        Random random = new Random(7);
+        PlayQueue queue = new PlayQueue(1);
+        List<Long> expected = new ArrayList<Long>();
+        long nextId = 1;
+        for (int step = 0; step < 5000; step++) {
+            int op = random.nextInt(3);
+            if (op == 0 || expected.size() < 2) {
+                int position = random.nextInt(expected.size() + 1);
+                int count = 1 + random.nextInt(3);
+                long[] ids = new long[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = nextId++;
+                    expected.add(position + i, ids[i]);
+                }
+                queue.insert(position, ids);
+            } else if (op == 1) {
+                int position = random.nextInt(expected.size());
+                expected.remove(position);
+                queue.remove(position, 1);
+            } else {
+                int from = random.nextInt(expected.size());
+                int to = random.nextInt(expected.size());
+                expected.add(to, expected.remove(from));
+                queue.move(from, to);
+            }
+        }
+        assertTrue(Arrays.equals(toArray(expected), queue.toArray()));
+        assertEquals(expected.size(), queue.size());
+        long last = expected.get(expected.size() - 1);
+        assertEquals(expected.size() - 1, queue.indexOf(last));
+        assertTrue(queue.contentEquals(toArray(expected)));
+    }
+
+    @Test
+    public void positionHelpers_followEdits() {
+        assertEquals(5, PlayQueue.positionAfterInsert(3, 2, 2));
+        assertEquals(1, PlayQueue.positionAfterInsert(1, 2, 2));
+        assertEquals(-1, PlayQueue.positionAfterRemove(3, 2, 2));
+        assertEquals(2, PlayQueue.positionAfterRemove(4, 2, 2));
+        assertEquals(7, PlayQueue.positionAfterMove(2, 2, 7));
+        assertEquals(2, PlayQueue.positionAfterMove(3, 2, 7));
+        assertEquals(4, PlayQueue.positionAfterMove(3, 7, 2));
+        assertEquals(9, PlayQueue.positionAfterMove(9, 7, 2));
+    }
+}
@@ -0,0 +1,87 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+
+    // 测试用的拼音首字母：只认识周杰伦三个字
+    private static final SearchIndex.Romanizer ROMANIZER = new SearchIndex.Romanizer() {
+        @Override
+        public String romanize(String text) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                int index = "周杰伦".indexOf(text.charAt(i));
+                if (index >= 0) {
+                    sb.append("zjl".charAt(index)).append(' ');
+                }
+            }
+            return sb.length() == 0 ? null : sb.toString();
+        }
+    };
+
+    private static SearchIndex newIndex() {
+        SearchIndex index = new SearchIndex(ROMANIZER);
+        index.add(1, "Café del Mar", "Énergie", "Chill");
+        index.add(2, "Yesterday", "The Beatles", "Help!");
+        index.add(3, "晴天", "周杰伦", "叶惠美");
+        index.add(4, "Let It Be", "The Beatles", "Let It Be");
+        return index;
+    }
+
+    @Test
+    public void search_foldsCaseAndDiacritics() {
+        SearchIndex index = newIndex();
+        assertArrayEquals(new long[]{1}, index.search("cafe", 10));
+        assertArrayEquals(new long[]{1}, index.search("ENER", 10));
+        assertArrayEquals(new long[]{2, 4}, index.search("beat", 10));
+        assertArrayEquals(new long[]{4}, index.search("beatles let", 10));
+        // 短的词只匹配词首，长的词可以在词中间
+        assertArrayEquals(new long[0], index.search("es", 10));
+        assertArrayEquals(new long[]{2}, index.search("terd", 10));
+        assertArrayEquals(new long[]{2}, index.search("beatles", 1));
+    }
+
+    @Test
+    public void search_cjkAndPinyin() {
+        SearchIndex index = newIndex();
+        assertArrayEquals(new long[]{3}, index.search("杰伦", 10));
+        assertArrayEquals(new long[]{3}, index.search("天", 10));
+        // 只有首字母连写，按词首匹配
+        assertArrayEquals(new long[]{3}, index.search("zj", 10));
+        assertArrayEquals(new long[]{3}, index.search("zjl", 10));
+        assertArrayEquals(new long[0], index.search("jl", 10));
+    }
+
+    @Test
+    public void removeAndAdd_updateResults() {
+        SearchIndex index = newIndex();
+        index.remove(new long[]{2});
+        assertArrayEquals(new long[]{4}, index.search("beatles", 10));
+        index.add(2, "Yesterday", "Paul McCartney", "Help!");
+        assertArrayEquals(new long[]{2}, index.search("paul yest", 10));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void compact_keepsLiveDocuments() {
+        Random random = new Random(3);
+        SearchIndex index = new SearchIndex(null);
+        int count = 3000;
+        for (int i = 0; i < count; i++) {
+            index.add(i, "song " + Integer.toString(i, 36) + random.nextInt(10), "artist", "album");
+        }
+        long[] removed = new long[count * 2 / 3];
+        for (int i = 0; i < removed.length; i++) {
+            removed[i] = i;
+        }
+        index.remove(removed);
+        assertEquals(count - removed.length, index.size());
+        long[] result = index.search("artist", count);
+        assertEquals(count - removed.length, result.length);
+        assertEquals(removed.length, result[0]);
+    }
+}
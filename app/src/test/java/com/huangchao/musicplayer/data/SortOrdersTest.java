@@ -0,0 +1,49 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.Test;
+
+import java.text.Collator;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class SortOrdersTest {
+
+    private static SortOrders build(TrackStore tracks) {
+        Collator collator = Collator.getInstance(Locale.ENGLISH);
+        collator.setStrength(Collator.SECONDARY);
+        return SortOrders.build(tracks, collator);
+    }
+
+    private static TrackStore newTracks() {
+        TrackStore tracks = new TrackStore();
+        tracks.add(1, "delta", "Beta", "X", "/1", 300, 1, 1, 100);
+        tracks.add(2, "Alpha", "alpha", "Y", "/2", 100, 2, 2, 400);
+        tracks.add(3, "charlie", "beta", "W", "/3", 200, 3, 1, 300);
+        tracks.add(4, "bravo", null, null, "/4", 200, 4, 3, 200);
+        tracks.add(5, "alpha", "Beta", "W", "/5", 50, 3, 1, 0);
+        return tracks;
+    }
+
+    @Test
+    public void build_sortsEachKey() {
+        SortOrders orders = build(newTracks());
+        // 不区分大小写，相同的标题保持原来的顺序
+        assertArrayEquals(new int[]{1, 4, 3, 2, 0}, orders.get(SortOrders.SORT_TITLE));
+        // null排在最前；同一位艺术家按专辑、再按标题
+        assertArrayEquals(new int[]{3, 1, 4, 2, 0}, orders.get(SortOrders.SORT_ARTIST));
+        assertArrayEquals(new int[]{3, 4, 2, 0, 1}, orders.get(SortOrders.SORT_ALBUM));
+        assertArrayEquals(new int[]{4, 1, 3, 2, 0}, orders.get(SortOrders.SORT_DURATION));
+        assertArrayEquals(new int[]{1, 2, 3, 0, 4}, orders.get(SortOrders.SORT_DATE_ADDED));
+    }
+
+    @Test
+    public void trackStore_dropsStaleOrders() {
+        TrackStore tracks = newTracks();
+        assertNull(tracks.getSortOrder(SortOrders.SORT_TITLE));
+        tracks.setSortOrders(build(tracks.copy()), tracks.getModCount());
+        assertNotNull(tracks.getSortOrder(SortOrders.SORT_ARTIST));
+        tracks.add(6, "echo", "a", "b", "/6", 1, 5, 4, 0);
+        assertNull(tracks.getSortOrder(SortOrders.SORT_ARTIST));
+    }
+}
@@ -0,0 +1,262 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TagReaderTest {
+    private static final byte[] PICTURE = {(byte) 0xff, (byte) 0xd8, 1, 2, 3, (byte) 0xff, (byte) 0xd9};
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("tags", null);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 读出内嵌封面所在的字节，应当与写入的图片相同
+     */
+    private byte[] picture(AudioTags tags) throws IOException {
+        byte[] bytes = new byte[tags.getPictureLength()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(tags.getPictureOffset());
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        return bytes;
+    }
+
+    private static void id3Frame(DataOutputStream out, String id, byte[] body) throws IOException {
+        out.writeBytes(id);
+        out.writeInt(body.length);
+        out.writeShort(0);
+        out.write(body);
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void id3v23_readsTextGainAndPicture() throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frames);
+        id3Frame(out, "TIT2", concat(new byte[]{1}, "晴天".getBytes("UTF-16")));
+        // 标记为ISO-8859-1，实际是GBK
+        id3Frame(out, "TPE1", concat(new byte[]{0}, "周杰伦".getBytes("GBK")));
+        id3Frame(out, "TALB", concat(new byte[]{3}, "叶惠美".getBytes("UTF-8")));
+        id3Frame(out, "TRCK", concat(new byte[]{0}, "3/11".getBytes("ISO-8859-1")));
+        id3Frame(out, "TXXX", concat(new byte[]{0}, "replaygain_track_gain\0-6.50 dB".getBytes("ISO-8859-1")));
+        id3Frame(out, "APIC", concat(new byte[]{0}, "image/jpeg\0".getBytes("ISO-8859-1"),
+                new byte[]{3, 0}, PICTURE));
+        byte[] body = frames.toByteArray();
+        int size = body.length + 16;
+        byte[] header = {'I', 'D', '3', 3, 0, 0,
+                (byte) (size >> 21 & 0x7f), (byte) (size >> 14 & 0x7f),
+                (byte) (size >> 7 & 0x7f), (byte) (size & 0x7f)};
+        write(concat(header, body, new byte[16], new byte[]{(byte) 0xff, (byte) 0xfb, 0, 0}));
+
+        AudioTags tags = TagReader.read(file);
+        assertEquals("晴天", tags.getTitle());
+        assertEquals("周杰伦", tags.getArtist());
+        assertEquals("叶惠美", tags.getAlbum());
+        assertEquals(3, tags.getTrackNumber());
+        assertEquals(-6.5f, tags.getTrackGain(), 0.001f);
+        assertTrue(Float.isNaN(tags.getAlbumGain()));
+        assertEquals("image/jpeg", tags.getPictureMimeType());
+        assertTrue(Arrays.equals(PICTURE, picture(tags)));
+    }
+
+    private static byte[] le(int value) {
+        return new byte[]{(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+    }
+
+    private static byte[] vorbisComment(String comment) throws IOException {
+        byte[] bytes = comment.getBytes("UTF-8");
+        return concat(le(bytes.length), bytes);
+    }
+
+    @Test
+    public void flac_readsStreamInfoCommentsAndPicture() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("fLaC");
+        // STREAMINFO：44100Hz，441000个采样，10秒
+        out.writeInt(34);
+        out.write(new byte[10]);
+        out.writeLong((44100L << 44) | (1L << 41) | (15L << 36) | 441000L);
+        out.write(new byte[16]);
+        byte[] comments = concat(le(3), "ref".getBytes("UTF-8"), le(3),
+                vorbisComment("title=Café"), vorbisComment("ARTIST=Björk"),
+                vorbisComment("REPLAYGAIN_ALBUM_GAIN=+1.25 dB"));
+        out.writeInt(4 << 24 | comments.length);
+        out.write(comments);
+        ByteArrayOutputStream picture = new ByteArrayOutputStream();
+        DataOutputStream pictureOut = new DataOutputStream(picture);
+        pictureOut.writeInt(3);
+        pictureOut.writeInt(9);
+        pictureOut.writeBytes("image/png");
+        pictureOut.writeInt(0);
+        pictureOut.write(new byte[16]);
+        pictureOut.writeInt(PICTURE.length);
+        pictureOut.write(PICTURE);
+        out.writeInt(0x80000000 | 6 << 24 | picture.size());
+        out.write(picture.toByteArray());
+        out.write(new byte[64]);
+        write(bytes.toByteArray());
+
+        AudioTags tags = TagReader.read(file);
+        assertEquals(10000, tags.getDurationMs());
+        assertTrue(tags.isDurationExact());
+        assertEquals("Café", tags.getTitle());
+        assertEquals("Björk", tags.getArtist());
+        assertNull(tags.getAlbum());
+        assertEquals(1.25f, tags.getAlbumGain(), 0.001f);
+        assertEquals("image/png", tags.getPictureMimeType());
+        assertTrue(Arrays.equals(PICTURE, picture(tags)));
+    }
+
+    private static byte[] atom(String type, byte[]... children) throws IOException {
+        byte[] body = concat(children);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(body.length + 8);
+        out.write(type.getBytes("ISO-8859-1"));
+        out.write(body);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] data(int type, byte[] value) throws IOException {
+        return atom("data", new byte[]{0, 0, 0, (byte) type}, new byte[4], value);
+    }
+
+    @Test
+    public void mp4_readsMoovAfterMdat() throws IOException {
+        byte[] mvhd = atom("mvhd", new byte[12], new byte[]{0, 0, 0x03, (byte) 0xe8},
+                new byte[]{0, 0, 0x4e, 0x20}, new byte[80]);
+        byte[] ilst = atom("ilst",
+                atom("©nam", data(1, "Song".getBytes("UTF-8"))),
+                atom("©ART", data(1, "歌手".getBytes("UTF-8"))),
+                atom("trkn", data(0, new byte[]{0, 0, 0, 7, 0, 9, 0, 0})),
+                atom("covr", data(13, PICTURE)));
+        byte[] moov = atom("moov", mvhd, atom("udta", atom("meta", new byte[4], ilst)));
+        write(concat(atom("ftyp", "M4A ".getBytes("ISO-8859-1"), new byte[4]),
+                atom("mdat", new byte[1000]), moov));
+
+        AudioTags tags = TagReader.read(file);
+        assertEquals(20000, tags.getDurationMs());
+        assertTrue(tags.isDurationExact());
+        assertEquals("Song", tags.getTitle());
+        assertEquals("歌手", tags.getArtist());
+        assertEquals(7, tags.getTrackNumber());
+        assertEquals("image/jpeg", tags.getPictureMimeType());
+        assertTrue(Arrays.equals(PICTURE, picture(tags)));
+    }
+
+    @Test
+    public void mp4_rejectsAtomSizesBeyondFile() throws IOException {
+        // 64位长度远大于文件，跳过它时position会溢出为负数
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeBytes("free");
+        out.writeLong(Long.MAX_VALUE - 8);
+        write(concat(atom("ftyp", "M4A ".getBytes("ISO-8859-1"), new byte[4]), bytes.toByteArray(),
+                atom("moov", new byte[8])));
+        assertNull(TagReader.read(file).getTitle());
+
+        // udta的长度超出moov，不读取其中的标签
+        byte[] ilst = atom("ilst", atom("©nam", data(1, "Song".getBytes("UTF-8"))));
+        byte[] udta = atom("udta", atom("meta", new byte[4], ilst));
+        udta[3] = (byte) (udta[3] + 64);
+        write(concat(atom("ftyp", "M4A ".getBytes("ISO-8859-1"), new byte[4]), atom("moov", udta)));
+        assertNull(TagReader.read(file).getTitle());
+    }
+
+    // MPEG1 Layer III，128kbps，44100Hz，联合立体声，每帧417字节
+    private static final int MP3_HEADER = 0xfffb9064;
+    private static final int MP3_FRAME = 417;
+
+    private static byte[] mp3Frame(byte[] vbrHeader, int offset) {
+        byte[] frame = new byte[MP3_FRAME];
+        frame[0] = (byte) (MP3_HEADER >>> 24);
+        frame[1] = (byte) (MP3_HEADER >>> 16);
+        frame[2] = (byte) (MP3_HEADER >>> 8);
+        frame[3] = (byte) MP3_HEADER;
+        if (vbrHeader != null) {
+            System.arraycopy(vbrHeader, 0, frame, offset, vbrHeader.length);
+        }
+        return frame;
+    }
+
+    @Test
+    public void mp3_durationFromXingFrameCount() throws IOException {
+        // 立体声的Xing头在4字节帧头和32字节side info之后
+        byte[] xing = {'X', 'i', 'n', 'g', 0, 0, 0, 1, 0, 0, 0x03, (byte) 0xe8};
+        write(concat(new byte[]{0, 0, 0}, mp3Frame(xing, 36), mp3Frame(null, 0)));
+        // 1000帧 * 1152个采样 / 44100Hz
+        AudioTags tags = TagReader.read(file);
+        assertEquals(26122, tags.getDurationMs());
+        assertTrue(tags.isDurationExact());
+        assertEquals(26122, EnrichedTrack.from(1, 1, 1, tags).getDurationMs());
+    }
+
+    @Test
+    public void mp3_durationFromConstantBitrate() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            bytes.write(mp3Frame(null, 0));
+        }
+        byte[] id3v1 = new byte[128];
+        id3v1[0] = 'T';
+        id3v1[1] = 'A';
+        id3v1[2] = 'G';
+        bytes.write(id3v1);
+        write(bytes.toByteArray());
+        // 4170字节 * 8 / 128kbps，末尾的ID3v1不计入
+        AudioTags tags = TagReader.read(file);
+        assertEquals(260, tags.getDurationMs());
+        // 估算的时长不覆盖MediaStore的值
+        assertFalse(tags.isDurationExact());
+        assertEquals(0, EnrichedTrack.from(1, 1, 1, tags).getDurationMs());
+    }
+
+    @Test
+    public void unknownFormat_returnsEmptyTags() throws IOException {
+        write(new byte[]{1, 2, 3});
+        AudioTags tags = TagReader.read(file);
+        assertNull(tags.getTitle());
+        assertFalse(tags.hasPicture());
+    }
+}
@@ -0,0 +1,144 @@
+package com.huangchao.musicplayer.data;
+
+import org.junit.Test;
+
+import java.text.Collator;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class TrackStoreTest {
+
+    private static void addTrack(TrackStore tracks, long id, String title, String artist) {
+        tracks.add(id, title, artist, "album" + (id % 3), "/sdcard/" + id + ".mp3",
+                (int) id * 1000, id % 3, id % 5);
+    }
+
+    @Test
+    public void add_readsBackByPosition() {
+        TrackStore tracks = new TrackStore(1);
+        for (int i = 0; i < 100; i++) {
+            addTrack(tracks, i, "title" + i, "artist" + (i % 4));
+        }
+        assertEquals(100, tracks.size());
+        assertEquals(42, tracks.getMusicId(42));
+        assertEquals("title42", tracks.getmusicName(42));
+        assertEquals("artist2", tracks.getmusicArtist(42));
+        assertEquals("album0", tracks.getMusicAlbum(42));
+        assertEquals("/sdcard/42.mp3", tracks.getmusicPath(42));
+        assertEquals(42000, tracks.getmusicDuration(42));
+        assertEquals(0, tracks.getMusicAlbumId(42));
+        assertEquals(2, tracks.getMusicArtistId(42));
+    }
+
+    @Test
+    public void artistStrings_areShared() {
+        TrackStore tracks = new TrackStore();
+        addTrack(tracks, 1, "a", new String("artist"));
+        addTrack(tracks, 2, "b", new String("artist"));
+        assertSame(tracks.getmusicArtist(0), tracks.getmusicArtist(1));
+    }
+
+    @Test
+    public void insertAndRemoveIds_keepColumnsAligned() {
+        TrackStore tracks = new TrackStore();
+        for (int i = 0; i < 10; i++) {
+            addTrack(tracks, i, "title" + i, "artist" + i);
+        }
+        tracks.insert(0, 100, "first", null, null, "/first", 5, -1, -1);
+        assertEquals(11, tracks.size());
+        assertEquals("first", tracks.getmusicName(0));
+        assertNull(tracks.getmusicArtist(0));
+        assertEquals("title0", tracks.getmusicName(1));
+
+        assertEquals(3, tracks.removeIds(new long[]{0, 5, 100}));
+        assertEquals(8, tracks.size());
+        assertArrayEquals(new long[]{1, 2, 3, 4, 6, 7, 8, 9}, tracks.copyIds());
+        assertEquals("artist6", tracks.getmusicArtist(4));
+        assertEquals(6000, tracks.getmusicDuration(4));
+        assertEquals(4, tracks.indexOfId(6));
+        assertEquals(-1, tracks.indexOfId(5));
+    }
+
+    @Test
+    public void copy_isIndependent() {
+        TrackStore tracks = new TrackStore();
+        addTrack(tracks, 1, "a", "x");
+        TrackStore copy = tracks.copy();
+        addTrack(tracks, 2, "b", "y");
+        assertEquals(1, copy.size());
+        assertEquals("x", copy.getmusicArtist(0));
+        addTrack(copy, 3, "c", "z");
+        assertEquals("z", copy.getmusicArtist(1));
+        assertEquals("y", tracks.getmusicArtist(1));
+    }
+
+    @Test
+    public void snapshot_doesNotSeeLaterChanges() {
+        TrackStore tracks = new TrackStore(4);
+        for (int i = 0; i < 3; i++) {
+            addTrack(tracks, i, "title" + i, "artist" + i);
+        }
+        TrackStore snapshot = tracks.snapshot();
+        // 追加写入快照范围之外，其他修改先复制列数组
+        addTrack(tracks, 3, "title3", "artist3");
+        tracks.update(0, "changed", "someone", null, 1);
+        tracks.insert(1, 100, "inserted", null, null, "/inserted", 5, -1, -1);
+        tracks.removeIds(new long[]{2});
+        assertEquals(3, snapshot.size());
+        assertArrayEquals(new long[]{0, 1, 2}, snapshot.copyIds());
+        assertEquals("title0", snapshot.getmusicName(0));
+        assertEquals("artist0", snapshot.getmusicArtist(0));
+        assertEquals("album2", snapshot.getMusicAlbum(2));
+        assertEquals(2, snapshot.indexOfId(2));
+        assertArrayEquals(new long[]{0, 100, 1, 3}, tracks.copyIds());
+        assertEquals("someone", tracks.getmusicArtist(0));
+
+        tracks.clear();
+        assertEquals("artist1", snapshot.getmusicArtist(1));
+        try {
+            snapshot.setReplayGain(0, 0f, 0f);
+            fail("snapshot should be read-only");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void get_createsMusicView() {
+        TrackStore tracks = new TrackStore();
+        addTrack(tracks, 7, "seven", "artist");
+        Music music = tracks.get(0);
+        assertEquals("seven", music.getmusicName());
+        assertEquals(7000, music.getmusicDuration());
+        assertEquals(7, music.musicId);
+    }
+
+    @Test
+    public void update_keepsPositionsAndModCount() {
+        TrackStore tracks = new TrackStore();
+        addTrack(tracks, 1, "one", "artist");
+        addTrack(tracks, 2, "two", "artist");
+        tracks.setSortOrders(SortOrders.build(tracks.copy(), Collator.getInstance(Locale.ENGLISH)),
+                tracks.getModCount());
+        int modCount = tracks.getModCount();
+        int version = tracks.getVersion();
+        assertFalse(tracks.update(1, "two", "artist", "album2", 2000));
+        assertEquals(version, tracks.getVersion());
+        assertNotNull(tracks.getSortOrder(SortOrders.SORT_TITLE));
+        assertTrue(tracks.update(1, "二", "歌手", "album2", 2345));
+        tracks.setReplayGain(1, -6.5f, Float.NaN);
+        assertEquals(modCount, tracks.getModCount());
+        // 标题变了，之前的排序已经过期
+        assertNull(tracks.getSortOrder(SortOrders.SORT_TITLE));
+        // 只修改属性也会让快照过期
+        assertEquals(version + 2, tracks.getVersion());
+        assertEquals(version + 2, tracks.snapshot().getVersion());
+        assertEquals(1, tracks.indexOfId(2));
+        assertEquals("二", tracks.getmusicName(1));
+        assertEquals("歌手", tracks.getmusicArtist(1));
+        assertEquals("artist", tracks.getmusicArtist(0));
+        assertEquals(2345, tracks.getmusicDuration(1));
+        assertEquals(-6.5f, tracks.copy().getTrackGain(1), 0f);
+        assertTrue(Float.isNaN(tracks.getTrackGain(0)));
+    }
+}